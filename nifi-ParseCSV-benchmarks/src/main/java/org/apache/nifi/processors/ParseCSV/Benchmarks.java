@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Shared setup of the benchmarks.
+ */
+final class Benchmarks {
+
+    static final String ENCRYPTION_KEY = "0123456789abcdef";
+
+    static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Compiles a plan from the given properties, all others keep their defaults.
+     */
+    static ParsePlan plan(final Map<PropertyDescriptor, String> properties) {
+        return ParsePlan.compile(runner(properties).getProcessContext());
+    }
+
+    static TestRunner runner(final Map<PropertyDescriptor, String> properties) {
+        final TestRunner runner = TestRunners.newTestRunner(ParseCSV.class);
+        for (final Map.Entry<PropertyDescriptor, String> property : properties.entrySet()) {
+            runner.setProperty(property.getKey(), property.getValue());
+        }
+        return runner;
+    }
+
+    /**
+     * Properties that apply a transform to every other column, column1 stays a pass through identifier.
+     *
+     * @param transform none, mask, encrypt or tokenize
+     */
+    static void transform(final Map<PropertyDescriptor, String> properties, final String transform, final int columns) {
+        final StringBuilder selected = new StringBuilder();
+        for (int c = 2; c <= columns; c += 2) {
+            selected.append(selected.length() == 0 ? "" : ",").append("column").append(c);
+        }
+        switch (transform) {
+            case "mask":
+                properties.put(ParseCSV.COLUMN_MASK, selected.toString());
+                break;
+            case "encrypt":
+                properties.put(ParseCSV.COLUMN_ENCRYPT, selected.toString());
+                properties.put(ParseCSV.ENCRYPTION_KEY, ENCRYPTION_KEY);
+                break;
+            case "tokenize":
+                properties.put(ParseCSV.COLUMN_MASK, selected.toString());
+                properties.put(ParseCSV.COLUMN_TOKENIZE, selected.toString());
+                properties.put(ParseCSV.TOKENIZE_UNQIUE_IDENTIFIER, "column1");
+                break;
+        }
+    }
+}
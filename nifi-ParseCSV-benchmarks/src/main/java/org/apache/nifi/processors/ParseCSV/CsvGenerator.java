@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates reproducible synthetic CSV content for the benchmarks.
+ *
+ * Columns are named column1 to columnN. Values are random words of 4 to 12 letters and digits, a
+ * fraction of them, the quoting density, is quoted and contains a delimiter, an escaped quote or a
+ * line break.
+ */
+final class CsvGenerator {
+
+    private static final char[] CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+
+    private CsvGenerator() {
+    }
+
+    static String[] header(final int columns) {
+        return ParsePlan.positionalHeader(columns);
+    }
+
+    /**
+     * @param quoting fraction of the values that need quotes, between 0 and 1
+     */
+    static byte[] generate(final int rows, final int columns, final double quoting, final long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder csv = new StringBuilder(rows * columns * 10);
+        final String[] header = header(columns);
+        for (int c = 0; c < columns; c++) {
+            csv.append(c == 0 ? "" : ",").append(header[c]);
+        }
+        csv.append("\r\n");
+
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                if (c > 0) {
+                    csv.append(',');
+                }
+                if (random.nextDouble() < quoting) {
+                    csv.append('"');
+                    word(csv, random);
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            csv.append(", ");
+                            break;
+                        case 1:
+                            csv.append("\"\"");
+                            break;
+                        default:
+                            csv.append("\r\n");
+                    }
+                    word(csv, random);
+                    csv.append('"');
+                } else {
+                    word(csv, random);
+                }
+            }
+            csv.append("\r\n");
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String[] values(final int count, final int length, final long seed) {
+        final Random random = new Random(seed);
+        final String[] values = new String[count];
+        final char[] value = new char[length];
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < length; c++) {
+                value[c] = CHARACTERS[random.nextInt(CHARACTERS.length)];
+            }
+            values[i] = new String(value);
+        }
+        return values;
+    }
+
+    private static void word(final StringBuilder csv, final Random random) {
+        final int length = 4 + random.nextInt(9);
+        for (int i = 0; i < length; i++) {
+            csv.append(CHARACTERS[random.nextInt(CHARACTERS.length)]);
+        }
+    }
+}
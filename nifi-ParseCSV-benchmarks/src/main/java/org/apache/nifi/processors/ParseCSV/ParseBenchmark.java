@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses one generated FlowFile with commons-csv and with the byte level parser.
+ *
+ * The score is FlowFiles per second, multiply by {@code rows} for records per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"5", "50"})
+    public int columns;
+
+    @Param({"0.0", "0.1", "0.5"})
+    public double quoting;
+
+    private byte[] content;
+    private FastCsvParser parser;
+
+    @Setup
+    public void setup() {
+        content = CsvGenerator.generate(rows, columns, quoting, 42);
+        final ParsePlan plan = Benchmarks.plan(new HashMap<PropertyDescriptor, String>());
+        if (!FastCsvParser.supports(plan)) {
+            throw new IllegalStateException("The default plan is not supported by the byte level parser");
+        }
+        parser = new FastCsvParser(plan);
+    }
+
+    @Benchmark
+    public void commonsCsv(final Blackhole blackhole) throws IOException {
+        try (CSVParser csvParser = new CSVParser(new InputStreamReader(new ByteArrayInputStream(content),
+                StandardCharsets.UTF_8), CSVFormat.DEFAULT.withHeader())) {
+            for (final CSVRecord record : csvParser) {
+                for (int i = 0; i < record.size(); i++) {
+                    blackhole.consume(record.get(i));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void byteParser() throws IOException {
+        parser.process(new ByteArrayInputStream(content), Benchmarks.NULL_OUTPUT, null, null, null, null, null, null,
+                null, null);
+    }
+}
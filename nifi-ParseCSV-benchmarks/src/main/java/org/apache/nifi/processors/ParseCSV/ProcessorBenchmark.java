@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.util.TestRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the processor end to end on the mock framework: one generated FlowFile per invocation
+ * through parsing, the column transforms and the selected output format.
+ *
+ * The score is FlowFiles per second, multiply by {@code rows} for records per second. Running with
+ * {@code -prof gc} reports {@code gc.alloc.rate.norm}, the bytes allocated per FlowFile, divide it by
+ * {@code rows} for the allocation per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    private static final int COLUMNS = 10;
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"CSV", "JSON", "XML"})
+    public String outputFormat;
+
+    @Param({"none", "mask", "encrypt", "tokenize"})
+    public String transform;
+
+    private byte[] content;
+    private TestRunner runner;
+    private boolean initialize;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        content = CsvGenerator.generate(rows, COLUMNS, 0.1, 42);
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(ParseCSV.OUTPUT_FORMAT, outputFormat);
+        Benchmarks.transform(properties, transform, COLUMNS);
+        runner = Benchmarks.runner(properties);
+        initialize = true;
+    }
+
+    @Benchmark
+    public void parse() {
+        runner.enqueue(content);
+        // schedules the processor on the first invocation only, it stays scheduled until tear down
+        runner.run(1, false, initialize);
+        initialize = false;
+        runner.clearTransferState();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runner.run(1, true, false);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes token rows in each of the tokenized output formats.
+ *
+ * The score is token rows per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizeBenchmark {
+
+    private static final int ROWS = 1000;
+
+    @Param({TokenizedWriter.PHOENIX, TokenizedWriter.MYSQL, TokenizedWriter.ORACLE, TokenizedWriter.MSSQL,
+            TokenizedWriter.JSON, TokenizedWriter.XML, TokenizedWriter.CSV})
+    public String store;
+
+    private String[] identifiers;
+    private String[] sources;
+    private String[] masked;
+
+    @Setup
+    public void setup() {
+        identifiers = CsvGenerator.values(ROWS, 8, 1);
+        sources = CsvGenerator.values(ROWS, 16, 2);
+        masked = CsvGenerator.values(ROWS, 16, 3);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long write() throws IOException {
+        final TokenizedWriter writer = new TokenizedWriter(Benchmarks.NULL_OUTPUT, store, "tokens", 100);
+        for (int r = 0; r < ROWS; r++) {
+            writer.write("column2", identifiers[r], masked[r], sources[r]);
+        }
+        return writer.finish();
+    }
+}
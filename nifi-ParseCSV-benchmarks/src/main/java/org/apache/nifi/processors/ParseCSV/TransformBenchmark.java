@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transforms single values: random and deterministic masking and AES encryption, one value at a
+ * time and as a batch of one column.
+ *
+ * The score is values per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+
+    private static final int VALUES = 100;
+
+    @Param({"8", "64"})
+    public int valueLength;
+
+    private String[] values;
+    private String[][] rows;
+    private MaskEngine random;
+    private MaskEngine deterministic;
+    private CipherEngine cipher;
+    private int next;
+
+    @Setup
+    public void setup() {
+        values = CsvGenerator.values(VALUES, valueLength, 42);
+        rows = new String[VALUES][1];
+        random = MaskEngine.random();
+        deterministic = MaskEngine.deterministic(Benchmarks.ENCRYPTION_KEY);
+        cipher = new CipherEngine(Benchmarks.ENCRYPTION_KEY);
+    }
+
+    private String value() {
+        final String value = values[next];
+        next = next + 1 == VALUES ? 0 : next + 1;
+        return value;
+    }
+
+    @Benchmark
+    public String maskRandom() {
+        return random.mask(value());
+    }
+
+    @Benchmark
+    public String maskDeterministic() {
+        return deterministic.mask(value());
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return cipher.encrypt(value());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void encryptColumn(final Blackhole blackhole) {
+        for (int r = 0; r < VALUES; r++) {
+            rows[r][0] = values[r];
+        }
+        cipher.encryptColumn(rows, VALUES, 0);
+        blackhole.consume(rows);
+    }
+}
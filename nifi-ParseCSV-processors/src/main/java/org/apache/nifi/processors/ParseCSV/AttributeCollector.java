@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the record attributes of one FlowFile while it is parsed.
+ *
+ * Attributes are named {@code column.recordNumber} and taken from all records, the first records
+ * or the last record, optionally limited to a set of columns. The total length of attribute names
+ * and values is capped while streaming: once the next attribute would exceed the cap no more are
+ * added and the FlowFile is flagged with {@link #TRUNCATED}.
+ */
+final class AttributeCollector {
+
+    static final String ALL_RECORDS = "All Records";
+    static final String FIRST_RECORDS = "First Records";
+    static final String LAST_RECORD = "Last Record";
+
+    static final String TRUNCATED = "csv.attributes.truncated";
+
+    private final ParsePlan plan;
+    private final boolean last;
+    private final long maxRecords;
+
+    private Map<String, String> attributes;
+    private long size;
+    private long records;
+    private boolean truncated;
+
+    // selected columns of the last seen header
+    private String[] header;
+    private int[] selected;
+
+    // values of the last record, only kept in last record mode
+    private String[] lastValues;
+    private long lastRecord;
+
+    AttributeCollector(final ParsePlan plan) {
+        this.plan = plan;
+        this.last = LAST_RECORD.equals(plan.attributeRecords);
+        this.maxRecords = FIRST_RECORDS.equals(plan.attributeRecords) ? plan.attributeRecordCount : Long.MAX_VALUE;
+    }
+
+    /**
+     * Starts collecting the attributes of the next FlowFile.
+     */
+    void reset() {
+        attributes = new LinkedHashMap<>();
+        size = 0;
+        records = 0;
+        truncated = false;
+        lastValues = null;
+    }
+
+    /**
+     * Returns the indexes of the header columns to extract from the next record, or null when the
+     * record does not contribute attributes.
+     */
+    int[] select(final String[] inputHeader) {
+        if (truncated || records >= maxRecords) {
+            return null;
+        }
+        if (inputHeader != header) {
+            header = inputHeader;
+            selected = columns(inputHeader, plan.attributeColumns);
+        }
+        if (last && (lastValues == null || lastValues.length != inputHeader.length)) {
+            lastValues = new String[inputHeader.length];
+        }
+        records++;
+        return selected;
+    }
+
+    /**
+     * Adds the value of a selected column of the current record.
+     */
+    void put(final int column, final long recordNumber, final String value) {
+        if (last) {
+            lastValues[column] = value;
+            lastRecord = recordNumber;
+        } else {
+            add(header[column], recordNumber, value);
+        }
+    }
+
+    /**
+     * @return the attributes of the FlowFile
+     */
+    Map<String, String> finish() {
+        if (last && lastValues != null) {
+            for (final int column : selected) {
+                add(header[column], lastRecord, lastValues[column]);
+            }
+        }
+        if (truncated) {
+            attributes.put(TRUNCATED, "true");
+        }
+        return attributes;
+    }
+
+    private void add(final String column, final long recordNumber, final String value) {
+        if (truncated) {
+            return;
+        }
+        final String name = column + "." + recordNumber;
+        final long length = name.length() + value.length();
+        if (size + length > plan.maxAttributeSize) {
+            truncated = true;
+            return;
+        }
+        size += length;
+        attributes.put(name, value);
+    }
+
+    private static int[] columns(final String[] header, final Set<String> columns) {
+        if (columns == null) {
+            final int[] all = new int[header.length];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        final int[] selected = new int[columns.size()];
+        int n = 0;
+        for (int i = 0; i < header.length; i++) {
+            if (columns.contains(header[i])) {
+                selected[n++] = i;
+            }
+        }
+        if (n < selected.length) {
+            throw new ProcessException("Attribute columns " + columns + " do not all exist in header "
+                    + Arrays.toString(header));
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream that compresses independent blocks in parallel.
+ *
+ * Every block becomes a complete gzip member with its own header and trailer, the members are written
+ * in order and together form a standard multi-member gzip stream that gunzip and
+ * {@link java.util.zip.GZIPInputStream} read as one. Blocks do not share a dictionary, which costs a
+ * little compression ratio at the start of each block. At most {@code maxInFlight} blocks are buffered
+ * or being compressed at a time, which bounds memory regardless of the content size.
+ */
+final class BlockGzipOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final OutputStream out;
+    private final ExecutorService pool;
+    private final int level;
+    private final int maxInFlight;
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int length;
+    private boolean written;
+    private boolean closed;
+
+    BlockGzipOutputStream(final OutputStream out, final ExecutorService pool, final int level,
+                          final int maxInFlight) {
+        this.out = out;
+        this.pool = pool;
+        this.level = level;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == block.length) {
+            submit();
+        }
+        block[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (length == block.length) {
+                submit();
+            }
+            final int n = Math.min(len, block.length - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Only flushes the members that are already compressed, a partial block would end up as a member
+     * of its own.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!inFlight.isEmpty() && inFlight.peekFirst().isDone()) {
+            writeMember(inFlight.removeFirst());
+        }
+        out.flush();
+    }
+
+    /**
+     * Compresses the last block and writes all members, the underlying stream is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // empty content still has to be a valid gzip stream
+            if (length > 0 || !written) {
+                submit();
+            }
+            while (!inFlight.isEmpty()) {
+                writeMember(inFlight.removeFirst());
+            }
+            out.flush();
+        } finally {
+            for (final Future<byte[]> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void submit() throws IOException {
+        inFlight.addLast(pool.submit(new Member(block, length, level)));
+        written = true;
+        block = new byte[BLOCK_SIZE];
+        length = 0;
+        while (inFlight.size() >= maxInFlight) {
+            writeMember(inFlight.removeFirst());
+        }
+    }
+
+    private void writeMember(final Future<byte[]> future) throws IOException {
+        final byte[] member;
+        try {
+            member = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException(e);
+        } catch (ExecutionException e) {
+            throw new ProcessException(e.getCause());
+        }
+        out.write(member);
+    }
+
+    /**
+     * Compresses one block into a complete gzip member.
+     */
+    private static final class Member implements Callable<byte[]> {
+        private final byte[] block;
+        private final int length;
+        private final int level;
+
+        private Member(byte[] block, int length, int level) {
+            this.block = block;
+            this.length = length;
+            this.level = level;
+        }
+
+        @Override
+        public byte[] call() {
+            final ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+            member.write(HEADER, 0, HEADER.length);
+
+            final Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(block, 0, length);
+                deflater.finish();
+                final byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    member.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } finally {
+                deflater.end();
+            }
+
+            final CRC32 crc = new CRC32();
+            crc.update(block, 0, length);
+            writeInt(member, (int) crc.getValue());
+            writeInt(member, length);
+            return member.toByteArray();
+        }
+
+        private static void writeInt(final ByteArrayOutputStream out, final int value) {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+}
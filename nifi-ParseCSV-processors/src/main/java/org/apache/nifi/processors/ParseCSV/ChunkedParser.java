@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses large FlowFiles in parallel.
+ *
+ * The content is read in chunks that end on a record boundary, found with a quote aware scan that
+ * also counts the records of the chunk so every chunk knows the number of its first record up front.
+ * Chunks are parsed and transformed on a bounded fork-join pool shared by all concurrent tasks and
+ * written back in their original order. At most two chunks per pool thread are in flight, which
+ * bounds memory regardless of the FlowFile size.
+ */
+final class ChunkedParser {
+
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int QUOTE_IN_QUOTED = 3;
+
+    private final ParsePlan plan;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final byte delimiter;
+    private final int quote;
+    private final boolean ignoreEmptyLines;
+
+    ChunkedParser(final ParsePlan plan, final int threads, final int chunkSize) {
+        this.plan = plan;
+        this.pool = new ForkJoinPool(threads);
+        this.chunkSize = chunkSize;
+        this.maxInFlight = threads * 2;
+        this.delimiter = (byte) plan.printFormat.getDelimiter();
+        final Character quoteCharacter = plan.printFormat.getQuoteCharacter();
+        this.quote = quoteCharacter == null ? -1 : quoteCharacter;
+        this.ignoreEmptyLines = plan.printFormat.getIgnoreEmptyLines();
+    }
+
+    /**
+     * Chunking relies on finding record boundaries without parsing, which rules out escape characters,
+     * non ASCII delimiters, charsets that are not ASCII compatible and output formats that are a single
+     * document. Chunks are written as a whole,
+     * so split output and filtered records that are routed are parsed serially as well. Duplicates are
+     * only dropped in record order when parsed serially, which keeps the first of them, and bad records
+     * are reported by line, which only the serial parsers count. The column profile is kept by a single
+     * thread, and partitions are written record by record. Fixed width and multi character delimited
+     * content is only read by the byte level parser.
+     */
+    static boolean supports(final ParsePlan plan) {
+        final CSVFormat format = plan.printFormat;
+        final Character quoteCharacter = format.getQuoteCharacter();
+        return plan.outputFormat == ParsePlan.OUTPUT_CSV
+                && plan.inputLayout == ParsePlan.INPUT_CSV
+                && !plan.createAttributes
+                && !plan.splits
+                && !plan.routesFiltered
+                && plan.duplicates == null
+                && !plan.quarantines
+                && !plan.profiles
+                && plan.partitions == 0
+                && !format.isEscapeCharacterSet()
+                && format.getDelimiter() < 128
+                && (quoteCharacter == null || quoteCharacter < 128)
+                && FastCsvParser.ASCII_COMPATIBLE.contains(Charset.defaultCharset());
+    }
+
+    void shutdown() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param metrics receives the stage timings and counters of all chunks, null when not instrumented
+     */
+    void process(final InputStream in, final OutputStream out, final TokenizedWriter tokenizedWriter,
+                 final StageMetrics metrics) throws IOException {
+        final Charset charset = Charset.defaultCharset();
+        final long[] records = new long[1];
+
+        byte[] buffer = new byte[chunkSize];
+        int length = fill(in, buffer, 0);
+        boolean eof = length < buffer.length;
+        int start = 0;
+
+        // parse the header record on its own, the chunks are parsed without one
+        final String[] header;
+        long recordNumber = 1;
+        if (plan.withHeader) {
+            start = boundary(buffer, 0, length, eof, 1, records);
+            while (records[0] == 0 && !eof) {
+                buffer = grow(buffer, 0, length);
+                length += fill(in, buffer, length);
+                eof = length < buffer.length;
+                start = boundary(buffer, 0, length, eof, 1, records);
+            }
+            final CSVParser headerParser = new CSVParser(new InputStreamReader(
+                    new ByteArrayInputStream(buffer, 0, start), charset), plan.parseFormat);
+            header = plan.inputHeader(headerParser);
+            recordNumber++;
+        } else {
+            header = plan.customHeader;
+        }
+
+        final ParsePlan.Columns columns = header == null ? null : plan.columnsFor(header);
+        if (columns != null) {
+            final RecordWriter writer = RecordWriter.create(plan, out);
+            writer.begin(columns.outputHeader, true);
+            writer.finish();
+        }
+
+        final Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        try {
+            while (true) {
+                final int end = boundary(buffer, start, length, eof, Long.MAX_VALUE, records);
+                if (end > start) {
+                    inFlight.addLast(pool.submit(new ChunkTask(columns, buffer, start, end - start, recordNumber,
+                            metrics != null)));
+                    recordNumber += records[0];
+                    while (inFlight.size() >= maxInFlight) {
+                        write(inFlight.removeFirst(), out, tokenizedWriter, metrics);
+                    }
+                }
+                if (eof) {
+                    break;
+                }
+
+                // carry the incomplete trailing record over into the next chunk
+                final int remaining = length - end;
+                final byte[] next = new byte[Math.max(chunkSize, remaining * 2)];
+                System.arraycopy(buffer, end, next, 0, remaining);
+                buffer = next;
+                length = remaining + fill(in, buffer, remaining);
+                eof = length < buffer.length;
+                start = 0;
+            }
+            while (!inFlight.isEmpty()) {
+                write(inFlight.removeFirst(), out, tokenizedWriter, metrics);
+            }
+        } finally {
+            for (final Future<Chunk> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void write(final Future<Chunk> future, final OutputStream out, final TokenizedWriter tokenizedWriter,
+                       final StageMetrics metrics) throws IOException {
+        final Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new ProcessException(e.getCause());
+        }
+        chunk.output.writeTo(out);
+        if (chunk.tokens != null) {
+            chunk.tokens.replay(tokenizedWriter);
+        }
+        if (metrics != null) {
+            metrics.add(chunk.metrics);
+        }
+    }
+
+    /**
+     * Returns the offset just past the last complete record in {@code [from, to)}, or past the first
+     * {@code limit} records, and stores the number of records in {@code records[0]}. At the end of the
+     * content a trailing record without a line break is complete as well.
+     */
+    int boundary(final byte[] buffer, final int from, final int to, final boolean eof, final long limit,
+                 final long[] records) {
+        int state = FIELD_START;
+        boolean content = false;
+        int boundary = from;
+        long count = 0;
+
+        for (int i = from; i < to && count < limit; i++) {
+            final byte b = buffer[i];
+            switch (state) {
+                case QUOTED:
+                    if (b == quote) {
+                        state = QUOTE_IN_QUOTED;
+                    }
+                    continue;
+                case QUOTE_IN_QUOTED:
+                    if (b == quote) {
+                        state = QUOTED;
+                        continue;
+                    }
+                    break;
+                case FIELD_START:
+                    if (b == quote) {
+                        state = QUOTED;
+                        content = true;
+                        continue;
+                    }
+                    break;
+            }
+
+            if (b == '\n') {
+                if (content || !ignoreEmptyLines) {
+                    count++;
+                }
+                boundary = i + 1;
+                content = false;
+                state = FIELD_START;
+            } else if (b == delimiter) {
+                content = true;
+                state = FIELD_START;
+            } else if (b != '\r') {
+                content = true;
+                state = UNQUOTED;
+            }
+        }
+
+        if (eof && count < limit && boundary < to) {
+            if (content || state == QUOTED || state == QUOTE_IN_QUOTED) {
+                count++;
+            }
+            boundary = to;
+        }
+        records[0] = count;
+        return boundary;
+    }
+
+    private static int fill(final InputStream in, final byte[] buffer, final int offset) throws IOException {
+        int read = offset;
+        int n;
+        while (read < buffer.length && (n = in.read(buffer, read, buffer.length - read)) != -1) {
+            read += n;
+        }
+        return read - offset;
+    }
+
+    private static byte[] grow(final byte[] buffer, final int from, final int length) {
+        final byte[] next = new byte[buffer.length * 2];
+        System.arraycopy(buffer, from, next, 0, length - from);
+        return next;
+    }
+
+    private static final class Chunk {
+        private final ByteArrayOutputStream output;
+        private final ParsePlan.TokenBuffer tokens;
+        private final StageMetrics metrics;
+
+        private Chunk(ByteArrayOutputStream output, ParsePlan.TokenBuffer tokens, StageMetrics metrics) {
+            this.output = output;
+            this.tokens = tokens;
+            this.metrics = metrics;
+        }
+    }
+
+    private final class ChunkTask implements Callable<Chunk> {
+        private final ParsePlan.Columns boundColumns;
+        private final byte[] buffer;
+        private final int offset;
+        private final int length;
+        private final long firstRecord;
+        private final boolean instrumented;
+
+        private ChunkTask(ParsePlan.Columns columns, byte[] buffer, int offset, int length, long firstRecord,
+                          boolean instrumented) {
+            this.boundColumns = columns;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.firstRecord = firstRecord;
+            this.instrumented = instrumented;
+        }
+
+        @Override
+        public Chunk call() throws IOException {
+            final Charset charset = Charset.defaultCharset();
+            final CSVParser csvParser = new CSVParser(new InputStreamReader(
+                    new ByteArrayInputStream(buffer, offset, length), charset), plan.printFormat);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(length + length / 4);
+            final RecordWriter writer = RecordWriter.create(plan, output);
+            final ParsePlan.TokenBuffer tokens = plan.tokenizes ? new ParsePlan.TokenBuffer() : null;
+            final StageMetrics metrics = instrumented ? new StageMetrics() : null;
+
+            ParsePlan.Columns columns = boundColumns;
+            String[] values = columns == null ? null : new String[columns.width()];
+            final String[] filterValues = plan.filter == null ? null : new String[plan.filter.columns().length];
+            long recordNumber = firstRecord;
+            final Iterator<CSVRecord> records = csvParser.iterator();
+            while (true) {
+                final boolean sampled = metrics != null && metrics.sampling();
+                long start = sampled ? System.nanoTime() : 0;
+                if (!records.hasNext()) {
+                    break;
+                }
+                final CSVRecord record = records.next();
+                if (sampled) {
+                    metrics.sampled(StageMetrics.PARSE, start);
+                }
+                if (columns == null) {
+                    columns = plan.columnsFor(ParsePlan.positionalHeader(record.size()));
+                    values = new String[columns.width()];
+                }
+                if (filterValues != null && !plan.accept(columns, record, filterValues)) {
+                    recordNumber++;
+                    if (metrics != null) {
+                        metrics.recordFiltered(sampled);
+                    }
+                    continue;
+                }
+                plan.transform(columns, record, recordNumber++, values, false, tokens, sampled ? metrics : null);
+                start = sampled ? System.nanoTime() : 0;
+                writer.write(values);
+                if (sampled) {
+                    metrics.sampled(StageMetrics.SERIALIZE, start);
+                }
+                if (metrics != null) {
+                    metrics.recordRead(columns, sampled);
+                    metrics.recordsWritten(1);
+                }
+            }
+            writer.finish();
+            return new Chunk(output, tokens, metrics);
+        }
+    }
+}
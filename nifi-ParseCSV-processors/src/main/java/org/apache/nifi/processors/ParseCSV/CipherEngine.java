@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * AES/CBC column encryption with thread confined, cached cipher instances.
+ *
+ * The key is supplied once per schedule. Each thread looks up its {@link Cipher} once and keeps
+ * reusable plain text, cipher text and Base64 buffers, so encrypting a cell costs an init with a
+ * fresh IV and the AES work itself. Values are written as Base64 of the IV followed by the cipher
+ * text so they can be decrypted again, which reuses the same buffers and a second cached cipher.
+ */
+final class CipherEngine {
+
+    static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    static final int IV_LENGTH = 16;
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_VALUES[BASE64[i]] = (byte) i;
+        }
+    }
+
+    private final SecretKeySpec key;
+
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    CipherEngine(final String key) {
+        this.key = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "AES");
+        // fail at schedule time rather than on the first encrypted cell
+        state.get();
+    }
+
+    static boolean isValidKeyLength(final String key) {
+        final int length = key.getBytes(StandardCharsets.UTF_8).length;
+        return length == 16 || length == 24 || length == 32;
+    }
+
+    String encrypt(final String value) {
+        return state.get().encrypt(value);
+    }
+
+    /**
+     * Reverses {@link #encrypt(String)}.
+     *
+     * @throws ProcessException when the value was not encrypted with this key
+     */
+    String decrypt(final String value) {
+        return state.get().decrypt(value);
+    }
+
+    /**
+     * Encrypts one column of a chunk of rows in place. The IVs of the whole chunk are drawn from the random
+     * generator at once instead of once per value, the values then go through the calling thread's buffers.
+     */
+    void encryptColumn(final String[][] rows, final int count, final int column) {
+        state.get().encryptColumn(rows, count, column);
+    }
+
+    private final class State {
+        private final Cipher cipher;
+        private final SecureRandom random;
+        private final byte[] iv = new byte[IV_LENGTH];
+        private byte[] chunkIvs = new byte[0];
+        private byte[] plain = new byte[256];
+        private byte[] sealed = new byte[IV_LENGTH + 272];
+        private char[] encoded = new char[4 * ((IV_LENGTH + 272 + 2) / 3)];
+        private byte[] decoded = new byte[IV_LENGTH + 272];
+        private Cipher decipher;
+
+        private State() {
+            try {
+                cipher = Cipher.getInstance(TRANSFORMATION);
+                random = SecureRandom.getInstance("SHA1PRNG");
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            } catch (GeneralSecurityException e) {
+                throw new ProcessException("Unable to initialize " + TRANSFORMATION + " cipher", e);
+            }
+        }
+
+        private String encrypt(final String value) {
+            random.nextBytes(iv);
+            return seal(value, iv, 0);
+        }
+
+        private void encryptColumn(final String[][] rows, final int count, final int column) {
+            // the last chunk of a FlowFile is usually shorter, the generator fills the whole array
+            if (chunkIvs.length != count * IV_LENGTH) {
+                chunkIvs = new byte[count * IV_LENGTH];
+            }
+            random.nextBytes(chunkIvs);
+            for (int r = 0; r < count; r++) {
+                rows[r][column] = seal(rows[r][column], chunkIvs, r * IV_LENGTH);
+            }
+        }
+
+        private String seal(final String value, final byte[] ivs, final int offset) {
+            final int length = encode(value);
+            final int sealedLength = IV_LENGTH + cipher.getOutputSize(length);
+            if (sealed.length < sealedLength) {
+                sealed = new byte[sealedLength];
+                encoded = new char[4 * ((sealedLength + 2) / 3)];
+            }
+
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ivs, offset, IV_LENGTH));
+                System.arraycopy(ivs, offset, sealed, 0, IV_LENGTH);
+                final int written = IV_LENGTH + cipher.doFinal(plain, 0, length, sealed, IV_LENGTH);
+                return new String(encoded, 0, base64(sealed, written, encoded));
+            } catch (GeneralSecurityException e) {
+                throw new ProcessException("Unable to encrypt value", e);
+            }
+        }
+
+        private String decrypt(final String value) {
+            final int maxLength = value.length() / 4 * 3;
+            if (decoded.length < maxLength) {
+                decoded = new byte[maxLength];
+            }
+            final int length = unbase64(value, decoded);
+            if (length < 2 * IV_LENGTH) {
+                throw new ProcessException("Unable to decrypt value, it is not an encrypted value");
+            }
+            if (plain.length < length) {
+                plain = new byte[length];
+            }
+
+            try {
+                if (decipher == null) {
+                    decipher = Cipher.getInstance(TRANSFORMATION);
+                }
+                decipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(decoded, 0, IV_LENGTH));
+                final int written = decipher.doFinal(decoded, IV_LENGTH, length - IV_LENGTH, plain, 0);
+                return new String(plain, 0, written, StandardCharsets.UTF_8);
+            } catch (GeneralSecurityException e) {
+                throw new ProcessException("Unable to decrypt value", e);
+            }
+        }
+
+        // UTF-8 encode into the reusable plain text buffer, ASCII is copied without a temporary array
+        private int encode(final String value) {
+            final int length = value.length();
+            if (plain.length < length) {
+                plain = new byte[Math.max(length, plain.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c >= 0x80) {
+                    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    if (plain.length < bytes.length) {
+                        plain = new byte[bytes.length];
+                    }
+                    System.arraycopy(bytes, 0, plain, 0, bytes.length);
+                    return bytes.length;
+                }
+                plain[i] = (byte) c;
+            }
+            return length;
+        }
+    }
+
+    // returns the decoded length, -1 when the value is not Base64
+    private static int unbase64(final String in, final byte[] out) {
+        final int length = in.length();
+        if (length % 4 != 0) {
+            return -1;
+        }
+        int o = 0;
+        for (int i = 0; i < length; i += 4) {
+            int b = 0;
+            int padding = 0;
+            for (int j = 0; j < 4; j++) {
+                final char c = in.charAt(i + j);
+                final int value;
+                if (c == '=' && i + 4 == length && j >= 2) {
+                    value = 0;
+                    padding++;
+                } else if (c >= 128 || (value = BASE64_VALUES[c]) < 0 || padding > 0) {
+                    return -1;
+                }
+                b = b << 6 | value;
+            }
+            out[o++] = (byte) (b >>> 16);
+            if (padding < 2) {
+                out[o++] = (byte) (b >>> 8);
+            }
+            if (padding < 1) {
+                out[o++] = (byte) b;
+            }
+        }
+        return o;
+    }
+
+    private static int base64(final byte[] in, final int length, final char[] out) {
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            final int b = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff);
+            out[o++] = BASE64[b >>> 18];
+            out[o++] = BASE64[(b >>> 12) & 0x3f];
+            out[o++] = BASE64[(b >>> 6) & 0x3f];
+            out[o++] = BASE64[b & 0x3f];
+        }
+        if (i < length) {
+            final int b = (in[i] & 0xff) << 16 | (i + 1 < length ? (in[i + 1] & 0xff) << 8 : 0);
+            out[o++] = BASE64[b >>> 18];
+            out[o++] = BASE64[(b >>> 12) & 0x3f];
+            out[o++] = i + 1 < length ? BASE64[(b >>> 6) & 0x3f] : '=';
+            out[o++] = '=';
+        }
+        return o;
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Profiles the columns of one FlowFile while its records are parsed.
+ *
+ * Every profiled column counts its values, empty values and value lengths, keeps minimum, maximum and
+ * mean of the values that are numbers, estimates its number of distinct values with a HyperLogLog of
+ * 2^{@value #PRECISION} registers and its most frequent values with a Space-Saving summary of a fixed
+ * number of counters. Memory is fixed per column whatever the number of records. Masked, encrypted
+ * and tokenized columns are only counted, measured and estimated, none of their values or numeric
+ * bounds is reported.
+ */
+final class ColumnProfiler {
+
+    static final String OFF = "Off";
+    static final String ATTRIBUTES = "Attributes";
+    static final String JSON = "JSON";
+
+    static final String RECORDS = "parsecsv.profile.records";
+    static final String PREFIX = "parsecsv.profile.";
+
+    // 4096 registers, a standard error of about 1.6 percent
+    private static final int PRECISION = 12;
+    // counters of the Space-Saving summary per reported top value
+    private static final int COUNTERS_PER_VALUE = 8;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final int topValues;
+    private ParsePlan.Columns columns;
+    private Profile[] profiles;
+    private boolean bound;
+    private long records;
+
+    /**
+     * @param topValues number of most frequent values reported per column, 0 for none
+     */
+    ColumnProfiler(final int topValues) {
+        this.topValues = topValues;
+    }
+
+    void reset() {
+        records = 0;
+        bound = false;
+    }
+
+    void add(final ParsePlan.Columns columns, final CSVRecord record) {
+        bind(columns);
+        records++;
+        final int[] fields = columns.profile;
+        for (int i = 0; i < fields.length; i++) {
+            profiles[i].add(fields[i] < record.size() ? record.get(fields[i]) : null);
+        }
+    }
+
+    /**
+     * Profiles one record of the byte level parser, only the profiled fields are decoded.
+     */
+    void add(final ParsePlan.Columns columns, final FastCsvParser record) {
+        bind(columns);
+        records++;
+        final int[] fields = columns.profile;
+        for (int i = 0; i < fields.length; i++) {
+            profiles[i].add(fields[i] < record.size() ? record.get(fields[i]) : null);
+        }
+    }
+
+    /**
+     * Profiles one record read ahead by the pipelined parser.
+     */
+    void add(final ParsePlan.Columns columns, final String[] record) {
+        bind(columns);
+        records++;
+        final int[] fields = columns.profile;
+        for (int i = 0; i < fields.length; i++) {
+            profiles[i].add(fields[i] < record.length ? record[fields[i]] : null);
+        }
+    }
+
+    // the sketches of the previous FlowFile are cleared and reused when its header was the same
+    private void bind(final ParsePlan.Columns columns) {
+        if (bound) {
+            return;
+        }
+        if (columns != this.columns) {
+            final boolean[] hidden = new boolean[columns.inputHeader.length];
+            for (int i = 0; i < columns.source.length; i++) {
+                if (columns.actions[i] != ParsePlan.PASS) {
+                    hidden[columns.source[i]] = true;
+                }
+            }
+            profiles = new Profile[columns.profile.length];
+            for (int i = 0; i < profiles.length; i++) {
+                final int field = columns.profile[i];
+                profiles[i] = new Profile(columns.inputHeader[field], hidden[field], topValues);
+            }
+            this.columns = columns;
+        } else {
+            for (final Profile profile : profiles) {
+                profile.reset();
+            }
+        }
+        bound = true;
+    }
+
+    /**
+     * The profile as attributes, the top values of a column as a compact JSON array.
+     */
+    Map<String, String> attributes() {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(RECORDS, String.valueOf(records));
+        if (!bound) {
+            return attributes;
+        }
+        for (final Profile profile : profiles) {
+            for (final Map.Entry<String, Object> statistic : profile.statistics().entrySet()) {
+                attributes.put(PREFIX + profile.name + "." + statistic.getKey(),
+                        String.valueOf(statistic.getValue()));
+            }
+            if (profile.top != null) {
+                final StringWriter top = new StringWriter();
+                try (final JsonGenerator generator = JSON_FACTORY.createGenerator(top)) {
+                    profile.top.write(generator, false);
+                } catch (IOException e) {
+                    throw new ProcessException("Unable to write top values of " + profile.name, e);
+                }
+                attributes.put(PREFIX + profile.name + ".top", top.toString());
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Writes the profile as one JSON document, the stream is left open.
+     */
+    void write(final OutputStream out) throws IOException {
+        final JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.writeStartObject();
+        generator.writeNumberField("records", records);
+        generator.writeObjectFieldStart("columns");
+        if (bound) {
+            for (final Profile profile : profiles) {
+                generator.writeObjectFieldStart(profile.name);
+                for (final Map.Entry<String, Object> statistic : profile.statistics().entrySet()) {
+                    generator.writeFieldName(statistic.getKey());
+                    if (statistic.getValue() instanceof Long) {
+                        generator.writeNumber((Long) statistic.getValue());
+                    } else {
+                        generator.writeNumber((Double) statistic.getValue());
+                    }
+                }
+                if (profile.top != null) {
+                    generator.writeFieldName("top");
+                    profile.top.write(generator, true);
+                }
+                generator.writeEndObject();
+            }
+        }
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    /**
+     * Statistics and sketches of one column.
+     */
+    private static final class Profile {
+        private final String name;
+        private final boolean hidden;
+        private final byte[] registers = new byte[1 << PRECISION];
+        private final TopValues top;
+        private long count;
+        private long empty;
+        private int minLength;
+        private int maxLength;
+        private long numbers;
+        private double min;
+        private double max;
+        private double sum;
+
+        private Profile(final String name, final boolean hidden, final int topValues) {
+            this.name = name;
+            this.hidden = hidden;
+            this.top = hidden || topValues == 0 ? null : new TopValues(topValues);
+            reset();
+        }
+
+        private void reset() {
+            Arrays.fill(registers, (byte) 0);
+            if (top != null) {
+                top.reset();
+            }
+            count = empty = numbers = 0;
+            minLength = Integer.MAX_VALUE;
+            maxLength = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            sum = 0;
+        }
+
+        private void add(final String value) {
+            count++;
+            if (value == null || value.isEmpty()) {
+                empty++;
+                return;
+            }
+            minLength = Math.min(minLength, value.length());
+            maxLength = Math.max(maxLength, value.length());
+
+            final long hash = DuplicateFilter.mix(DuplicateFilter.hash(DuplicateFilter.hash(), value));
+            final int register = (int) (hash >>> (64 - PRECISION));
+            final int rank = Math.min(Long.numberOfLeadingZeros(hash << PRECISION), 64 - PRECISION) + 1;
+            if (rank > registers[register]) {
+                registers[register] = (byte) rank;
+            }
+
+            if (top != null) {
+                top.add(value);
+            }
+            if (!hidden) {
+                // only values that start like a number are parsed
+                final char first = value.charAt(0);
+                if ((first >= '0' && first <= '9') || first == '-' || first == '+' || first == '.') {
+                    try {
+                        final double number = Double.parseDouble(value);
+                        if (!Double.isInfinite(number) && !Double.isNaN(number)) {
+                            numbers++;
+                            min = Math.min(min, number);
+                            max = Math.max(max, number);
+                            sum += number;
+                        }
+                    } catch (NumberFormatException e) {
+                        // not a number
+                    }
+                }
+            }
+        }
+
+        private long distinct() {
+            final int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (final byte register : registers) {
+                sum += Math.scalb(1.0, -register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+            // linear counting is more accurate while many registers are still empty
+            if (estimate <= 2.5 * m && zeros > 0) {
+                estimate = m * Math.log((double) m / zeros);
+            }
+            return Math.round(estimate);
+        }
+
+        private Map<String, Object> statistics() {
+            final Map<String, Object> statistics = new LinkedHashMap<>();
+            statistics.put("count", count);
+            statistics.put("empty", empty);
+            if (count > empty) {
+                statistics.put("length.min", (long) minLength);
+                statistics.put("length.max", (long) maxLength);
+            }
+            statistics.put("distinct", distinct());
+            if (!hidden) {
+                statistics.put("numbers", numbers);
+                if (numbers > 0) {
+                    statistics.put("min", number(min));
+                    statistics.put("max", number(max));
+                    statistics.put("mean", sum / numbers);
+                }
+            }
+            return statistics;
+        }
+
+        private static Object number(final double value) {
+            return value == Math.rint(value) && Math.abs(value) < 1e15 ? (Object) (long) value : (Object) value;
+        }
+    }
+
+    /**
+     * Space-Saving summary: a fixed number of counters kept in a min-heap by count. A value without a
+     * counter takes over the smallest one, whose count becomes the value's possible overestimation.
+     */
+    private static final class TopValues {
+        private final int reported;
+        private final Counter[] heap;
+        private final Map<String, Counter> counters;
+        private int size;
+
+        private TopValues(final int reported) {
+            this.reported = reported;
+            this.heap = new Counter[reported * COUNTERS_PER_VALUE];
+            this.counters = new HashMap<>(heap.length * 2);
+        }
+
+        private void reset() {
+            counters.clear();
+            size = 0;
+        }
+
+        private void add(final String value) {
+            Counter counter = counters.get(value);
+            if (counter != null) {
+                counter.count++;
+                down(counter.index);
+                return;
+            }
+            if (size < heap.length) {
+                counter = new Counter();
+                counter.value = value;
+                counter.count = 1;
+                counter.error = 0;
+                counter.index = size;
+                heap[size++] = counter;
+                counters.put(value, counter);
+                up(counter.index);
+                return;
+            }
+            counter = heap[0];
+            counters.remove(counter.value);
+            counter.value = value;
+            counter.error = counter.count;
+            counter.count++;
+            counters.put(value, counter);
+            down(0);
+        }
+
+        private void up(int index) {
+            while (index > 0) {
+                final int parent = (index - 1) / 2;
+                if (heap[parent].count <= heap[index].count) {
+                    return;
+                }
+                swap(index, parent);
+                index = parent;
+            }
+        }
+
+        private void down(int index) {
+            while (true) {
+                final int left = 2 * index + 1;
+                if (left >= size) {
+                    return;
+                }
+                final int right = left + 1;
+                final int smallest = right < size && heap[right].count < heap[left].count ? right : left;
+                if (heap[index].count <= heap[smallest].count) {
+                    return;
+                }
+                swap(index, smallest);
+                index = smallest;
+            }
+        }
+
+        private void swap(final int a, final int b) {
+            final Counter counter = heap[a];
+            heap[a] = heap[b];
+            heap[b] = counter;
+            heap[a].index = a;
+            heap[b].index = b;
+        }
+
+        /**
+         * Writes the most frequent values, most frequent first, as an array of value and count objects.
+         * Once all counters are taken only values that are certainly counted more often than any value
+         * without a counter are written, so columns without frequent values have no top values.
+         */
+        private void write(final JsonGenerator generator, final boolean withError) throws IOException {
+            final Counter[] sorted = Arrays.copyOf(heap, size);
+            Arrays.sort(sorted, new Comparator<Counter>() {
+                @Override
+                public int compare(Counter a, Counter b) {
+                    return a.count != b.count ? Long.compare(b.count, a.count) : a.value.compareTo(b.value);
+                }
+            });
+            final long floor = size == heap.length ? heap[0].count : 0;
+            generator.writeStartArray();
+            for (int i = 0; i < sorted.length && i < reported && sorted[i].count - sorted[i].error > floor; i++) {
+                generator.writeStartObject();
+                generator.writeStringField("value", sorted[i].value);
+                generator.writeNumberField("count", sorted[i].count);
+                if (withError) {
+                    generator.writeNumberField("error", sorted[i].error);
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static final class Counter {
+        private String value;
+        private long count;
+        private long error;
+        private int index;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Inline decompression of the input and compression of the output, so compressed content does not
+ * have to be expanded into the content repository before and after parsing.
+ */
+final class Compression {
+
+    static final String NONE = "None";
+    static final String AUTO_DETECT = "Auto Detect";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    static final String GZIP_MIME_TYPE = "application/gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Compression() {
+    }
+
+    /**
+     * Wraps the input in a decompressing stream, closing it leaves the input open. Auto detection only
+     * recognises gzip by its magic number, zlib headers are too likely to occur at the start of plain text.
+     *
+     * @param format None, Auto Detect, gzip or deflate, which is zlib wrapped like HTTP deflate
+     */
+    static InputStream decompress(final String format, final InputStream in) throws IOException {
+        switch (format) {
+            case GZIP:
+                return gunzip(in);
+            case DEFLATE:
+                return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+                    @Override
+                    public void close() {
+                        inf.end();
+                    }
+                };
+            case AUTO_DETECT:
+                final BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE) {
+                    @Override
+                    public void close() {
+                    }
+                };
+                buffered.mark(2);
+                final int first = buffered.read();
+                final int second = buffered.read();
+                buffered.reset();
+                return first == 0x1f && second == 0x8b ? gunzip(buffered) : buffered;
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Wraps the output in a gzip stream, which has to be closed to write the trailer and leaves the output
+     * open. With a pool the output is compressed in independent blocks on several threads.
+     *
+     * @param pool compresses blocks in parallel, null to compress on the calling thread
+     */
+    static OutputStream compress(final ParsePlan plan, final OutputStream out, final ExecutorService pool)
+            throws IOException {
+        if (!GZIP.equals(plan.outputCompression)) {
+            return out;
+        }
+        if (pool != null) {
+            return new BlockGzipOutputStream(out, pool, plan.compressionLevel, plan.compressionThreads * 2);
+        }
+        return gzip(out, plan.compressionLevel);
+    }
+
+    private static InputStream gunzip(final InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE) {
+            @Override
+            public void close() {
+                inf.end();
+            }
+        };
+    }
+
+    static OutputStream gzip(final OutputStream out, final int level) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            private boolean closed;
+
+            {
+                def.setLevel(level);
+            }
+
+            // like the block compressor, the trailer is written without closing the output
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                finish();
+                out.flush();
+                def.end();
+            }
+        };
+    }
+}
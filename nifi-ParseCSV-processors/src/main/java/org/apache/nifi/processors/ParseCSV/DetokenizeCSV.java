@@ -0,0 +1,331 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Tags({"csv", "detokenize", "decrypt", "tokenize", "mask"})
+@CapabilityDescription("Restores the columns ParseCSV tokenized or encrypted in one streaming pass. Tokens are " +
+        "looked up in a local memory mapped index of the tokenized mappings, built when the processor is scheduled " +
+        "and shared by all tasks. Encrypted values are decrypted with the key they were encrypted with.")
+@SeeAlso({ParseCSV.class})
+@WritesAttributes({
+        @WritesAttribute(attribute = DetokenizeCSV.UNRESOLVED, description = "Number of tokens that have no " +
+                "mapping and were left as they are")})
+@SupportsBatching
+public class DetokenizeCSV extends AbstractProcessor {
+
+    public static final String UNRESOLVED = "detokenize.unresolved";
+
+    public static final PropertyDescriptor COLUMN_DETOKENIZE = new PropertyDescriptor
+            .Builder().name("Column Detokenize")
+            .description("Comma separated tokenized columns to restore from the Token Mappings.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TOKEN_MAPPINGS = new PropertyDescriptor
+            .Builder().name("Token Mappings")
+            .description("Comma separated files or directories of tokenized mappings, as written by ParseCSV to " +
+                    "the tokenized relationship with CSV Tokenized Output. The files of a directory are all read. " +
+                    "The mappings are indexed once when the processor is scheduled.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TOKEN_INDEX_DIRECTORY = new PropertyDescriptor
+            .Builder().name("Token Index Directory")
+            .description("Local directory the index of the Token Mappings is built in, the temporary directory " +
+                    "when not set. The index is removed when the processor is stopped.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor COLUMN_DECRYPT = new PropertyDescriptor
+            .Builder().name("Column Decrypt")
+            .description("Comma separated encrypted columns to decrypt.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final Relationship RELATIONSHIP_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("FlowFiles with their columns restored")
+            .build();
+    public static final Relationship RELATIONSHIP_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("FlowFiles that are not valid CSV, miss a column or have a value that cannot be decrypted")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(ParseCSV.FORMAT);
+        descriptors.add(ParseCSV.DELIMITER);
+        descriptors.add(COLUMN_DETOKENIZE);
+        descriptors.add(TOKEN_MAPPINGS);
+        descriptors.add(TOKEN_INDEX_DIRECTORY);
+        descriptors.add(COLUMN_DECRYPT);
+        descriptors.add(ParseCSV.ENCRYPTION_KEY);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(RELATIONSHIP_SUCCESS);
+        relationships.add(RELATIONSHIP_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (context.getProperty(COLUMN_DETOKENIZE).getValue() != null
+                && context.getProperty(TOKEN_MAPPINGS).getValue() == null) {
+            results.add(new ValidationResult.Builder().subject(TOKEN_MAPPINGS.getName()).valid(false)
+                    .explanation(TOKEN_MAPPINGS.getName() + " is required when " + COLUMN_DETOKENIZE.getName()
+                            + " is set").build());
+        }
+        if (context.getProperty(COLUMN_DECRYPT).getValue() != null
+                && context.getProperty(ParseCSV.ENCRYPTION_KEY).getValue() == null) {
+            results.add(new ValidationResult.Builder().subject(ParseCSV.ENCRYPTION_KEY.getName()).valid(false)
+                    .explanation(ParseCSV.ENCRYPTION_KEY.getName() + " is required when " + COLUMN_DECRYPT.getName()
+                            + " is set").build());
+        }
+        return results;
+    }
+
+    private volatile CSVFormat parseFormat;
+    private volatile CSVFormat printFormat;
+    private volatile Set<String> detokenizeColumns;
+    private volatile Set<String> decryptColumns;
+    private volatile TokenIndex tokenIndex;
+    private volatile CipherEngine cipherEngine;
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        final String format = context.getProperty(ParseCSV.FORMAT).getValue();
+        // ParseCSV writes content read with a longer delimiter with the delimiter of the format
+        final String delimiter_value = ParsePlan.delimiter(context.getProperty(ParseCSV.DELIMITER).getValue());
+        final char delimiter = delimiter_value != null && delimiter_value.length() == 1 ? delimiter_value.charAt(0) : 0;
+        this.parseFormat = ParsePlan.buildFormat(format, delimiter, true, null);
+        this.printFormat = ParsePlan.buildFormat(format, delimiter, false, null);
+        this.detokenizeColumns = ParsePlan.toSet(context.getProperty(COLUMN_DETOKENIZE).getValue());
+        this.decryptColumns = ParsePlan.toSet(context.getProperty(COLUMN_DECRYPT).getValue());
+
+        if (!detokenizeColumns.isEmpty()) {
+            final String index_directory = context.getProperty(TOKEN_INDEX_DIRECTORY).getValue();
+            final File directory = new File(index_directory == null
+                    ? System.getProperty("java.io.tmpdir") : index_directory);
+            final long start = System.nanoTime();
+            final List<File> mappings;
+            try {
+                mappings = mappingFiles(context.getProperty(TOKEN_MAPPINGS).getValue());
+                this.tokenIndex = TokenIndex.build(mappings, directory, "detokenize-" + getIdentifier());
+            } catch (IOException e) {
+                throw new ProcessException("Unable to index token mappings in " + directory, e);
+            }
+            getLogger().info("Indexed {} token mappings from {} files in {} ms", new Object[]{tokenIndex.size(),
+                    mappings.size(), (System.nanoTime() - start) / 1000000});
+            if (tokenIndex.conflicts() > 0) {
+                getLogger().warn("{} tokens map to more than one source value, the first one is used",
+                        new Object[]{tokenIndex.conflicts()});
+            }
+        }
+        if (!decryptColumns.isEmpty()) {
+            this.cipherEngine = new CipherEngine(context.getProperty(ParseCSV.ENCRYPTION_KEY).getValue());
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (tokenIndex != null) {
+            try {
+                tokenIndex.close();
+            } catch (IOException e) {
+                getLogger().warn("Unable to remove token index", e);
+            }
+            tokenIndex = null;
+        }
+        cipherEngine = null;
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+
+        final DetokenizeCallback callback = new DetokenizeCallback();
+        try {
+            flowFile = session.write(flowFile, callback);
+        } catch (ProcessException | IllegalStateException e) {
+            getLogger().error("Unable to restore {}, routing to failure", new Object[]{flowFile}, e);
+            session.transfer(flowFile, RELATIONSHIP_FAILURE);
+            return;
+        }
+        if (tokenIndex != null) {
+            flowFile = session.putAttribute(flowFile, UNRESOLVED, String.valueOf(callback.unresolved));
+        }
+        session.transfer(flowFile, RELATIONSHIP_SUCCESS);
+    }
+
+    private static List<File> mappingFiles(final String paths) throws IOException {
+        final List<File> files = new ArrayList<>();
+        for (final String path : paths.split(",")) {
+            final File file = new File(path.trim());
+            if (file.isDirectory()) {
+                final File[] children = file.listFiles();
+                if (children == null) {
+                    throw new IOException("Unable to list token mappings in " + file);
+                }
+                Arrays.sort(children);
+                for (final File child : children) {
+                    if (child.isFile() && !child.isHidden()) {
+                        files.add(child);
+                    }
+                }
+            } else if (file.isFile()) {
+                files.add(file);
+            } else {
+                throw new IOException("Token mappings " + file + " do not exist");
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Reads the records, restores the configured columns in place and prints them again.
+     */
+    private final class DetokenizeCallback implements StreamCallback {
+        private long unresolved;
+
+        @Override
+        public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
+            final TokenIndex tokenIndex = DetokenizeCSV.this.tokenIndex;
+            final CipherEngine cipherEngine = DetokenizeCSV.this.cipherEngine;
+            final Charset charset = Charset.defaultCharset();
+            final CSVParser csvParser = new CSVParser(new InputStreamReader(inputStream, charset), parseFormat);
+            final CSVPrinter csvPrinter = new CSVPrinter(new OutputStreamWriter(outputStream, charset), printFormat);
+
+            final Map<String, Integer> headerMap = csvParser.getHeaderMap();
+            final String[] header = new String[headerMap.size()];
+            for (final Map.Entry<String, Integer> column : headerMap.entrySet()) {
+                header[column.getValue()] = column.getKey();
+            }
+            if (header.length == 0) {
+                // empty content stays empty
+                return;
+            }
+            final int[] detokenize = fields(header, detokenizeColumns);
+            final int[] decrypt = fields(header, decryptColumns);
+            csvPrinter.printRecord((Object[]) header);
+
+            final String[] values = new String[header.length];
+            for (final CSVRecord record : csvParser) {
+                if (record.size() != values.length) {
+                    throw new ProcessException("Record " + record.getRecordNumber() + " has " + record.size()
+                            + " values, the header has " + values.length);
+                }
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = record.get(i);
+                }
+                for (final int field : detokenize) {
+                    final String source = tokenIndex.get(header[field], values[field]);
+                    if (source != null) {
+                        values[field] = source;
+                    } else if (!values[field].isEmpty()) {
+                        unresolved++;
+                    }
+                }
+                for (final int field : decrypt) {
+                    if (!values[field].isEmpty()) {
+                        values[field] = cipherEngine.decrypt(values[field]);
+                    }
+                }
+                csvPrinter.printRecord((Object[]) values);
+            }
+            csvPrinter.flush();
+        }
+
+        private int[] fields(final String[] header, final Set<String> columns) {
+            final int[] fields = new int[columns.size()];
+            int f = 0;
+            for (final String column : columns) {
+                final int field = Arrays.asList(header).indexOf(column);
+                if (field < 0) {
+                    throw new ProcessException("Column " + column + " does not exist in header "
+                            + Arrays.toString(header));
+                }
+                fields[f++] = field;
+            }
+            return fields;
+        }
+    }
+}
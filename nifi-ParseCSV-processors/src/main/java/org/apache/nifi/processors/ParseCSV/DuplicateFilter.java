@@ -0,0 +1,314 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers the keys of the records seen so far, across FlowFiles and tasks, in a scalable Bloom filter.
+ *
+ * Keys are added to the newest of a list of Bloom filter slices. A slice that reaches its capacity is
+ * followed by one with twice the capacity and half the false positive rate, which keeps the rate of
+ * all slices together below the configured one however many keys are added. Memory is capped: once the
+ * slices would take more than the limit the oldest slices are dropped before the next one is allocated,
+ * forgetting the oldest keys. Once a doubled slice would not fit next to the full one, the following
+ * slices keep the rate and at most the capacity of the full one.
+ *
+ * Bits are set with compare and swap so all concurrent tasks share one filter without locking, only
+ * adding a slice is synchronized. The same key added by two tasks at the very same time can be taken
+ * as new by both. A key hash is a 64-bit FNV-1a over its values, the bit positions of a slice are
+ * derived from it by double hashing. The filter can be saved to and restored from a local file.
+ */
+final class DuplicateFilter {
+
+    private static final long MAGIC = 0x5043534444555031L;
+    private static final int VERSION = 1;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char SEPARATOR = '\u0000';
+
+    private static final double LN2_SQUARED = Math.log(2) * Math.log(2);
+    private static final long MAX_SLICE_WORDS = Integer.MAX_VALUE - 8;
+
+    private final String keyColumns;
+    private final long capacity;
+    private final double falsePositiveRate;
+    private final long maxBytes;
+    private volatile Slice[] slices;
+    // set once a doubled slice no longer fits in the memory limit, only used while growing
+    private boolean capped;
+
+    /**
+     * @param keyColumns key columns, saved with the filter so it is only restored for the same key
+     * @param capacity number of keys of the first slice
+     * @param falsePositiveRate upper bound of the rate at which new keys are taken as duplicates
+     * @param maxBytes memory limit of all slices together
+     */
+    DuplicateFilter(final String keyColumns, final long capacity, final double falsePositiveRate,
+                    final long maxBytes) {
+        this.keyColumns = keyColumns;
+        this.capacity = capacity;
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxBytes = maxBytes;
+        // the rates of the slices halve, so the first one takes half of the total
+        this.slices = new Slice[]{new Slice(fit(capacity, falsePositiveRate / 2, maxBytes),
+                falsePositiveRate / 2)};
+    }
+
+    static long hash() {
+        return FNV_OFFSET;
+    }
+
+    /**
+     * Adds one key value to a key hash started with {@link #hash()}.
+     */
+    static long hash(long hash, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ SEPARATOR) * FNV_PRIME;
+    }
+
+    /**
+     * Adds a key.
+     *
+     * @return whether the key was not seen before, a false positive takes a new key as seen
+     */
+    boolean add(final long hash) {
+        final long h1 = mix(hash);
+        final long h2 = mix(hash ^ FNV_PRIME) | 1;
+        final Slice[] current = slices;
+        for (int i = 0; i < current.length - 1; i++) {
+            if (current[i].contains(h1, h2)) {
+                return false;
+            }
+        }
+        final Slice newest = current[current.length - 1];
+        if (!newest.add(h1, h2)) {
+            return false;
+        }
+        if (newest.count.incrementAndGet() == newest.capacity) {
+            grow(newest);
+        }
+        return true;
+    }
+
+    private synchronized void grow(final Slice full) {
+        final Slice[] current = slices;
+        if (current[current.length - 1] != full) {
+            return;
+        }
+        long nextCapacity = full.capacity * 2;
+        double nextRate = full.falsePositiveRate / 2;
+        if (capped || bytes(nextCapacity, nextRate) > maxBytes - full.bytes()) {
+            // from here on slices keep their rate and size, the oldest keys are forgotten instead
+            capped = true;
+            nextRate = full.falsePositiveRate;
+            nextCapacity = fit(full.capacity, nextRate, maxBytes - full.bytes());
+        }
+
+        long bytes = bytes(nextCapacity, nextRate);
+        final List<Slice> grown = new ArrayList<>(Arrays.asList(current));
+        for (final Slice slice : grown) {
+            bytes += slice.bytes();
+        }
+        if (bytes > maxBytes) {
+            while (bytes > maxBytes && grown.size() > 1) {
+                bytes -= grown.remove(0).bytes();
+            }
+            // the dropped slices can be collected before the next one is allocated
+            slices = grown.toArray(new Slice[0]);
+        }
+        grown.add(new Slice(nextCapacity, nextRate));
+        slices = grown.toArray(new Slice[0]);
+    }
+
+    /**
+     * Memory taken by the slices.
+     */
+    long bytes() {
+        long bytes = 0;
+        for (final Slice slice : slices) {
+            bytes += slice.bytes();
+        }
+        return bytes;
+    }
+
+    // halves the capacity until a slice of it takes at most the available bytes
+    private static long fit(long capacity, final double falsePositiveRate, final long available) {
+        while (capacity > 1 && bytes(capacity, falsePositiveRate) > available) {
+            capacity /= 2;
+        }
+        return capacity;
+    }
+
+    private static long words(final long capacity, final double falsePositiveRate) {
+        final long optimal = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / LN2_SQUARED);
+        return Math.min(MAX_SLICE_WORDS, Math.max(1, (optimal + 63) / 64));
+    }
+
+    private static long bytes(final long capacity, final double falsePositiveRate) {
+        return words(capacity, falsePositiveRate) * 8;
+    }
+
+    /**
+     * Writes the filter to a file, replacing it atomically. Must not run while keys are added.
+     */
+    void save(final File file) throws IOException {
+        final File temporary = new File(file.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary), 64 * 1024))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(keyColumns);
+            out.writeLong(capacity);
+            out.writeDouble(falsePositiveRate);
+            final Slice[] current = slices;
+            out.writeInt(current.length);
+            for (final Slice slice : current) {
+                out.writeLong(slice.capacity);
+                out.writeDouble(slice.falsePositiveRate);
+                out.writeLong(slice.count.get());
+                out.writeInt(slice.bits.length());
+                for (int i = 0; i < slice.bits.length(); i++) {
+                    out.writeLong(slice.bits.get(i));
+                }
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces the keys of the filter with the ones saved in a file.
+     *
+     * @return false when the file was saved for other key columns, capacity or false positive rate, in
+     *         which case the filter is left as it is
+     */
+    boolean load(final File file) throws IOException {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 64 * 1024))) {
+            if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a duplicate filter snapshot");
+            }
+            if (!in.readUTF().equals(keyColumns) || in.readLong() != capacity
+                    || in.readDouble() != falsePositiveRate) {
+                return false;
+            }
+            final Slice[] loaded = new Slice[in.readInt()];
+            for (int s = 0; s < loaded.length; s++) {
+                final Slice slice = new Slice(in.readLong(), in.readDouble());
+                slice.count.set(in.readLong());
+                if (in.readInt() != slice.bits.length()) {
+                    throw new IOException(file + " has a slice of unexpected size");
+                }
+                for (int i = 0; i < slice.bits.length(); i++) {
+                    slice.bits.set(i, in.readLong());
+                }
+                loaded[s] = slice;
+            }
+            if (loaded.length == 0) {
+                throw new IOException(file + " has no slices");
+            }
+            slices = loaded;
+            return true;
+        }
+    }
+
+    // finalizer of MurmurHash3, spreads the FNV hash over all bits
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * One Bloom filter sized for its capacity and false positive rate.
+     */
+    private static final class Slice {
+        private final long capacity;
+        private final double falsePositiveRate;
+        private final AtomicLongArray bits;
+        private final long size;
+        private final int hashes;
+        private final AtomicLong count = new AtomicLong();
+
+        private Slice(final long capacity, final double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            final long words = words(capacity, falsePositiveRate);
+            this.bits = new AtomicLongArray((int) words);
+            this.size = words * 64;
+            this.hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+        }
+
+        private long bytes() {
+            return bits.length() * 8L;
+        }
+
+        /**
+         * @return whether at least one bit was not set yet
+         */
+        private boolean add(final long h1, final long h2) {
+            boolean added = false;
+            for (int i = 0; i < hashes; i++) {
+                final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+                final int word = (int) (bit >>> 6);
+                final long mask = 1L << bit;
+                while (true) {
+                    final long value = bits.get(word);
+                    if ((value & mask) != 0) {
+                        break;
+                    }
+                    if (bits.compareAndSet(word, value, value | mask)) {
+                        added = true;
+                        break;
+                    }
+                }
+            }
+            return added;
+        }
+
+        private boolean contains(final long h1, final long h2) {
+            for (int i = 0; i < hashes; i++) {
+                final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,1128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.QuoteMode;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Byte level CSV parser for simple dialects, used instead of commons-csv when the plan allows it.
+ *
+ * Records are tokenized in place on a reusable byte buffer, eight bytes at a time when looking for
+ * delimiters, quotes and line breaks. Fields are kept as offset and length slices of the buffer and
+ * only decoded to Strings when a column is masked, encrypted, tokenized, written as JSON or XML or
+ * turned into an attribute. Fields after the last one the plan projects are skipped without being
+ * tokenized. CSV output is written by the parser itself: columns passed through unchanged are copied
+ * to the output byte for byte and the output follows the minimal quoting of commons-csv, so it is the
+ * same as the one written through {@link RecordWriter}. JSON and XML go through the record writer.
+ *
+ * When bad records are quarantined the parser picks up again on the line after a malformed record,
+ * and counts the line breaks of the content it discards so bad records can be reported by line.
+ *
+ * Fixed width and multi character delimited content is only read by this parser. Fixed width lines are
+ * sliced at the offsets of the layout without looking at their content, and delimited lines are scanned
+ * for the first byte of the delimiter before the rest of it is compared. Neither has quoted values.
+ */
+final class FastCsvParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    // charsets in which every byte below 0x80 is the ASCII character and nothing else
+    static final Set<Charset> ASCII_COMPATIBLE = new HashSet<>(Arrays.asList(
+            StandardCharsets.UTF_8, StandardCharsets.US_ASCII, StandardCharsets.ISO_8859_1));
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    // field flags
+    private static final byte QUOTED = 1;
+    private static final byte ESCAPED = 2;
+
+    private final ParsePlan plan;
+    private final Charset charset;
+    private final byte delimiter;
+    private final byte quote;
+    private final long delimiters;
+    private final long quotes;
+    private final int layout;
+    private final byte[] inputDelimiter;
+    private final long inputDelimiters;
+    private final boolean writesCsv;
+    private final byte[] recordSeparator;
+    private final String quoteString;
+    private final String escapedQuote;
+
+    // input buffer, the current record always starts at recordStart
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private ByteBuffer words = words(buffer);
+    private InputStream in;
+    private int recordStart;
+    private int position;
+    private int limit;
+    private boolean eof;
+    private boolean headerRecord;
+
+    // bad record handling, lines counts the line breaks before lineMark
+    private Quarantine quarantine;
+    private String malformed;
+    private long lines;
+    private int lineMark;
+
+    // fields of the current record
+    private int fields;
+    private int[] starts = new int[16];
+    private int[] lengths = new int[16];
+    private byte[] flags = new byte[16];
+
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private int outputLength;
+    private OutputStream out;
+    private OutputSplitter splitter;
+    private RecordWriter writer;
+    private String[] printedHeader;
+
+    FastCsvParser(final ParsePlan plan) {
+        this.plan = plan;
+        this.charset = Charset.defaultCharset();
+        this.writesCsv = writesCsv(plan.printFormat);
+        this.delimiter = (byte) plan.printFormat.getDelimiter();
+        // formats without quotes are only printed through the record writer
+        this.quote = writesCsv ? (byte) plan.printFormat.getQuoteCharacter().charValue() : (byte) '"';
+        this.delimiters = (delimiter & 0xff) * ONES;
+        this.quotes = (quote & 0xff) * ONES;
+        this.layout = plan.inputLayout;
+        this.inputDelimiter = plan.inputDelimiter;
+        this.inputDelimiters = inputDelimiter == null ? 0 : (inputDelimiter[0] & 0xff) * ONES;
+        this.recordSeparator = (writesCsv ? plan.printFormat.getRecordSeparator() : "\r\n").getBytes(charset);
+        this.quoteString = String.valueOf((char) quote);
+        this.escapedQuote = quoteString + quoteString;
+    }
+
+    /**
+     * The byte level parser handles single byte delimiters and quotes in ASCII compatible charsets
+     * with minimal quoting and without escape characters, comments, null strings or trimming.
+     * EXCEL and RFC4180 keep empty lines as records, TDF trims and MYSQL escapes, those go through
+     * commons-csv. Fixed width and multi character delimited content is read in any format, CSV output
+     * this parser cannot print itself is written through the record writer.
+     */
+    static boolean supports(final ParsePlan plan) {
+        final CSVFormat format = plan.printFormat;
+        if (!ASCII_COMPATIBLE.contains(Charset.defaultCharset())) {
+            return false;
+        }
+        if (plan.inputLayout != ParsePlan.INPUT_CSV) {
+            return true;
+        }
+        return format.getIgnoreEmptyLines()
+                && !format.getIgnoreSurroundingSpaces()
+                && !format.isCommentMarkerSet()
+                && writesCsv(format);
+    }
+
+    // minimal quoting with a single byte quote and delimiter, without escape character or null string
+    private static boolean writesCsv(final CSVFormat format) {
+        final Character quoteCharacter = format.getQuoteCharacter();
+        final char delimiter = format.getDelimiter();
+        return !format.isEscapeCharacterSet()
+                && !format.isNullStringSet()
+                && (format.getQuoteMode() == null || format.getQuoteMode() == QuoteMode.MINIMAL)
+                && format.getRecordSeparator() != null
+                && quoteCharacter != null && quoteCharacter < 128
+                && delimiter < 128 && delimiter != quoteCharacter && delimiter != CR && delimiter != LF;
+    }
+
+    /**
+     * Parses one FlowFile, the buffers are reused for the next one.
+     *
+     * @param partitions writes the records to the partitions instead of out, null when not partitioned
+     * @param filtered receives the records rejected by the record filter, null when they are dropped
+     * @param quarantine receives the bad records, null when a bad record fails the FlowFile
+     * @param profiler profiles the records that are written, null when the plan does not profile
+     * @param attributes collects the record attributes, null when the plan does not create them
+     * @param splitter cuts the output into segments, null when the output is not split
+     * @param metrics receives the stage timings and counters, null when not instrumented
+     */
+    void process(final InputStream in, final OutputStream out, final PartitionWriter partitions,
+                 final ParsePlan.TokenSink tokens, final RecordWriter filtered, final Quarantine quarantine,
+                 final ColumnProfiler profiler, final AttributeCollector attributes, final OutputSplitter splitter,
+                 final StageMetrics metrics) throws IOException {
+        // JSON, XML and partitions are written through the record writer, which takes care of splitting itself
+        this.writer = partitions != null ? partitions
+                : plan.outputFormat == ParsePlan.OUTPUT_CSV && writesCsv ? null
+                : RecordWriter.create(plan, out, splitter);
+        this.out = splitter == null || writer != null ? out : splitter.wrap(out);
+        this.splitter = writer == null ? splitter : null;
+        this.printedHeader = null;
+        this.quarantine = quarantine;
+        final String[] filterValues = plan.filter == null ? null : new String[plan.filter.columns().length];
+
+        // bind the plan to the header, headerless content is bound on the first record
+        final String[] header = open(in);
+        long recordNumber = headerRecord ? 1 : 0;
+        ParsePlan.Columns columns = null;
+        String[][] batch = null;
+        int pending = 0;
+        if (header != null) {
+            columns = plan.columnsFor(header);
+            batch = new String[plan.batchSize(columns)][columns.width()];
+            printedHeader = columns.outputHeader;
+            if (writer != null) {
+                writer.begin(printedHeader, true);
+            } else {
+                writeValues(printedHeader, columns.width());
+            }
+            if (filtered != null) {
+                filtered.begin(columns.inputHeader, true);
+            }
+        }
+
+        while (true) {
+            final boolean sampled = metrics != null && metrics.sampling();
+            long start = sampled ? System.nanoTime() : 0;
+            // fields after the last one the plan uses are skipped, unless all of them are used or counted
+            final boolean all = columns == null || attributes != null || filtered != null || quarantine != null;
+            if (!next(all ? Integer.MAX_VALUE : columns.fields)) {
+                break;
+            }
+            if (sampled) {
+                metrics.sampled(StageMetrics.PARSE, start);
+            }
+            recordNumber++;
+            if (malformed != null) {
+                quarantine.add(line(), malformed, raw());
+                malformed = null;
+                if (metrics != null) {
+                    metrics.recordFiltered(sampled);
+                }
+                continue;
+            }
+            if (columns == null) {
+                columns = plan.columnsFor(ParsePlan.positionalHeader(fields));
+                batch = new String[plan.batchSize(columns)][columns.width()];
+                if (writer != null) {
+                    writer.begin(columns.outputHeader, false);
+                }
+                if (filtered != null) {
+                    filtered.begin(columns.inputHeader, false);
+                }
+            }
+
+            if (quarantine != null && fields != columns.inputHeader.length) {
+                quarantine.add(line(), "Record has " + fields + " fields, the header has "
+                        + columns.inputHeader.length, raw());
+                if (metrics != null) {
+                    metrics.recordFiltered(sampled);
+                }
+                continue;
+            }
+
+            // rejected records are not transformed and do not create attributes
+            if (filterValues != null && !plan.accept(columns, this, filterValues)) {
+                if (filtered != null) {
+                    final String[] raw = new String[columns.inputHeader.length];
+                    for (int i = 0; i < raw.length && i < fields; i++) {
+                        raw[i] = get(i);
+                    }
+                    filtered.write(raw);
+                }
+                if (metrics != null) {
+                    metrics.recordFiltered(sampled);
+                }
+                continue;
+            }
+            if (plan.duplicates != null && !plan.firstOccurrence(columns, this)) {
+                if (metrics != null) {
+                    metrics.recordFiltered(sampled);
+                }
+                continue;
+            }
+            if (profiler != null) {
+                profiler.add(columns, this);
+            }
+
+            final int[] attributeColumns = attributes == null ? null : attributes.select(columns.inputHeader);
+            if (attributeColumns != null) {
+                for (final int i : attributeColumns) {
+                    attributes.put(i, recordNumber, get(i));
+                }
+            }
+
+            // the record writer needs every value decoded, so its records always go through the batch
+            final boolean buffered = batch.length > 1 || writer != null;
+            plan.transform(columns, this, recordNumber, batch[pending], buffered, tokens, sampled ? metrics : null);
+            if (metrics != null) {
+                metrics.recordRead(columns, sampled);
+            }
+            if (!buffered) {
+                start = sampled ? System.nanoTime() : 0;
+                writeRecord(columns, batch[0]);
+                if (sampled) {
+                    metrics.sampled(StageMetrics.SERIALIZE, start);
+                }
+                if (metrics != null) {
+                    metrics.recordsWritten(1);
+                }
+            } else if (++pending == batch.length) {
+                writeBatch(columns, batch, pending, metrics);
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            writeBatch(columns, batch, pending, metrics);
+        }
+        if (writer != null) {
+            writer.finish();
+        } else {
+            flush();
+            if (splitter != null) {
+                splitter.finish(splitter.position());
+            }
+        }
+        this.in = null;
+        this.out = null;
+        this.writer = null;
+        this.quarantine = null;
+    }
+
+    int size() {
+        return fields;
+    }
+
+    /**
+     * Decodes one field of the current record.
+     */
+    String get(final int field) {
+        if (field >= fields) {
+            throw new ProcessException("Field " + (field + 1) + " requested but the record only has " + fields);
+        }
+        final String value = new String(buffer, starts[field], lengths[field], charset);
+        return (flags[field] & ESCAPED) != 0 ? value.replace(escapedQuote, quoteString) : value;
+    }
+
+    /**
+     * Validates and counts the records of one FlowFile that is passed through unchanged, nothing is
+     * written. Records are checked the same way they are when parsed, including their number of fields.
+     *
+     * @param attributes collects the record attributes, null when the plan does not create them
+     * @param metrics receives the parse timings and counters, null when not instrumented
+     * @return number of records, not counting the header
+     */
+    long scan(final InputStream in, final AttributeCollector attributes, final StageMetrics metrics)
+            throws IOException {
+        final String[] header = open(in);
+        long recordNumber = headerRecord ? 1 : 0;
+        long records = 0;
+        ParsePlan.Columns columns = header == null ? null : plan.columnsFor(header);
+
+        while (true) {
+            final boolean sampled = metrics != null && metrics.sampling();
+            final long start = sampled ? System.nanoTime() : 0;
+            if (!next()) {
+                break;
+            }
+            if (sampled) {
+                metrics.sampled(StageMetrics.PARSE, start);
+            }
+            recordNumber++;
+            records++;
+            if (columns == null) {
+                columns = plan.columnsFor(ParsePlan.positionalHeader(fields));
+            }
+            if (fields < columns.width()) {
+                throw new ProcessException("Record " + recordNumber + " has " + fields + " fields, column "
+                        + columns.outputHeader[fields] + " is field " + (fields + 1));
+            }
+
+            final int[] attributeColumns = attributes == null ? null : attributes.select(columns.inputHeader);
+            if (attributeColumns != null) {
+                for (final int i : attributeColumns) {
+                    attributes.put(i, recordNumber, get(i));
+                }
+            }
+            if (metrics != null) {
+                metrics.recordRead(columns, sampled);
+                metrics.recordsWritten(1);
+            }
+        }
+        this.in = null;
+        return records;
+    }
+
+    /**
+     * Starts reading one FlowFile and reads its header record, which commons-csv counts as a record.
+     *
+     * @return the input header, or null when the content has no header
+     */
+    String[] open(final InputStream in) throws IOException {
+        this.in = in;
+        recordStart = position = limit = outputLength = 0;
+        eof = false;
+        headerRecord = false;
+        malformed = null;
+        lines = 0;
+        lineMark = 0;
+
+        String[] header = plan.customHeader;
+        if (plan.withHeader) {
+            if (next()) {
+                if (malformed != null) {
+                    throw quarantine.reject(1, malformed);
+                }
+                headerRecord = true;
+                if (header == null) {
+                    header = header();
+                }
+            } else if (header == null) {
+                header = new String[0];
+            }
+        }
+        return header;
+    }
+
+    private String[] header() {
+        final String[] header = new String[fields];
+        for (int i = 0; i < fields; i++) {
+            header[i] = get(i);
+            for (int j = 0; j < i; j++) {
+                if (header[j].equals(header[i])) {
+                    throw new IllegalArgumentException("The header contains a duplicate name: \"" + header[i]
+                            + "\" in " + Arrays.toString(Arrays.copyOf(header, i + 1)));
+                }
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Tokenizes the next record, skipping empty lines.
+     *
+     * @return false at the end of the content
+     */
+    boolean next() throws IOException {
+        return next(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Tokenizes the next record, skipping empty lines and every field after the first {@code needed}.
+     *
+     * @return false at the end of the content
+     */
+    private boolean next(final int needed) throws IOException {
+        fields = 0;
+        while (true) {
+            if (position == limit) {
+                recordStart = position;
+                if (!fill()) {
+                    return false;
+                }
+            }
+            final byte b = buffer[position];
+            if (b != CR && b != LF) {
+                break;
+            }
+            position++;
+        }
+        recordStart = position;
+        if (layout == ParsePlan.INPUT_FIXED_WIDTH) {
+            fixedWidthRecord();
+            return true;
+        }
+
+        while (true) {
+            if (fields == starts.length) {
+                starts = Arrays.copyOf(starts, fields * 2);
+                lengths = Arrays.copyOf(lengths, fields * 2);
+                flags = Arrays.copyOf(flags, fields * 2);
+            }
+            if (position == limit && !fill()) {
+                // delimiter right before the end of the content
+                starts[fields] = position;
+                lengths[fields] = 0;
+                flags[fields++] = 0;
+                return true;
+            }
+            final boolean more;
+            try {
+                more = layout == ParsePlan.INPUT_DELIMITED ? delimitedField()
+                        : buffer[position] == quote ? quotedField() : simpleField();
+            } catch (MalformedRecordException e) {
+                if (quarantine == null) {
+                    throw e;
+                }
+                malformed = e.getMessage();
+                skipLine();
+                return true;
+            }
+            fields++;
+            if (!more) {
+                return true;
+            }
+            if (fields == needed) {
+                if (layout == ParsePlan.INPUT_DELIMITED) {
+                    skipToLineEnd();
+                } else {
+                    skipFields();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Skips the rest of a malformed record up to the next line break outside of quotes.
+     */
+    private void skipLine() throws IOException {
+        while (position < limit || fill()) {
+            final int end = scanQuoteOrLine(position);
+            position = end == limit ? limit : end + 1;
+            if (end < limit && buffer[end] != quote) {
+                endOfLine(buffer[end]);
+                return;
+            }
+            if (end < limit) {
+                // quoted section, its line breaks do not end the record
+                int close;
+                while ((close = scanQuote(position)) == limit) {
+                    position = limit;
+                    if (!fill()) {
+                        return;
+                    }
+                }
+                position = close + 1;
+            }
+        }
+    }
+
+    /**
+     * Text of the current record without its line break, for reporting it as a bad record.
+     */
+    private String raw() {
+        int end = position;
+        while (end > recordStart && (buffer[end - 1] == LF || buffer[end - 1] == CR)) {
+            end--;
+        }
+        return new String(buffer, recordStart, end - recordStart, charset);
+    }
+
+    /**
+     * Line the current record starts on, counting from 1.
+     */
+    private long line() {
+        lines += lineBreaks(lineMark, recordStart);
+        lineMark = recordStart;
+        return lines + 1;
+    }
+
+    // a CRLF pair is one line break, like a lone CR or LF
+    private int lineBreaks(final int from, final int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == LF || buffer[i] == CR && (i + 1 >= limit || buffer[i + 1] != LF)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Skips the rest of the record without tokenizing it. Only quotes and line breaks are looked for,
+     * a quote right after a delimiter starts a quoted field that is checked like any other.
+     */
+    private void skipFields() throws IOException {
+        if (fields == starts.length) {
+            starts = Arrays.copyOf(starts, fields * 2);
+            lengths = Arrays.copyOf(lengths, fields * 2);
+            flags = Arrays.copyOf(flags, fields * 2);
+        }
+        while (true) {
+            if (position == limit && !fill()) {
+                return;
+            }
+            // a skipped quoted field goes to the unused slot after the last field
+            if (buffer[position] == quote && buffer[position - 1] == delimiter) {
+                if (!quotedField()) {
+                    return;
+                }
+                continue;
+            }
+            int end;
+            while ((end = scanQuoteOrLine(position)) == limit) {
+                position = limit;
+                if (!fill()) {
+                    return;
+                }
+            }
+            if (buffer[end] != quote) {
+                position = end + 1;
+                endOfLine(buffer[end]);
+                return;
+            }
+            // a quote inside an unquoted field is content
+            position = buffer[end - 1] == delimiter ? end : end + 1;
+        }
+    }
+
+    /**
+     * @return whether the field ended on a delimiter
+     */
+    private boolean simpleField() throws IOException {
+        starts[fields] = position;
+        flags[fields] = 0;
+        int end;
+        while ((end = scan(position)) == limit) {
+            position = limit;
+            if (!fill()) {
+                lengths[fields] = limit - starts[fields];
+                return false;
+            }
+        }
+        lengths[fields] = end - starts[fields];
+        position = end + 1;
+        if (buffer[end] == delimiter) {
+            return true;
+        }
+        endOfLine(buffer[end]);
+        return false;
+    }
+
+    /**
+     * @return whether the field ended on a delimiter
+     */
+    private boolean quotedField() throws IOException {
+        starts[fields] = ++position;
+        flags[fields] = QUOTED;
+        while (true) {
+            int end;
+            while ((end = scanQuote(position)) == limit) {
+                position = limit;
+                if (!fill()) {
+                    throw new MalformedRecordException("EOF reached before encapsulated token finished");
+                }
+            }
+            lengths[fields] = end - starts[fields];
+            position = end + 1;
+            if (position == limit && !fill()) {
+                return false;
+            }
+            if (buffer[position] != quote) {
+                break;
+            }
+            // doubled quote inside the field
+            flags[fields] |= ESCAPED;
+            position++;
+        }
+
+        // whitespace between the closing quote and the delimiter is dropped, like commons-csv does
+        while (true) {
+            if (position == limit && !fill()) {
+                return false;
+            }
+            final byte b = buffer[position++];
+            if (b == delimiter) {
+                return true;
+            }
+            if (b == CR || b == LF) {
+                endOfLine(b);
+                return false;
+            }
+            if (!whitespace(b)) {
+                throw new MalformedRecordException("invalid char between encapsulated token and delimiter");
+            }
+        }
+    }
+
+    /**
+     * @return whether the field ended on the delimiter
+     */
+    private boolean delimitedField() throws IOException {
+        starts[fields] = position;
+        flags[fields] = 0;
+        while (true) {
+            int end;
+            while ((end = scanDelimited(position)) == limit) {
+                position = limit;
+                if (!fill()) {
+                    lengths[fields] = limit - starts[fields];
+                    return false;
+                }
+            }
+            final byte b = buffer[end];
+            if (b == CR || b == LF) {
+                lengths[fields] = end - starts[fields];
+                position = end + 1;
+                endOfLine(b);
+                return false;
+            }
+            // the first byte of the delimiter, the rest of it has to follow
+            position = end;
+            while (limit - position < inputDelimiter.length && fill()) {
+                // reads until the whole delimiter is in the buffer or the content ends
+            }
+            if (isInputDelimiter(position)) {
+                lengths[fields] = position - starts[fields];
+                position += inputDelimiter.length;
+                return true;
+            }
+            position++;
+        }
+    }
+
+    private boolean isInputDelimiter(final int at) {
+        if (limit - at < inputDelimiter.length) {
+            return false;
+        }
+        for (int i = 1; i < inputDelimiter.length; i++) {
+            if (buffer[at + i] != inputDelimiter[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Slices the fields of a fixed width line once the whole line is in the buffer, dropping the spaces
+     * that pad them.
+     */
+    private void fixedWidthRecord() throws IOException {
+        int end;
+        while ((end = scanLine(position)) == limit) {
+            position = limit;
+            if (!fill()) {
+                break;
+            }
+        }
+        final ParsePlan.FixedWidthLayout fixedWidth = plan.fixedWidth;
+        final int count = fixedWidth.offsets.length;
+        if (starts.length <= count) {
+            starts = Arrays.copyOf(starts, count + 1);
+            lengths = Arrays.copyOf(lengths, count + 1);
+            flags = Arrays.copyOf(flags, count + 1);
+        }
+        for (int i = 0; i < count; i++) {
+            int start = Math.min(recordStart + fixedWidth.offsets[i], end);
+            int fieldEnd = Math.min(start + fixedWidth.lengths[i], end);
+            while (start < fieldEnd && buffer[start] == ' ') {
+                start++;
+            }
+            while (fieldEnd > start && buffer[fieldEnd - 1] == ' ') {
+                fieldEnd--;
+            }
+            starts[i] = start;
+            lengths[i] = fieldEnd - start;
+            flags[i] = 0;
+        }
+        fields = count;
+        if (end < limit) {
+            position = end + 1;
+            endOfLine(buffer[end]);
+        } else {
+            position = limit;
+        }
+    }
+
+    /**
+     * Skips the rest of a line without quotes.
+     */
+    private void skipToLineEnd() throws IOException {
+        int end;
+        while ((end = scanLine(position)) == limit) {
+            position = limit;
+            if (!fill()) {
+                return;
+            }
+        }
+        position = end + 1;
+        endOfLine(buffer[end]);
+    }
+
+    // consumes the LF of a CRLF line break
+    private void endOfLine(final byte b) throws IOException {
+        if (b == CR && (position < limit || fill()) && buffer[position] == LF) {
+            position++;
+        }
+    }
+
+    private static boolean whitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == 0x0b || b == '\f' || (b >= 0x1c && b <= 0x1f);
+    }
+
+    /**
+     * Index of the first delimiter or line break at or after {@code from}, or {@code limit}.
+     */
+    private int scan(final int from) {
+        int i = from;
+        for (; i + 8 <= limit; i += 8) {
+            final long word = words.getLong(i);
+            final long found = zeros(word ^ delimiters) | zeros(word ^ (LF * ONES)) | zeros(word ^ (CR * ONES));
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < limit; i++) {
+            final byte b = buffer[i];
+            if (b == delimiter || b == LF || b == CR) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Index of the first quote or line break at or after {@code from}, or {@code limit}.
+     */
+    private int scanQuoteOrLine(final int from) {
+        int i = from;
+        for (; i + 8 <= limit; i += 8) {
+            final long word = words.getLong(i);
+            final long found = zeros(word ^ quotes) | zeros(word ^ (LF * ONES)) | zeros(word ^ (CR * ONES));
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < limit; i++) {
+            final byte b = buffer[i];
+            if (b == quote || b == LF || b == CR) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Index of the first byte of the input delimiter or line break at or after {@code from}, or {@code limit}.
+     */
+    private int scanDelimited(final int from) {
+        final byte first = inputDelimiter[0];
+        int i = from;
+        for (; i + 8 <= limit; i += 8) {
+            final long word = words.getLong(i);
+            final long found = zeros(word ^ inputDelimiters) | zeros(word ^ (LF * ONES)) | zeros(word ^ (CR * ONES));
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < limit; i++) {
+            final byte b = buffer[i];
+            if (b == first || b == LF || b == CR) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Index of the first line break at or after {@code from}, or {@code limit}.
+     */
+    private int scanLine(final int from) {
+        int i = from;
+        for (; i + 8 <= limit; i += 8) {
+            final long word = words.getLong(i);
+            final long found = zeros(word ^ (LF * ONES)) | zeros(word ^ (CR * ONES));
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < limit; i++) {
+            final byte b = buffer[i];
+            if (b == LF || b == CR) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Index of the first quote at or after {@code from}, or {@code limit}.
+     */
+    private int scanQuote(final int from) {
+        int i = from;
+        for (; i + 8 <= limit; i += 8) {
+            final long found = zeros(words.getLong(i) ^ quotes);
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < limit; i++) {
+            if (buffer[i] == quote) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    // high bit set in every zero byte, exact up to the first zero byte which is all that is used
+    private static long zeros(final long word) {
+        return (word - ONES) & ~word & HIGHS;
+    }
+
+    /**
+     * Reads more content, moving the current record to the front of the buffer or growing the buffer
+     * when the record fills it.
+     *
+     * @return false when nothing could be read
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (limit == buffer.length) {
+            final int shift = recordStart;
+            if (shift == 0) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                words = words(buffer);
+            } else {
+                if (quarantine != null) {
+                    lines += lineBreaks(lineMark, shift);
+                    lineMark = 0;
+                }
+                System.arraycopy(buffer, shift, buffer, 0, limit - shift);
+                for (int i = 0; i <= fields && i < starts.length; i++) {
+                    starts[i] -= shift;
+                }
+                recordStart = 0;
+                position -= shift;
+                limit -= shift;
+            }
+        }
+        final int read = in.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    /**
+     * A record that cannot be tokenized, the parser can continue on the next line.
+     */
+    private static final class MalformedRecordException extends IOException {
+        private MalformedRecordException(final String message) {
+            super(message);
+        }
+    }
+
+    private static ByteBuffer words(final byte[] buffer) {
+        return ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeRecord(final ParsePlan.Columns columns, final String[] values) throws IOException {
+        startRecord();
+        final int[] source = columns.source;
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                write(delimiter);
+            }
+            if (values[i] == null) {
+                copyField(source[i], i == 0);
+            } else {
+                writeValue(values[i], i == 0);
+            }
+        }
+        write(recordSeparator, 0, recordSeparator.length);
+        if (splitter != null) {
+            splitter.recordWritten();
+        }
+    }
+
+    // starts a new segment with its own header when the current one is full
+    private void startRecord() throws IOException {
+        if (splitter != null && splitter.isFull(splitter.position() + outputLength)) {
+            flushOutput();
+            splitter.split(splitter.position());
+            if (printedHeader != null) {
+                writeValues(printedHeader, printedHeader.length);
+            }
+        }
+    }
+
+    private void writeBatch(final ParsePlan.Columns columns, final String[][] batch, final int count,
+                            final StageMetrics metrics) throws IOException {
+        long start = metrics == null ? 0 : System.nanoTime();
+        for (final int column : columns.encrypted) {
+            plan.cipherEngine.encryptColumn(batch, count, column);
+        }
+        if (metrics != null) {
+            metrics.exact(StageMetrics.ENCRYPT, start);
+            start = System.nanoTime();
+        }
+        for (int r = 0; r < count; r++) {
+            if (writer != null) {
+                writer.write(batch[r]);
+                continue;
+            }
+            startRecord();
+            writeValues(batch[r], columns.width());
+            if (splitter != null) {
+                splitter.recordWritten();
+            }
+        }
+        if (metrics != null) {
+            metrics.exact(StageMetrics.SERIALIZE, start);
+            metrics.recordsWritten(count);
+        }
+    }
+
+    private void writeValues(final String[] values, final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                write(delimiter);
+            }
+            writeValue(values[i], i == 0);
+        }
+        write(recordSeparator, 0, recordSeparator.length);
+    }
+
+    // copies an unchanged field, only adding or dropping the quotes where minimal quoting differs
+    private void copyField(final int field, final boolean first) throws IOException {
+        final int start = starts[field];
+        final int length = lengths[field];
+        final boolean quoted = (flags[field] & QUOTED) != 0;
+        if (needsQuotes(start, length, first)) {
+            if (quoted) {
+                // the content already has its quotes doubled
+                write(buffer, start - 1, length + 2);
+            } else {
+                writeValue(get(field), first);
+            }
+        } else {
+            write(buffer, start, length);
+        }
+    }
+
+    private void writeValue(final String value, final boolean first) throws IOException {
+        if (!needsQuotes(value, first)) {
+            writeString(value);
+            return;
+        }
+        write(quote);
+        writeString(value.indexOf(quote) < 0 ? value : value.replace(quoteString, escapedQuote));
+        write(quote);
+    }
+
+    private void writeString(final String value) throws IOException {
+        final int length = value.length();
+        if (outputLength + length > output.length) {
+            flushOutput();
+        }
+        if (length <= output.length) {
+            int n = outputLength;
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c >= 0x80) {
+                    final byte[] encoded = value.substring(i).getBytes(charset);
+                    outputLength = n;
+                    write(encoded, 0, encoded.length);
+                    return;
+                }
+                output[n++] = (byte) c;
+            }
+            outputLength = n;
+        } else {
+            final byte[] encoded = value.getBytes(charset);
+            write(encoded, 0, encoded.length);
+        }
+    }
+
+    /**
+     * Quoting rules of the commons-csv MINIMAL quote mode, applied to the raw bytes. Bytes of
+     * multi-byte characters are all at least 0x80 and compare like the characters they encode.
+     */
+    private boolean needsQuotes(final int start, final int length, final boolean first) {
+        if (length == 0) {
+            return first;
+        }
+        final int c = buffer[start] & 0xff;
+        if (first && !alphanumeric(c) || c <= '#') {
+            return true;
+        }
+        final int end = start + length;
+        for (int i = start; i < end; i++) {
+            final byte b = buffer[i];
+            if (b == LF || b == CR || b == quote || b == delimiter) {
+                return true;
+            }
+        }
+        return (buffer[end - 1] & 0xff) <= ' ';
+    }
+
+    private boolean needsQuotes(final String value, final boolean first) {
+        final int length = value.length();
+        if (length == 0) {
+            return first;
+        }
+        final char c = value.charAt(0);
+        if (first && !alphanumeric(c) || c <= '#') {
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            final char ch = value.charAt(i);
+            if (ch == LF || ch == CR || ch == quote || ch == delimiter) {
+                return true;
+            }
+        }
+        return value.charAt(length - 1) <= ' ';
+    }
+
+    private static boolean alphanumeric(final int c) {
+        return c >= '0' && c <= '9' || c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z';
+    }
+
+    private void write(final byte b) throws IOException {
+        if (outputLength == output.length) {
+            flushOutput();
+        }
+        output[outputLength++] = b;
+    }
+
+    private void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (outputLength + length > output.length) {
+            flushOutput();
+            if (length > output.length) {
+                out.write(bytes, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, output, outputLength, length);
+        outputLength += length;
+    }
+
+    private void flushOutput() throws IOException {
+        out.write(output, 0, outputLength);
+        outputLength = 0;
+    }
+
+    private void flush() throws IOException {
+        flushOutput();
+        out.flush();
+    }
+}
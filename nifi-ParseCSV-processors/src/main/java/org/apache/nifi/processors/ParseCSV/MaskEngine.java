@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Format preserving masking: consonants, vowels and digits are replaced by a character of the same
+ * class and case, everything else is kept.
+ *
+ * Characters are classified through a static ASCII lookup table and the result is written into a
+ * per-thread reusable buffer. In random mode every thread draws from its own SplitMix64 generator.
+ * In deterministic mode the generator is seeded with an HMAC-SHA256 of the value, so the same input
+ * always masks to the same output for a given key.
+ */
+final class MaskEngine {
+
+    static final String RANDOM = "Random";
+    static final String DETERMINISTIC = "Deterministic";
+
+    private static final String HMAC = "HmacSHA256";
+
+    private static final char[] CONSONANTS = "bcdfghjklmnpqrstvwxz".toCharArray();
+    private static final char[] VOWELS = "aeiouy".toCharArray();
+    private static final char[] DIGITS = "0123456789".toCharArray();
+
+    private static final byte KEEP = 0;
+    private static final byte CONSONANT = 1;
+    private static final byte VOWEL = 2;
+    private static final byte DIGIT = 3;
+    private static final byte UPPER = 4;
+
+    private static final byte[] CLASSES = new byte[128];
+
+    static {
+        for (char c : CONSONANTS) {
+            CLASSES[c] = CONSONANT;
+            CLASSES[Character.toUpperCase(c)] = CONSONANT | UPPER;
+        }
+        for (char c : VOWELS) {
+            CLASSES[c] = VOWEL;
+            CLASSES[Character.toUpperCase(c)] = VOWEL | UPPER;
+        }
+        for (char c : DIGITS) {
+            CLASSES[c] = DIGIT;
+        }
+    }
+
+    private final SecretKeySpec key;
+
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private MaskEngine(final SecretKeySpec key) {
+        this.key = key;
+        // fail at schedule time rather than on the first masked cell
+        state.get();
+    }
+
+    static MaskEngine random() {
+        return new MaskEngine(null);
+    }
+
+    static MaskEngine deterministic(final String key) {
+        return new MaskEngine(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), HMAC));
+    }
+
+    String mask(final String value) {
+        return state.get().mask(value);
+    }
+
+    private final class State {
+        private final Mac mac;
+        private final byte[] digest;
+        private byte[] bytes = new byte[256];
+        private char[] chars = new char[128];
+        private long seed;
+
+        private State() {
+            try {
+                if (key != null) {
+                    mac = Mac.getInstance(HMAC);
+                    mac.init(key);
+                    digest = new byte[mac.getMacLength()];
+                } else {
+                    mac = null;
+                    digest = null;
+                    seed = new SecureRandom().nextLong();
+                }
+            } catch (GeneralSecurityException e) {
+                throw new ProcessException("Unable to initialize " + HMAC, e);
+            }
+        }
+
+        private String mask(final String value) {
+            final int length = value.length();
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            value.getChars(0, length, chars, 0);
+            if (mac != null) {
+                seed(length);
+            }
+
+            for (int n = 0; n < length; n++) {
+                final char c = chars[n];
+                if (c >= 128) {
+                    continue;
+                }
+                final byte type = CLASSES[c];
+                final char masked;
+                switch (type & ~UPPER) {
+                    case CONSONANT:
+                        masked = CONSONANTS[nextInt(CONSONANTS.length)];
+                        break;
+                    case VOWEL:
+                        masked = VOWELS[nextInt(VOWELS.length)];
+                        break;
+                    case DIGIT:
+                        masked = DIGITS[nextInt(DIGITS.length)];
+                        break;
+                    default:
+                        continue;
+                }
+                chars[n] = (type & UPPER) != 0 ? (char) (masked - ('a' - 'A')) : masked;
+            }
+            return new String(chars, 0, length);
+        }
+
+        // seed the generator with the keyed hash of the value held in the char buffer
+        private void seed(final int length) {
+            if (bytes.length < length * 2) {
+                bytes = new byte[length * 2];
+            }
+            for (int i = 0, b = 0; i < length; i++) {
+                bytes[b++] = (byte) (chars[i] >>> 8);
+                bytes[b++] = (byte) chars[i];
+            }
+            try {
+                mac.update(bytes, 0, length * 2);
+                mac.doFinal(digest, 0);
+            } catch (GeneralSecurityException e) {
+                throw new ProcessException("Unable to compute " + HMAC, e);
+            }
+            long s = 0;
+            for (int i = 0; i < 8; i++) {
+                s = (s << 8) | (digest[i] & 0xff);
+            }
+            seed = s;
+        }
+
+        // SplitMix64
+        private int nextInt(final int bound) {
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+            return (int) (((z >>> 32) * bound) >>> 32);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Cuts the output of one FlowFile into segments of at most a number of records or bytes.
+ *
+ * Every segment is written as a complete document with its own header while the FlowFile is parsed.
+ * The segments are then cloned out of the output content as byte ranges, so splitting neither copies
+ * nor reads the content again. The size limit is checked against the bytes that reached the output
+ * stream, a segment can exceed it by what the writer still has buffered.
+ */
+final class OutputSplitter {
+
+    private final long maxRecords;
+    private final long maxBytes;
+
+    private long[] boundaries = new long[16];
+    private int segments;
+    private long segmentStart;
+    private long records;
+    private long position;
+
+    /**
+     * @param maxRecords records per segment, 0 for no limit
+     * @param maxBytes bytes per segment, 0 for no limit
+     */
+    OutputSplitter(final long maxRecords, final long maxBytes) {
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Starts counting the output of the next FlowFile.
+     */
+    OutputStream wrap(final OutputStream out) {
+        segments = 0;
+        segmentStart = 0;
+        records = 0;
+        position = 0;
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                position++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                position += len;
+            }
+        };
+    }
+
+    /**
+     * Bytes written to the stream returned by {@link #wrap} so far.
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * Whether the next record has to start a new segment.
+     *
+     * @param position output position including anything the caller still buffers
+     */
+    boolean isFull(final long position) {
+        return records > 0 && (maxRecords > 0 && records >= maxRecords
+                || maxBytes > 0 && position - segmentStart >= maxBytes);
+    }
+
+    void recordWritten() {
+        records++;
+    }
+
+    /**
+     * Ends the current segment, the output has to be flushed up to {@code end}.
+     */
+    void split(final long end) {
+        if (segments == boundaries.length) {
+            boundaries = Arrays.copyOf(boundaries, segments * 2);
+        }
+        boundaries[segments++] = end;
+        segmentStart = end;
+        records = 0;
+    }
+
+    void finish(final long end) {
+        split(end);
+    }
+
+    int count() {
+        return segments;
+    }
+
+    long offset(final int segment) {
+        return segment == 0 ? 0 : boundaries[segment - 1];
+    }
+
+    long size(final int segment) {
+        return boundaries[segment] - offset(segment);
+    }
+}
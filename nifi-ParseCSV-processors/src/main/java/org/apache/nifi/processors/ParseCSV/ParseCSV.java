@@ -15,52 +15,89 @@
  * limitations under the License.
  */
 package org.apache.nifi.processors.ParseCSV;
-import com.fasterxml.jackson.core.PrettyPrinter;
 import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
-import com.fasterxml.jackson.dataformat.xml.util.DefaultXmlPrettyPrinter;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.io.StreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
-import javax.xml.crypto.dsig.keyinfo.KeyValue;
+import org.apache.nifi.util.ObjectHolder;
 import java.io.*;
 import java.nio.charset.Charset;
-import java.security.Key;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Tags({"csv", "parse", "masking", "mask", "tokenize", "encrypt"})
 @CapabilityDescription("Provide a description")
 @SeeAlso({})
 @ReadsAttributes({@ReadsAttribute(attribute="", description="")})
-@WritesAttributes({@WritesAttribute(attribute="", description="")})
+@WritesAttributes({
+        @WritesAttribute(attribute = ParseCSV.FRAGMENT_ID, description = "All split FlowFiles produced from the same " +
+                "parent FlowFile have the same randomly generated UUID"),
+        @WritesAttribute(attribute = ParseCSV.FRAGMENT_INDEX, description = "One-up number of the split FlowFile " +
+                "within its parent, starting at 1"),
+        @WritesAttribute(attribute = ParseCSV.FRAGMENT_COUNT, description = "Number of split FlowFiles produced " +
+                "from the parent FlowFile"),
+        @WritesAttribute(attribute = ParseCSV.SEGMENT_ORIGINAL_FILENAME, description = "Filename of the parent " +
+                "FlowFile"),
+        @WritesAttribute(attribute = ParseCSV.RECORD_COUNT, description = "Number of records of content that " +
+                "was passed through unchanged"),
+        @WritesAttribute(attribute = StageMetrics.RECORDS, description = "Number of records read, written when " +
+                "Instrumentation includes attributes"),
+        @WritesAttribute(attribute = StageMetrics.RECORDS_OUT, description = "Number of records written"),
+        @WritesAttribute(attribute = StageMetrics.BYTES_IN, description = "Size of the parsed content"),
+        @WritesAttribute(attribute = StageMetrics.BYTES_OUT, description = "Size of the output content"),
+        @WritesAttribute(attribute = StageMetrics.CELLS_TRANSFORMED, description = "Number of masked, " +
+                "tokenized or encrypted values"),
+        @WritesAttribute(attribute = "parsecsv.*.nanos", description = "Estimated nanoseconds spent in the " +
+                "parse, mask, tokenize, encrypt and serialize stages"),
+        @WritesAttribute(attribute = Quarantine.BAD_RECORDS, description = "Number of bad records, written when " +
+                "Bad Record Tolerance is set"),
+        @WritesAttribute(attribute = Quarantine.BAD_LINE, description = "Line the first bad record starts on"),
+        @WritesAttribute(attribute = Quarantine.BAD_REASON, description = "Why the first bad record is bad"),
+        @WritesAttribute(attribute = ColumnProfiler.RECORDS, description = "Number of profiled records, written " +
+                "when Column Profile is Attributes"),
+        @WritesAttribute(attribute = "parsecsv.profile.*", description = "Count, empty, length.min, length.max, " +
+                "distinct, numbers, min, max, mean and top values of every profiled column"),
+        @WritesAttribute(attribute = ParseCSV.PARTITION, description = "Partition of the output, from 0, when " +
+                "Partition Column is set"),
+        @WritesAttribute(attribute = ParseCSV.PARTITION_TOTAL, description = "Number of partitions of the output")})
+@SupportsBatching
 public class ParseCSV extends AbstractProcessor {
 
+    public static final String FRAGMENT_ID = "fragment.identifier";
+    public static final String FRAGMENT_INDEX = "fragment.index";
+    public static final String FRAGMENT_COUNT = "fragment.count";
+    public static final String SEGMENT_ORIGINAL_FILENAME = "segment.original.filename";
+    public static final String RECORD_COUNT = "record.count";
+    public static final String PARTITION = "partition";
+    public static final String PARTITION_TOTAL = "partition.count";
+
     public static final AllowableValue DEFAULT = new AllowableValue(
             "DEFAULT", "DEFAULT", "Standard comma separated format.");
     public static final AllowableValue EXCEL = new AllowableValue(
@@ -86,18 +123,61 @@ public class ParseCSV extends AbstractProcessor {
 
     public static final PropertyDescriptor CREATE_ATTRIBUTES = new PropertyDescriptor
             .Builder().name("Create Attributes from records")
-            .description("Example Property")
+            .description("Creates a column.recordNumber attribute per cell of the records selected by Attribute " +
+                    "Records and Attribute Columns, up to Max Attribute Size.")
             .required(true)
             .defaultValue("False")
             .allowableValues("True", "False")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final AllowableValue ALL_RECORDS = new AllowableValue(
+            AttributeCollector.ALL_RECORDS, AttributeCollector.ALL_RECORDS, "Attributes from every record.");
+    public static final AllowableValue FIRST_RECORDS = new AllowableValue(
+            AttributeCollector.FIRST_RECORDS, AttributeCollector.FIRST_RECORDS,
+            "Attributes from the first records, see Attribute Record Count.");
+    public static final AllowableValue LAST_RECORD = new AllowableValue(
+            AttributeCollector.LAST_RECORD, AttributeCollector.LAST_RECORD, "Attributes from the last record only.");
+
+    public static final PropertyDescriptor ATTRIBUTE_RECORDS = new PropertyDescriptor
+            .Builder().name("Attribute Records")
+            .description("Records that attributes are created from when " + CREATE_ATTRIBUTES.getName() + " is True.")
+            .required(true)
+            .defaultValue(ALL_RECORDS.getValue())
+            .allowableValues(ALL_RECORDS, FIRST_RECORDS, LAST_RECORD)
+            .build();
+
+    public static final PropertyDescriptor ATTRIBUTE_RECORD_COUNT = new PropertyDescriptor
+            .Builder().name("Attribute Record Count")
+            .description("Number of records attributes are created from with " + FIRST_RECORDS.getValue() + ".")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ATTRIBUTE_COLUMNS = new PropertyDescriptor
+            .Builder().name("Attribute Columns")
+            .description("Comma separated columns that attributes are created from, all columns when not set.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_ATTRIBUTE_SIZE = new PropertyDescriptor
+            .Builder().name("Max Attribute Size")
+            .description("Cap on the total length of the names and values of the record attributes of one " +
+                    "FlowFile. Once reached no more record attributes are added and " + AttributeCollector.TRUNCATED +
+                    " is set to true.")
+            .required(true)
+            .defaultValue("256 KB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
     public static final PropertyDescriptor DELIMITER = new PropertyDescriptor
             .Builder().name("File Delimiter")
-            .description("Example Property")
-            .required(true)
-            .defaultValue(",")
+            .description("Delimiter of the input in place of the one of the CSV Format, which is used when not " +
+                    "set. \\t stands for a tab. A delimiter of more than one character is read by the byte level " +
+                    "parser, its values are not quoted and the output keeps the delimiter of the CSV Format.")
+            .required(false)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
@@ -113,7 +193,7 @@ public class ParseCSV extends AbstractProcessor {
             .Builder().name("Static Schema")
             .description("Example Property")
             .required(false)
-            .defaultValue("True")
+            .defaultValue(null)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
     public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
@@ -125,6 +205,16 @@ public class ParseCSV extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor JSON_MODE = new PropertyDescriptor
+            .Builder().name("JSON Output Mode")
+            .description("Layout of JSON output: Array writes one pretty printed JSON array, Compact writes one JSON " +
+                    "array without whitespace and NDJSON writes one JSON object per line.")
+            .required(true)
+            .defaultValue(RecordWriter.JSON_ARRAY)
+            .allowableValues(RecordWriter.JSON_ARRAY, RecordWriter.JSON_COMPACT, RecordWriter.JSON_LINES)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
     public static final PropertyDescriptor CUSTOM_HEADER = new PropertyDescriptor
             .Builder().name("Custom Header")
             .description("Example Property")
@@ -133,6 +223,30 @@ public class ParseCSV extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor FIXED_WIDTH_LAYOUT = new PropertyDescriptor
+            .Builder().name("Fixed Width Layout")
+            .description("Reads fixed width records instead of CSV: comma separated name:length or " +
+                    "name:offset:length columns, offsets and lengths in bytes and offsets counted from 0 within " +
+                    "the line. A column without an offset starts where the previous one ends. The names are the " +
+                    "header, With Header skips a header line. The spaces that pad a value are dropped, a line that " +
+                    "ends early leaves the remaining columns empty. Records are sliced by the byte level parser, " +
+                    "values passed through unchanged are copied without being decoded.")
+            .required(false)
+            .addValidator(new Validator() {
+                @Override
+                public ValidationResult validate(String subject, String input, ValidationContext context) {
+                    String explanation = null;
+                    try {
+                        ParsePlan.FixedWidthLayout.parse(input);
+                    } catch (IllegalArgumentException e) {
+                        explanation = e.getMessage();
+                    }
+                    return new ValidationResult.Builder().subject(subject).input(input).valid(explanation == null)
+                            .explanation(explanation).build();
+                }
+            })
+            .build();
+
     public static final PropertyDescriptor COLUMN_MASK = new PropertyDescriptor
             .Builder().name("Column Mask")
             .description("Example Property")
@@ -171,22 +285,403 @@ public class ParseCSV extends AbstractProcessor {
             .description("Store of where the tokenized source, mask and unique identifier values will be persisted.")
             .required(false)
             .defaultValue("APACHE PHOENIX")
-            .allowableValues("APACHE PHOENIX", "MYSQL", "ORACLE", "MS SQL SERVER", "JSON", "XML", "CSV")
+            .allowableValues(TokenizedWriter.PHOENIX, TokenizedWriter.MYSQL, TokenizedWriter.ORACLE,
+                    TokenizedWriter.MSSQL, TokenizedWriter.JSON, TokenizedWriter.XML, TokenizedWriter.CSV)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TOKENIZED_TABLE = new PropertyDescriptor
+            .Builder().name("Tokenized Table Name")
+            .description("Table the tokenized rows are written to for the SQL Tokenized Output Formats.")
+            .required(true)
+            .defaultValue("TOKENIZED")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor TOKENIZED_BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("Tokenized Batch Size")
+            .description("Maximum number of tokenized rows combined into one multi-row INSERT statement or JSON " +
+                    "array. A value of 1 writes one statement or one JSON object per line.")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TOKEN_VAULT_DIRECTORY = new PropertyDescriptor
+            .Builder().name("Token Vault Directory")
+            .description("Local directory of a persistent token vault. When set, every tokenized source value keeps " +
+                    "the token it was first given, across FlowFiles and restarts, and only new tokens are sent to " +
+                    "the tokenized relationship. The directory can only be used by one processor.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TOKEN_VAULT_CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("Token Vault Cache Size")
+            .description("Number of tokens kept in memory in front of the token vault on disk.")
+            .required(true)
+            .defaultValue("100000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ENCRYPTION_KEY = new PropertyDescriptor
+            .Builder().name("Encryption Key")
+            .description("AES key used for Column Encrypt, and by DetokenizeCSV for Column Decrypt, must be 16, " +
+                    "24 or 32 bytes long. The key is loaded once when the processor is scheduled.")
+            .required(false)
+            .sensitive(true)
+            .defaultValue(null)
+            .addValidator(new Validator() {
+                @Override
+                public ValidationResult validate(String subject, String input, ValidationContext context) {
+                    return new ValidationResult.Builder().subject(subject).input(input)
+                            .valid(input != null && CipherEngine.isValidKeyLength(input))
+                            .explanation("AES key must be 16, 24 or 32 bytes long").build();
+                }
+            })
+            .build();
+
+    public static final PropertyDescriptor ENCRYPTION_BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("Encryption Batch Size")
+            .description("Number of records whose encrypted columns are encrypted together as one chunk, the " +
+                    "IVs of a chunk are drawn at once. Records are written once their chunk is encrypted. A value " +
+                    "of 1 encrypts every cell as its record is processed. The pipeline stages encrypt every batch " +
+                    "of Pipeline Batch Size records as one chunk.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MASK_MODE = new PropertyDescriptor
+            .Builder().name("Mask Mode")
+            .description("Random masks every occurrence of a value differently, Deterministic always masks the same " +
+                    "value to the same output for a given Mask Key.")
+            .required(true)
+            .defaultValue(MaskEngine.RANDOM)
+            .allowableValues(MaskEngine.RANDOM, MaskEngine.DETERMINISTIC)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MASK_KEY = new PropertyDescriptor
+            .Builder().name("Mask Key")
+            .description("Secret used to derive masks in Deterministic Mask Mode.")
+            .required(false)
+            .sensitive(true)
+            .defaultValue(null)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FLOWFILE_BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("FlowFile Batch Size")
+            .description("Maximum number of FlowFiles pulled from the queue and parsed in one session. The compiled " +
+                    "format, header binding and buffers are reused across the FlowFiles of a batch.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PARALLEL_THRESHOLD = new PropertyDescriptor
+            .Builder().name("Parallel Parsing Threshold")
+            .description("FlowFiles at least this large are split into chunks on record boundaries that are parsed " +
+                    "and transformed in parallel and written back in their original order. Only applies to CSV " +
+                    "output without record attributes and to formats without an escape character. Parallel " +
+                    "parsing is disabled when not set.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PARALLEL_THREADS = new PropertyDescriptor
+            .Builder().name("Parallel Parsing Threads")
+            .description("Size of the fork-join pool shared by all concurrent tasks for parallel parsing.")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PARALLEL_CHUNK_SIZE = new PropertyDescriptor
+            .Builder().name("Parallel Chunk Size")
+            .description("Approximate size of the chunks parsed in parallel.")
+            .required(true)
+            .defaultValue("8 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PIPELINE_WORKERS = new PropertyDescriptor
+            .Builder().name("Pipeline Workers")
+            .description("Parses FlowFiles in three stages that run at the same time: one thread reads the " +
+                    "records, this many workers shared by all concurrent tasks mask, tokenize and encrypt them in " +
+                    "batches and the task writes them in their original order. Applies to FlowFiles that are not " +
+                    "parsed in parallel chunks, unless records create attributes, filtered records are routed or " +
+                    "bad records are quarantined. Pipelining is disabled when not set.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PIPELINE_BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("Pipeline Batch Size")
+            .description("Number of records passed between the pipeline stages at once. The encrypted columns of " +
+                    "a batch are encrypted as one chunk.")
+            .required(true)
+            .defaultValue("256")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PIPELINE_RING_SIZE = new PropertyDescriptor
+            .Builder().name("Pipeline Ring Size")
+            .description("Number of batches allocated for every concurrent task, which bounds how far reading " +
+                    "can get ahead of writing.")
+            .required(true)
+            .defaultValue("16")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SPLIT_RECORD_COUNT = new PropertyDescriptor
+            .Builder().name("Split Record Count")
+            .description("Splits the output into FlowFiles of at most this many records, each with its own header " +
+                    "and fragment attributes. The output is split while it is written, without reading it again.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SPLIT_SIZE = new PropertyDescriptor
+            .Builder().name("Split Size")
+            .description("Splits the output into FlowFiles of approximately this size, each with its own header " +
+                    "and fragment attributes. Can be combined with " + SPLIT_RECORD_COUNT.getName() + ", a new " +
+                    "FlowFile is started when either limit is reached.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PASS_THROUGH = new PropertyDescriptor
+            .Builder().name("Pass Through Unchanged Content")
+            .description("When no column is masked, encrypted or tokenized, no static schema or custom header is " +
+                    "set, the output is CSV and neither split nor partitioned, the records are only validated and " +
+                    "counted and the original content is kept instead of being printed again. Line endings, " +
+                    "quoting and empty lines of the input are then kept as they are. Only applies to formats the " +
+                    "byte level parser supports.")
+            .required(true)
+            .defaultValue("False")
+            .allowableValues("True", "False")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INPUT_COMPRESSION = new PropertyDescriptor
+            .Builder().name("Input Compression")
+            .description("Decompresses the content while it is parsed. Auto Detect decompresses gzip content and " +
+                    "reads anything else as is, deflate is zlib wrapped.")
+            .required(true)
+            .defaultValue(Compression.NONE)
+            .allowableValues(Compression.NONE, Compression.AUTO_DETECT, Compression.GZIP, Compression.DEFLATE)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor OUTPUT_COMPRESSION = new PropertyDescriptor
+            .Builder().name("Output Compression")
+            .description("Compresses the success, tokenized, filtered and failure output while it is written and " +
+                    "sets its mime.type.")
+            .required(true)
+            .defaultValue(Compression.NONE)
+            .allowableValues(Compression.NONE, Compression.GZIP)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor COMPRESSION_LEVEL = new PropertyDescriptor
+            .Builder().name("Compression Level")
+            .description("Level of the output compression, from 0 for no compression to 9 for the best.")
+            .required(true)
+            .defaultValue("1")
+            .allowableValues("0", "1", "2", "3", "4", "5", "6", "7", "8", "9")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor COMPRESSION_THREADS = new PropertyDescriptor
+            .Builder().name("Compression Threads")
+            .description("With more than one thread the output is compressed in independent blocks of 1 MB on a " +
+                    "pool of this many threads shared by all concurrent tasks, and written as a multi-member gzip " +
+                    "stream.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INSTRUMENTATION = new PropertyDescriptor
+            .Builder().name("Instrumentation")
+            .description("Reports records, bytes, transformed values and the time spent parsing, masking, " +
+                    "tokenizing, encrypting and serializing as processor counters, and optionally as attributes " +
+                    "of the output. Stage times are sampled on one record in " + StageMetrics.SAMPLE_INTERVAL +
+                    " and extrapolated.")
+            .required(true)
+            .defaultValue(StageMetrics.OFF)
+            .allowableValues(StageMetrics.OFF, StageMetrics.COUNTERS, StageMetrics.COUNTERS_AND_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RECORD_FILTER = new PropertyDescriptor
+            .Builder().name("Record Filter")
+            .description("Keeps only the records that match this filter, which is evaluated on the values as they " +
+                    "are read, before any column is masked, encrypted or tokenized. Predicates are column = 'value', " +
+                    "!=, <, <=, >, >= and between ... and ... (numeric when the bound is a number), in ('a', 'b'), " +
+                    "matches 'regex' and is [not] null, combined with and, or, not and parentheses. Column names " +
+                    "that are not plain words are quoted with double quotes.")
+            .required(false)
+            .addValidator(RecordFilter.VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FILTERED_RECORDS = new PropertyDescriptor
+            .Builder().name("Filtered Records")
+            .description("Records rejected by the " + RECORD_FILTER.getName() + " are either dropped or written, " +
+                    "with all input columns and untransformed, to the filtered relationship in the Standard " +
+                    "Output Format. Routed records are parsed serially.")
+            .required(true)
+            .defaultValue(RecordFilter.DROP)
+            .allowableValues(RecordFilter.DROP, RecordFilter.ROUTE)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DEDUPLICATE_COLUMNS = new PropertyDescriptor
+            .Builder().name("Deduplicate Columns")
+            .description("Comma separated key columns. Records whose key was already seen, in the same or an " +
+                    "earlier FlowFile and by any concurrent task, are dropped before any column is masked, " +
+                    "encrypted or tokenized. Keys are remembered in a Bloom filter, so a small share of new " +
+                    "records can be taken as duplicates, see Deduplication False Positive Rate.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DEDUPLICATION_CAPACITY = new PropertyDescriptor
+            .Builder().name("Deduplication Capacity")
+            .description("Number of keys the duplicate filter is first sized for. It grows in steps of twice " +
+                    "the previous size when more keys are added.")
+            .required(true)
+            .defaultValue("1000000")
+            .addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DEDUPLICATION_FALSE_POSITIVE_RATE = new PropertyDescriptor
+            .Builder().name("Deduplication False Positive Rate")
+            .description("Upper bound of the share of new keys that are taken as duplicates and dropped.")
+            .required(true)
+            .defaultValue("0.001")
+            .addValidator(new Validator() {
+                @Override
+                public ValidationResult validate(String subject, String input, ValidationContext context) {
+                    boolean valid;
+                    try {
+                        final double rate = Double.parseDouble(input);
+                        valid = rate > 0 && rate < 1;
+                    } catch (NumberFormatException | NullPointerException e) {
+                        valid = false;
+                    }
+                    return new ValidationResult.Builder().subject(subject).input(input).valid(valid)
+                            .explanation("must be a number between 0 and 1").build();
+                }
+            })
+            .build();
+
+    public static final PropertyDescriptor DEDUPLICATION_MAX_MEMORY = new PropertyDescriptor
+            .Builder().name("Deduplication Max Memory")
+            .description("Memory the duplicate filter may take. When growing it would take more, the keys " +
+                    "that were added first are forgotten.")
+            .required(true)
+            .defaultValue("256 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DEDUPLICATION_SNAPSHOT = new PropertyDescriptor
+            .Builder().name("Deduplication Snapshot File")
+            .description("Local file the duplicate filter is saved to when the processor is stopped and " +
+                    "restored from when it is scheduled, so keys are remembered across restarts. A snapshot " +
+                    "taken with other key columns, capacity or false positive rate is not restored.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BAD_RECORD_TOLERANCE = new PropertyDescriptor
+            .Builder().name("Bad Record Tolerance")
+            .description("When set, malformed records and records whose number of fields differs from the header " +
+                    "are written to failure as CSV rows of line, reason and record while the good records go to " +
+                    "success in the same pass. With more bad records than this, the FlowFile is routed to failure " +
+                    "as a whole. Formats that go through commons-csv cannot continue after a malformed record, " +
+                    "which also routes the FlowFile to failure as a whole. When not set, a bad record fails the " +
+                    "session.")
+            .required(false)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor COLUMN_PROFILE = new PropertyDescriptor
+            .Builder().name("Column Profile")
+            .description("Profiles the columns while the records are parsed: count, empty values, minimum and " +
+                    "maximum length, an estimate of the number of distinct values and, for columns that are not " +
+                    "masked, encrypted or tokenized, minimum, maximum and mean of the numeric values and the most " +
+                    "frequent values. Only records that pass the filters are profiled. The profile is written as " +
+                    "attributes of the output or as a JSON document to the profile relationship. Content is not " +
+                    "passed through unchanged and not parsed in parallel chunks while profiling.")
+            .required(true)
+            .defaultValue(ColumnProfiler.OFF)
+            .allowableValues(ColumnProfiler.OFF, ColumnProfiler.ATTRIBUTES, ColumnProfiler.JSON)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROFILE_COLUMNS = new PropertyDescriptor
+            .Builder().name("Profile Columns")
+            .description("Comma separated input columns to profile, all of them when not set.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROFILE_TOP_VALUES = new PropertyDescriptor
+            .Builder().name("Profile Top Values")
+            .description("Number of most frequent values reported per column. They are estimated with a fixed " +
+                    "number of counters, a count may be overestimated by the error reported with it in JSON. " +
+                    "Values that are not certainly more frequent than the values left out are not reported.")
+            .required(true)
+            .defaultValue("5")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PARTITION_COLUMN = new PropertyDescriptor
+            .Builder().name("Partition Column")
+            .description("Partitions the output by a hash of this output column, for example the column of " +
+                    TOKENIZE_UNQIUE_IDENTIFIER.getName() + ". Every partition is streamed to its own FlowFile " +
+                    "with its own header and a partition attribute while the records are parsed, so parallel " +
+                    "loaders can each take one partition. The column is hashed as it is written, so it has to be " +
+                    "in the Static Schema when there is one and cannot be encrypted or randomly masked. " +
+                    "Partitioned output is not split and not parsed in parallel chunks.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PARTITION_COUNT = new PropertyDescriptor
+            .Builder().name("Partition Count")
+            .description("Number of partitions, every FlowFile is written to this many FlowFiles, empty " +
+                    "partitions included. Every partition keeps an output stream open while parsing, so there " +
+                    "are at most " + PartitionWriter.MAX_PARTITIONS + ".")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.createLongValidator(1, PartitionWriter.MAX_PARTITIONS, true))
+            .build();
+
     public static final Relationship RELATIONSHIP_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("success")
             .build();
     public static final Relationship RELATIONSHIP_FAILURE = new Relationship.Builder()
             .name("failure")
-            .description("failure")
+            .description("Bad records, FlowFiles with more bad records than the Bad Record Tolerance and FlowFiles " +
+                    "that cannot be parsed")
             .build();
     public static final Relationship RELATIONSHIP_TOKENIZED = new Relationship.Builder()
             .name("tokenized")
             .description("tokenized")
             .build();
+    public static final Relationship RELATIONSHIP_FILTERED = new Relationship.Builder()
+            .name("filtered")
+            .description("Records rejected by the Record Filter when Filtered Records routes them")
+            .build();
+    public static final Relationship RELATIONSHIP_PROFILE = new Relationship.Builder()
+            .name("profile")
+            .description("Column profile of every parsed FlowFile when Column Profile is JSON")
+            .build();
 
     private List<PropertyDescriptor> descriptors;
 
@@ -197,22 +692,66 @@ public class ParseCSV extends AbstractProcessor {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
         descriptors.add(FORMAT);
         descriptors.add(CREATE_ATTRIBUTES);
+        descriptors.add(ATTRIBUTE_RECORDS);
+        descriptors.add(ATTRIBUTE_RECORD_COUNT);
+        descriptors.add(ATTRIBUTE_COLUMNS);
+        descriptors.add(MAX_ATTRIBUTE_SIZE);
         descriptors.add(DELIMITER);
         descriptors.add(WITH_HEADER);
         descriptors.add(STATIC_SCHEMA);
         descriptors.add(OUTPUT_FORMAT);
+        descriptors.add(JSON_MODE);
         descriptors.add(CUSTOM_HEADER);
+        descriptors.add(FIXED_WIDTH_LAYOUT);
         descriptors.add(COLUMN_MASK);
         descriptors.add(COLUMN_ENCRYPT);
         descriptors.add(COLUMN_TOKENIZE);
         descriptors.add(TOKENIZE_UNQIUE_IDENTIFIER);
         descriptors.add(TOKENIZED_OUTPUT);
+        descriptors.add(TOKENIZED_TABLE);
+        descriptors.add(TOKENIZED_BATCH_SIZE);
+        descriptors.add(TOKEN_VAULT_DIRECTORY);
+        descriptors.add(TOKEN_VAULT_CACHE_SIZE);
+        descriptors.add(ENCRYPTION_KEY);
+        descriptors.add(ENCRYPTION_BATCH_SIZE);
+        descriptors.add(MASK_MODE);
+        descriptors.add(MASK_KEY);
+        descriptors.add(FLOWFILE_BATCH_SIZE);
+        descriptors.add(PARALLEL_THRESHOLD);
+        descriptors.add(PARALLEL_THREADS);
+        descriptors.add(PARALLEL_CHUNK_SIZE);
+        descriptors.add(PIPELINE_WORKERS);
+        descriptors.add(PIPELINE_BATCH_SIZE);
+        descriptors.add(PIPELINE_RING_SIZE);
+        descriptors.add(SPLIT_RECORD_COUNT);
+        descriptors.add(SPLIT_SIZE);
+        descriptors.add(PASS_THROUGH);
+        descriptors.add(INPUT_COMPRESSION);
+        descriptors.add(OUTPUT_COMPRESSION);
+        descriptors.add(COMPRESSION_LEVEL);
+        descriptors.add(COMPRESSION_THREADS);
+        descriptors.add(INSTRUMENTATION);
+        descriptors.add(RECORD_FILTER);
+        descriptors.add(FILTERED_RECORDS);
+        descriptors.add(DEDUPLICATE_COLUMNS);
+        descriptors.add(DEDUPLICATION_CAPACITY);
+        descriptors.add(DEDUPLICATION_FALSE_POSITIVE_RATE);
+        descriptors.add(DEDUPLICATION_MAX_MEMORY);
+        descriptors.add(DEDUPLICATION_SNAPSHOT);
+        descriptors.add(BAD_RECORD_TOLERANCE);
+        descriptors.add(COLUMN_PROFILE);
+        descriptors.add(PROFILE_COLUMNS);
+        descriptors.add(PROFILE_TOP_VALUES);
+        descriptors.add(PARTITION_COLUMN);
+        descriptors.add(PARTITION_COUNT);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
         relationships.add(RELATIONSHIP_SUCCESS);
         relationships.add(RELATIONSHIP_FAILURE);
         relationships.add(RELATIONSHIP_TOKENIZED);
+        relationships.add(RELATIONSHIP_FILTERED);
+        relationships.add(RELATIONSHIP_PROFILE);
         this.relationships = Collections.unmodifiableSet(relationships);
     }
 
@@ -226,302 +765,750 @@ public class ParseCSV extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (context.getProperty(COLUMN_ENCRYPT).getValue() != null
+                && context.getProperty(ENCRYPTION_KEY).getValue() == null) {
+            results.add(new ValidationResult.Builder().subject(ENCRYPTION_KEY.getName()).valid(false)
+                    .explanation(ENCRYPTION_KEY.getName() + " is required when " + COLUMN_ENCRYPT.getName()
+                            + " is set").build());
+        }
+        if (MaskEngine.DETERMINISTIC.equals(context.getProperty(MASK_MODE).getValue())
+                && context.getProperty(MASK_KEY).getValue() == null) {
+            results.add(new ValidationResult.Builder().subject(MASK_KEY.getName()).valid(false)
+                    .explanation(MASK_KEY.getName() + " is required for " + MaskEngine.DETERMINISTIC + " "
+                            + MASK_MODE.getName()).build());
+        }
+        if (!Compression.NONE.equals(context.getProperty(OUTPUT_COMPRESSION).getValue())
+                && (context.getProperty(SPLIT_RECORD_COUNT).getValue() != null
+                || context.getProperty(SPLIT_SIZE).getValue() != null)) {
+            results.add(new ValidationResult.Builder().subject(OUTPUT_COMPRESSION.getName()).valid(false)
+                    .explanation("split output cannot be compressed, its segments are byte ranges of one output")
+                    .build());
+        }
+        if (context.getProperty(FIXED_WIDTH_LAYOUT).getValue() != null
+                && context.getProperty(CUSTOM_HEADER).getValue() != null) {
+            results.add(new ValidationResult.Builder().subject(CUSTOM_HEADER.getName()).valid(false)
+                    .explanation("the " + FIXED_WIDTH_LAYOUT.getName() + " names the columns").build());
+        }
+        if (context.getProperty(PARTITION_COLUMN).getValue() != null
+                && (context.getProperty(SPLIT_RECORD_COUNT).getValue() != null
+                || context.getProperty(SPLIT_SIZE).getValue() != null)) {
+            results.add(new ValidationResult.Builder().subject(PARTITION_COLUMN.getName()).valid(false)
+                    .explanation("partitioned output cannot be split").build());
+        }
+        final String partition_column = context.getProperty(PARTITION_COLUMN).getValue();
+        if (partition_column != null) {
+            // the partition is chosen by the output value, which has to be the same for the same input value
+            String explanation = null;
+            final String static_schema = context.getProperty(STATIC_SCHEMA).getValue();
+            if (ParsePlan.toSet(context.getProperty(COLUMN_ENCRYPT).getValue()).contains(partition_column)) {
+                explanation = "the partition column cannot be encrypted";
+            } else if (ParsePlan.toSet(context.getProperty(COLUMN_MASK).getValue()).contains(partition_column)
+                    && !MaskEngine.DETERMINISTIC.equals(context.getProperty(MASK_MODE).getValue())) {
+                explanation = "the partition column can only be masked in " + MaskEngine.DETERMINISTIC + " "
+                        + MASK_MODE.getName();
+            } else if (static_schema != null && !ParsePlan.toSet(static_schema).contains(partition_column)) {
+                explanation = "the partition column is not in the " + STATIC_SCHEMA.getName();
+            }
+            if (explanation != null) {
+                results.add(new ValidationResult.Builder().subject(PARTITION_COLUMN.getName()).valid(false)
+                        .explanation(explanation).build());
+            }
+        }
+        return results;
+    }
+
+    private volatile ParsePlan plan;
+    private volatile ChunkedParser chunkedParser;
+    private volatile PipelinedParser pipelinedParser;
+    private volatile ExecutorService compressionPool;
+    private volatile boolean fastParsing;
+    private volatile long parallelThreshold;
+
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
+        this.plan = ParsePlan.compile(context);
+        try {
+            this.fastParsing = FastCsvParser.supports(plan);
+            if (plan.inputLayout != ParsePlan.INPUT_CSV && !fastParsing) {
+                throw new ProcessException("Fixed width and multi character delimited content can only be read in an "
+                        + "ASCII compatible charset, not " + Charset.defaultCharset());
+            }
+
+            if (context.getProperty(PARALLEL_THRESHOLD).getValue() != null && ChunkedParser.supports(plan)) {
+                this.parallelThreshold = context.getProperty(PARALLEL_THRESHOLD).asDataSize(DataUnit.B).longValue();
+                this.chunkedParser = new ChunkedParser(plan, context.getProperty(PARALLEL_THREADS).asInteger(),
+                        context.getProperty(PARALLEL_CHUNK_SIZE).asDataSize(DataUnit.B).intValue());
+            }
+            if (context.getProperty(PIPELINE_WORKERS).getValue() != null && PipelinedParser.supports(plan)) {
+                this.pipelinedParser = new PipelinedParser(plan, context.getProperty(PIPELINE_WORKERS).asInteger(),
+                        context.getProperty(PIPELINE_RING_SIZE).asInteger(),
+                        context.getProperty(PIPELINE_BATCH_SIZE).asInteger());
+            }
+            if (Compression.GZIP.equals(plan.outputCompression) && plan.compressionThreads > 1) {
+                this.compressionPool = Executors.newFixedThreadPool(plan.compressionThreads);
+            }
+            if (plan.duplicatesSnapshot != null && plan.duplicatesSnapshot.isFile()) {
+                try {
+                    if (!plan.duplicates.load(plan.duplicatesSnapshot)) {
+                        getLogger().warn("Not restoring duplicate filter from {}, it was saved with other settings",
+                                new Object[]{plan.duplicatesSnapshot});
+                    }
+                } catch (IOException e) {
+                    getLogger().warn("Unable to restore duplicate filter, starting with an empty one", e);
+                }
+            }
+        } catch (RuntimeException e) {
+            // the plan is not used, so the token vault lock is released for the next attempt
+            final ParsePlan failed = plan;
+            plan = null;
+            onStopped();
+            if (failed.tokenVault != null) {
+                try {
+                    failed.tokenVault.close();
+                } catch (IOException closeFailure) {
+                    e.addSuppressed(closeFailure);
+                }
+            }
+            throw e;
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (chunkedParser != null) {
+            chunkedParser.shutdown();
+            chunkedParser = null;
+        }
+        if (pipelinedParser != null) {
+            pipelinedParser.shutdown();
+            pipelinedParser = null;
+        }
+        if (compressionPool != null) {
+            compressionPool.shutdown();
+            compressionPool = null;
+        }
+        if (plan != null && plan.duplicatesSnapshot != null) {
+            try {
+                plan.duplicates.save(plan.duplicatesSnapshot);
+            } catch (IOException e) {
+                getLogger().warn("Unable to save duplicate filter", e);
+            }
+        }
+        if (plan != null && plan.tokenVault != null) {
+            try {
+                plan.tokenVault.close();
+            } catch (IOException e) {
+                getLogger().warn("Unable to close token vault", e);
+            }
+        }
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
 
-        final Charset charset = Charset.defaultCharset();
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
+        final ParsePlan plan = this.plan;
+        final List<FlowFile> flowFiles = session.get(plan.flowFileBatchSize);
+        if (flowFiles.isEmpty()) {
             return;
         }
-        // TODO implement
-        final Map<String, String> attributes = new LinkedHashMap<>();
-        final String format = context.getProperty(FORMAT).getValue();
-        final boolean create_attributes = Boolean.parseBoolean(context.getProperty(CREATE_ATTRIBUTES).getValue());
-        final char delimiter = context.getProperty(DELIMITER).getValue().charAt(0);
-        final boolean with_header = Boolean.parseBoolean(context.getProperty(WITH_HEADER).getValue());
-        final String output_format = context.getProperty(OUTPUT_FORMAT).getValue();
-        final String custom_header = context.getProperty(CUSTOM_HEADER).getValue();
-        final String column_mask = context.getProperty(COLUMN_MASK).getValue();
-        final String column_encrypt = context.getProperty(COLUMN_ENCRYPT).getValue();
-        final String column_tokenize = context.getProperty(COLUMN_TOKENIZE).getValue();
-        final String tokenize_unique_identifier = context.getProperty(TOKENIZE_UNQIUE_IDENTIFIER).getValue();
-        final String tokenized_ouput = context.getProperty(TOKENIZED_OUTPUT).getValue();
-        final String encryptionKey = "Bar12345Bar12345";
-        final String static_schema = context.getProperty(STATIC_SCHEMA).getValue();
-
-        // new flowfile here
-        final org.apache.nifi.util.ObjectHolder<FlowFile> holder = new org.apache.nifi.util.ObjectHolder<>(null);
-
-        flowFile = session.write(flowFile, new StreamCallback() {
-            @Override
-            public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
 
-                CSVFormat csvFormat = buildFormat(format, delimiter, with_header, custom_header);
-                CSVParser csvParser = new CSVParser(new InputStreamReader(inputStream, charset), csvFormat);
-                CSVPrinter csvPrinter = new CSVPrinter(new OutputStreamWriter(outputStream, charset), csvFormat);
-                String headerArray[];
-
-                ArrayList<String> columnMaskList = new ArrayList<>();
-                ArrayList<String> columnEncryptList = new ArrayList<String>();
-                ArrayList<String> columnTokenizeList = new ArrayList<String>();
-
-                List<String> maskValueHolder = new LinkedList<>();
-                FlowFile tokenized = session.create();
+        final ParseCallback callback = new ParseCallback(plan, fastParsing ? new FastCsvParser(plan) : null);
+        callback.compressionPool = compressionPool;
+        callback.pipelinedParser = pipelinedParser;
+        final ChunkedParser chunkedParser = this.chunkedParser;
+        for (final FlowFile flowFile : flowFiles) {
+            callback.chunkedParser = chunkedParser != null && flowFile.getSize() >= parallelThreshold
+                    ? chunkedParser : null;
+            parse(session, plan, callback, flowFile);
+        }
+    }
 
-                // print header if needed
-                if (custom_header != null && output_format.equals("CSV") && static_schema == null) {
-                    csvPrinter.printRecord(custom_header);
-                    headerArray = custom_header.split(",");
-                }
-                else if (static_schema != null && custom_header == null)
-                {
-                    csvPrinter.printRecord(static_schema.replace("\"",""));
-                    headerArray = static_schema.split(",");
-                }
-                else {
-                    headerArray = csvParser.getHeaderMap().keySet().toArray(new String[0]);
-                    csvPrinter.printRecord(headerArray);
-                }
+    private void parse(final ProcessSession session, final ParsePlan plan, final ParseCallback callback,
+                       FlowFile flowFile) {
+        callback.reset();
+        final long bytesIn = flowFile.getSize();
+        final List<PartitionOutput> partitions = new ArrayList<>(plan.partitions);
 
-                if (column_mask != null) {
-                    columnMaskList =
-                            new ArrayList<>(Arrays.asList(column_mask.replace("\"","").split(",")));
+        if (plan.passThrough) {
+            // the content claim is kept, the records are only read to validate and count them
+            try {
+                session.read(flowFile, callback);
+            } catch (ProcessException | IllegalStateException | IllegalArgumentException e) {
+                fail(session, flowFile, callback, e);
+                return;
+            }
+            flowFile = session.putAttribute(flowFile, RECORD_COUNT, String.valueOf(callback.records));
+        } else {
+            // side outputs are streamed by writers that stay open for the whole parse
+            final List<SideOutput> outputs = new ArrayList<>(3);
+            if (plan.tokenizes) {
+                outputs.add(new TokenizedOutput());
+            }
+            if (plan.routesFiltered) {
+                outputs.add(new FilteredOutput());
+            }
+            if (plan.quarantines) {
+                outputs.add(new QuarantineOutput());
+            }
+            if (ColumnProfiler.JSON.equals(plan.profileOutput)) {
+                outputs.add(new ProfileOutput());
+            }
+            // partitions are written like side outputs, the parsed FlowFile is left without content
+            final List<SideOutput> writes = new ArrayList<>(outputs);
+            for (int i = 0; i < plan.partitions; i++) {
+                partitions.add(new PartitionOutput(i));
+            }
+            writes.addAll(partitions);
+            try {
+                flowFile = write(session, plan, callback, flowFile, writes, 0);
+            } catch (ProcessException | IllegalStateException | IllegalArgumentException e) {
+                // the content is left as it was, the side outputs written so far are dropped
+                for (final SideOutput output : writes) {
+                    if (output.flowFile != null) {
+                        session.remove(output.flowFile);
+                    }
                 }
+                fail(session, flowFile, callback, e);
+                return;
+            }
 
-                if (column_encrypt != null) {
-                    columnEncryptList =
-                            new ArrayList<>(Arrays.asList(column_encrypt.split(",")));
+            for (final SideOutput output : outputs) {
+                if (output.records == 0) {
+                    session.remove(output.flowFile);
+                    continue;
                 }
-
-                if (column_tokenize != null) {
-                    columnTokenizeList =
-                            new ArrayList<>(Arrays.asList(column_tokenize.split(",")));
+                FlowFile side = session.putAllAttributes(output.flowFile, output.attributes(callback));
+                if (!Compression.NONE.equals(plan.outputCompression)) {
+                    side = session.putAttribute(side, CoreAttributes.MIME_TYPE.key(), Compression.GZIP_MIME_TYPE);
                 }
+                session.transfer(side, output.relationship);
+            }
+            if (callback.quarantine != null) {
+                flowFile = session.putAllAttributes(flowFile, callback.quarantine.attributes());
+            }
+        }
 
-                // loop through records and print
-                for (final CSVRecord record : csvParser) {
+        if (!Compression.NONE.equals(plan.outputCompression)) {
+            flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), Compression.GZIP_MIME_TYPE);
+        }
+        if (callback.attributes != null) {
+            flowFile = session.putAllAttributes(flowFile, callback.attributes.finish());
+        }
+        if (ColumnProfiler.ATTRIBUTES.equals(plan.profileOutput)) {
+            flowFile = session.putAllAttributes(flowFile, callback.profiler.attributes());
+        }
+        if (callback.metrics != null) {
+            long bytesOut = flowFile.getSize();
+            for (final PartitionOutput partition : partitions) {
+                bytesOut += partition.flowFile.getSize();
+            }
+            callback.metrics.bytes(bytesIn, bytesOut);
+            callback.metrics.report(session);
+            if (plan.metricAttributes) {
+                flowFile = session.putAllAttributes(flowFile, callback.metrics.attributes());
+            }
+        }
+        if (!partitions.isEmpty()) {
+            partition(session, flowFile, partitions);
+        } else if (callback.splitter == null) {
+            session.transfer(flowFile, RELATIONSHIP_SUCCESS);
+        } else {
+            split(session, flowFile, callback.splitter);
+        }
+    }
 
-                    Map<String, String> k = record.toMap();
+    /**
+     * Routes a FlowFile that cannot be parsed to failure, the other FlowFiles of the batch are still parsed.
+     */
+    private void fail(final ProcessSession session, final FlowFile flowFile, final ParseCallback callback,
+                      final RuntimeException e) {
+        if (e instanceof Quarantine.Rejected) {
+            getLogger().warn("Routing {} to failure: {}", new Object[]{flowFile, e.getMessage()});
+            session.transfer(session.putAllAttributes(flowFile, callback.quarantine.attributes()),
+                    RELATIONSHIP_FAILURE);
+        } else {
+            getLogger().error("Unable to parse {}, routing to failure", new Object[]{flowFile}, e);
+            session.transfer(flowFile, RELATIONSHIP_FAILURE);
+        }
+    }
 
-                    for (Map.Entry<String,String> konj: k.entrySet())
-                    {
-                        //System.out.println(konj.getValue());
-                    }
-                    // generate attributes if required per record
-                    if (create_attributes) {
-                        for (int i = 0; i < headerArray.length; i++) {
-                            //attributes.put(headerArray[i], record.get(i));
-                            attributes.put(headerArray[i] + "." + record.getRecordNumber(), record.get(i));
-                        }
-                    }
-                    // check masked columns
-                    if (column_mask != null || column_encrypt != null) {
-                        // we have to loop through the header array and match user requested mask columns
-                        for (int i = 0; i < headerArray.length; i++) {
-                            //System.out.println(headerArray[i] + "." + record.getRecordNumber() + " - " + mask(record.get(i)));
-
-                            if (columnMaskList.contains(headerArray[i])) {
-                                // set mask
-                                maskValueHolder.add(mask(record.get(i)));
-
-                                // construct tokenization row for external DB store
-                                if (columnTokenizeList.contains(headerArray[i])) {
-                                    final String tokenizedRow;
-                                    tokenizedRow = tokenizationOut(tokenized_ouput, headerArray[i],
-                                            tokenize_unique_identifier,mask(record.get(i)),record.get(i),
-                                            Long.toString(record.getRecordNumber()));
-
-                                    tokenized = session.append(tokenized, new OutputStreamCallback() {
-                                        @Override
-                                        public void process(OutputStream outputStream) throws IOException {
-                                            outputStream.write(tokenizedRow.getBytes());
-                                        }
-                                    });
-                                }
-                            }
-                            else if (columnEncryptList.contains(headerArray[i])) {
-                                // encrypt
-                                maskValueHolder.add(new String(Encrypt( record.get(i), encryptionKey), "UTF-8"));
-                            }
-                            else {
-                                // no mask
-                                maskValueHolder.add(record.get(i));
-                            }
-                        }
-                        csvPrinter.printRecord(maskValueHolder);
-                        // clear mask column holder
-                        maskValueHolder.clear();
-                    }
-                    else {
-                        // no masking or encryption required, print record
-                        switch (output_format) {
-                            case "CSV":
-                                //csvPrinter.printRecord(record);
-                                List<String> items = Arrays.asList(static_schema.split(","));
-                                String lastColumn = items.get(items.size() - 1);
-                                String test = "";
-                                for (String item: items)
-                                {
-                                    if (item != lastColumn) {
-                                        test += record.get(item) + ",";
-                                    }
-                                    else {
-                                        test += record.get(item);
-                                    }
-                                }
-
-                                csvPrinter.printRecord(test.replace("^\"|\"$", ""));
-                                break;
-                            case "JSON":
-                                String json = new ObjectMapper().writer().withDefaultPrettyPrinter().
-                                        writeValueAsString(record.toMap()) + "\n";
-                                if (json.length() > 0) {
-                                    outputStream.write(json.getBytes());
-                                }
-
-                                //List<Map<?, ?>> data = readObjectsFromCsv(inputStream);
-                                //String adis = writeAsJson(data);
-                                //outputStream.write(writeAsJson(data).getBytes());
-                                break;
-                            case "XML":
-                                outputStream.write(new XmlMapper().writeValueAsString(record.toMap()).getBytes());
-                                break;
-                        }
-                    }
+    /**
+     * Writes the parsed FlowFile with the side outputs from {@code index} on open. Every side output is
+     * written by a FlowFile write that encloses the writes of the following ones and of the parsed
+     * FlowFile, so all of them are streamed in the one pass over the content.
+     */
+    private static FlowFile write(final ProcessSession session, final ParsePlan plan, final ParseCallback callback,
+                                  final FlowFile flowFile, final List<SideOutput> outputs, final int index) {
+        if (index == outputs.size()) {
+            return session.write(flowFile, callback);
+        }
+        final SideOutput output = outputs.get(index);
+        final ObjectHolder<FlowFile> holder = new ObjectHolder<>(null);
+        output.flowFile = session.create(flowFile);
+        output.flowFile = session.write(output.flowFile, new OutputStreamCallback() {
+            @Override
+            public void process(OutputStream outputStream) throws IOException {
+                final OutputStream out = Compression.compress(plan, outputStream, callback.compressionPool);
+                output.open(plan, callback, out);
+                holder.set(write(session, plan, callback, flowFile, outputs, index + 1));
+                output.records = output.finish(callback);
+                if (out != outputStream) {
+                    out.close();
                 }
-                csvPrinter.flush();
-                csvPrinter.close();
-                holder.set(tokenized);
             }
         });
+        return holder.get();
+    }
+
+    /**
+     * A FlowFile created from the parsed one and written in the same pass, transferred when it has records.
+     */
+    private abstract static class SideOutput {
+        private final Relationship relationship;
+        FlowFile flowFile;
+        private long records;
+
+        private SideOutput(final Relationship relationship) {
+            this.relationship = relationship;
+        }
 
-        flowFile = session.putAllAttributes(flowFile, attributes);
-        session.transfer(flowFile, RELATIONSHIP_SUCCESS);
-        session.transfer(holder.get(), RELATIONSHIP_TOKENIZED);
+        abstract void open(ParsePlan plan, ParseCallback callback, OutputStream out) throws IOException;
+
+        /**
+         * @return number of records written
+         */
+        abstract long finish(ParseCallback callback) throws IOException;
+
+        Map<String, String> attributes(final ParseCallback callback) {
+            return Collections.emptyMap();
+        }
     }
 
-    private byte[] Encrypt(String data, String key) {
-        byte[] returnEncrypted = null;
-        try {
-            // Create key and cipher
-            Key aesKey = new SecretKeySpec(key.getBytes(), "AES");
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    private static final class TokenizedOutput extends SideOutput {
+        private TokenizedOutput() {
+            super(RELATIONSHIP_TOKENIZED);
+        }
 
-            // encrypt the text
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-            returnEncrypted = cipher.doFinal(Base64.encodeBase64(data.getBytes()));
+        @Override
+        void open(final ParsePlan plan, final ParseCallback callback, final OutputStream out) {
+            callback.tokenizedWriter = new TokenizedWriter(out, plan.tokenizedOutput, plan.tokenizedTable,
+                    plan.tokenizedBatchSize);
+        }
 
-            // decrypt the text
-            //cipher.init(Cipher.DECRYPT_MODE, aesKey);
-            //String decrypted = new String(cipher.doFinal(encrypted));
-            //System.err.println(decrypted);
+        @Override
+        long finish(final ParseCallback callback) throws IOException {
+            return callback.tokenizedWriter.finish();
         }
-        catch(Exception e) {
-            e.printStackTrace();
+    }
+
+    private static final class FilteredOutput extends SideOutput {
+        private FilteredOutput() {
+            super(RELATIONSHIP_FILTERED);
+        }
+
+        @Override
+        void open(final ParsePlan plan, final ParseCallback callback, final OutputStream out) throws IOException {
+            callback.filteredWriter = new CountingRecordWriter(RecordWriter.create(plan, out));
+        }
+
+        @Override
+        long finish(final ParseCallback callback) throws IOException {
+            callback.filteredWriter.finish();
+            return callback.filteredWriter.records;
         }
-        return Base64.encodeBase64(returnEncrypted);
     }
 
-    public static List<Map<?, ?>> readObjectsFromCsv(InputStream is) throws IOException {
-        CsvSchema bootstrap = CsvSchema.emptySchema().withHeader();
-        CsvMapper csvMapper = new CsvMapper();
-        MappingIterator<Map<?, ?>> mappingIterator = csvMapper.reader(Map.class).with(bootstrap).readValues(is);
+    private static final class QuarantineOutput extends SideOutput {
+        private QuarantineOutput() {
+            super(RELATIONSHIP_FAILURE);
+        }
 
-        return mappingIterator.readAll();
+        @Override
+        void open(final ParsePlan plan, final ParseCallback callback, final OutputStream out) throws IOException {
+            callback.quarantine.open(out);
+        }
+
+        @Override
+        long finish(final ParseCallback callback) throws IOException {
+            return callback.quarantine.finish();
+        }
+
+        @Override
+        Map<String, String> attributes(final ParseCallback callback) {
+            return callback.quarantine.attributes();
+        }
     }
 
-    public static String writeAsJson(List<Map<?, ?>> data) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        //mapper.writeValue(file, data);
-        return mapper.writer().withDefaultPrettyPrinter().writeValueAsString(data);
+    private static final class ProfileOutput extends SideOutput {
+        private ProfileOutput() {
+            super(RELATIONSHIP_PROFILE);
+        }
+
+        @Override
+        void open(final ParsePlan plan, final ParseCallback callback, final OutputStream out) {
+            callback.profileOut = out;
+        }
+
+        @Override
+        long finish(final ParseCallback callback) throws IOException {
+            callback.profiler.write(callback.profileOut);
+            // the profile is transferred even when no record was profiled
+            return 1;
+        }
     }
 
-    private String tokenizationOut (String store, String columnName, String uniqueIdentifier, String maskedValue, String sourceValue, String rowNumber) {
-        String storeOutput = null;
-
-        switch (store) {
-            case "APACHE PHOENIX":
-                storeOutput = "values ('" + columnName + "'" + "," +
-                        "'" + (uniqueIdentifier.equals("RowNumber()") ?
-                        rowNumber : uniqueIdentifier) + "'" + "," +
-                        "'" + maskedValue + "'" + "," +
-                        "'" + sourceValue + "')" + "\r\n";
-                break;
-            case "MySQL":
-                storeOutput = "values ('" + columnName + "'" + "," +
-                        "'" + (uniqueIdentifier.equals("RowNumber()") ?
-                        rowNumber : uniqueIdentifier) + "'" + "," +
-                        "'" + maskedValue + "'" + "," +
-                        "'" + sourceValue + "')" + "\r\n";
-                break;
-            case "JSON":
-                storeOutput = "{\"ColumnName\": " + "\"" + columnName + "\"," +
-                        "\"UniqueIdentifier\": " + "\"" + (uniqueIdentifier.equals("RowNumber()") ?
-                        rowNumber : uniqueIdentifier) + "\"," +
-                        "\"MaskedValue\": " + "\"" + maskedValue + "\"," +
-                        "\"SourceValue\": " + "\"" + sourceValue + "\"}" + "\r\n";
-                break;
-        }
-
-        return storeOutput;
+    private static final class PartitionOutput extends SideOutput {
+        private final int index;
+
+        private PartitionOutput(final int index) {
+            super(RELATIONSHIP_SUCCESS);
+            this.index = index;
+        }
+
+        @Override
+        void open(final ParsePlan plan, final ParseCallback callback, final OutputStream out) throws IOException {
+            callback.partitionWriter.open(index, out);
+        }
+
+        @Override
+        long finish(final ParseCallback callback) {
+            return callback.partitionWriter.records(index);
+        }
     }
 
-    private CSVFormat buildFormat(String format, char delimiter, Boolean with_header, String custom_header) {
-        CSVFormat csvFormat = null;
+    /**
+     * Counts the records of a side output.
+     */
+    private static final class CountingRecordWriter extends RecordWriter {
+        private final RecordWriter writer;
+        private long records;
 
-        // set pre built format
-        if (format.equals("DEFAULT")) {
-            csvFormat = CSVFormat.DEFAULT;
-        } else if (format.equals("EXCEL")) {
-            csvFormat = CSVFormat.EXCEL;
+        private CountingRecordWriter(final RecordWriter writer) {
+            this.writer = writer;
         }
 
+        @Override
+        void begin(String[] header, boolean printHeader) throws IOException {
+            writer.begin(header, printHeader);
+        }
 
-        if (with_header & custom_header != null) {
-            csvFormat = csvFormat.withSkipHeaderRecord(true);
-            csvFormat = csvFormat.withHeader(custom_header);
-        } else if (with_header & custom_header == null) {
-            csvFormat = csvFormat.withHeader();
+        @Override
+        void write(String[] values) throws IOException {
+            writer.write(values);
+            records++;
         }
 
-        if (delimiter > 0) {
-            csvFormat = csvFormat.withDelimiter(delimiter);
+        @Override
+        void finish() throws IOException {
+            writer.finish();
         }
-        return csvFormat;
     }
 
-    private String mask(String str) {
+    /**
+     * Transfers the segments of the output as FlowFiles that reference ranges of its content.
+     */
+    private void split(final ProcessSession session, FlowFile flowFile, final OutputSplitter splitter) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(FRAGMENT_ID, UUID.randomUUID().toString());
+        attributes.put(FRAGMENT_COUNT, String.valueOf(splitter.count()));
+        attributes.put(SEGMENT_ORIGINAL_FILENAME, flowFile.getAttribute(CoreAttributes.FILENAME.key()));
+
+        if (splitter.count() == 1) {
+            attributes.put(FRAGMENT_INDEX, "1");
+            session.transfer(session.putAllAttributes(flowFile, attributes), RELATIONSHIP_SUCCESS);
+            return;
+        }
+
+        for (int i = 0; i < splitter.count(); i++) {
+            FlowFile segment = session.clone(flowFile, splitter.offset(i), splitter.size(i));
+            attributes.put(FRAGMENT_INDEX, String.valueOf(i + 1));
+            segment = session.putAllAttributes(segment, attributes);
+            session.transfer(segment, RELATIONSHIP_SUCCESS);
+        }
+        session.remove(flowFile);
+    }
+
+    /**
+     * Transfers the partitions in place of the parsed FlowFile, with its attributes. Empty partitions are
+     * transferred as well so every FlowFile always yields the same partitions.
+     */
+    private void partition(final ProcessSession session, final FlowFile flowFile,
+                           final List<PartitionOutput> partitions) {
+        final Map<String, String> attributes = new HashMap<>(flowFile.getAttributes());
+        attributes.remove(CoreAttributes.UUID.key());
+        attributes.put(PARTITION_TOTAL, String.valueOf(partitions.size()));
+        for (final PartitionOutput partition : partitions) {
+            attributes.put(PARTITION, String.valueOf(partition.index));
+            session.transfer(session.putAllAttributes(partition.flowFile, attributes), RELATIONSHIP_SUCCESS);
+        }
+        session.remove(flowFile);
+    }
+
+    /**
+     * Parses one FlowFile and writes the transformed records, optionally streaming tokenization rows.
+     * One callback is reused for all FlowFiles of a batch so the record buffers are only allocated
+     * again when the header changes, and the ring of the pipelined parser only once. Content passed
+     * through unchanged is only read.
+     */
+    private static final class ParseCallback implements StreamCallback, InputStreamCallback {
+        private final ParsePlan plan;
+        private final FastCsvParser fastParser;
+        private final OutputSplitter splitter;
+        private final AttributeCollector attributes;
+        private final StageMetrics metrics;
+        private final Quarantine quarantine;
+        private final ColumnProfiler profiler;
+        private final PartitionWriter partitionWriter;
+        private TokenizedWriter tokenizedWriter;
+        private OutputStream profileOut;
+        private CountingRecordWriter filteredWriter;
+        private ChunkedParser chunkedParser;
+        private PipelinedParser pipelinedParser;
+        private PipelinedParser.Ring ring;
+        private ExecutorService compressionPool;
+        private long records;
+
+        private ParsePlan.Columns bufferColumns;
+        private String[][] buffer;
+
+        private ParseCallback(final ParsePlan plan, final FastCsvParser fastParser) {
+            this.plan = plan;
+            this.fastParser = fastParser;
+            this.splitter = plan.splits ? new OutputSplitter(plan.splitRecords, plan.splitBytes) : null;
+            this.attributes = plan.createAttributes ? new AttributeCollector(plan) : null;
+            this.metrics = plan.instrumented ? new StageMetrics() : null;
+            this.quarantine = plan.quarantines ? new Quarantine(plan.badRecordTolerance) : null;
+            this.profiler = plan.profiles ? new ColumnProfiler(plan.profileTopValues) : null;
+            this.partitionWriter = plan.partitions > 0 ? new PartitionWriter(plan) : null;
+        }
+
+        private void reset() {
+            if (attributes != null) {
+                attributes.reset();
+            }
+            if (metrics != null) {
+                metrics.reset();
+            }
+            if (quarantine != null) {
+                quarantine.reset();
+            }
+            if (profiler != null) {
+                profiler.reset();
+            }
+            tokenizedWriter = null;
+            filteredWriter = null;
+        }
+
+        private String[][] buffer(final ParsePlan.Columns columns) {
+            if (columns != bufferColumns) {
+                buffer = new String[plan.batchSize(columns)][columns.width()];
+                bufferColumns = columns;
+            }
+            return buffer;
+        }
+
+        @Override
+        public void process(InputStream inputStream) throws IOException {
+            records = fastParser.scan(inputStream, attributes, metrics);
+        }
+
+        @Override
+        public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
+            final InputStream in = Compression.decompress(plan.inputCompression, inputStream);
+            final OutputStream out = Compression.compress(plan, outputStream, compressionPool);
+            parse(in, out);
+            // finishes the compressed output, the streams of the session are left open
+            if (out != outputStream) {
+                out.close();
+            }
+            if (in != inputStream) {
+                in.close();
+            }
+        }
+
+        private void parse(InputStream inputStream, OutputStream outputStream) throws IOException {
+            if (chunkedParser != null) {
+                chunkedParser.process(inputStream, outputStream, tokenizedWriter, metrics);
+                return;
+            }
+            if (pipelinedParser != null) {
+                if (ring == null) {
+                    ring = pipelinedParser.ring();
+                }
+                pipelinedParser.process(inputStream, outputStream, partitionWriter, fastParser, ring,
+                        tokenizedWriter, profiler, splitter, metrics);
+                return;
+            }
+            if (fastParser != null) {
+                fastParser.process(inputStream, outputStream, partitionWriter, tokenizedWriter, filteredWriter,
+                        quarantine, profiler, attributes, splitter, metrics);
+                return;
+            }
+
+            final Charset charset = Charset.defaultCharset();
+            CSVParser csvParser = new CSVParser(new InputStreamReader(inputStream, charset), plan.parseFormat);
+            final RecordWriter writer = partitionWriter != null ? partitionWriter
+                    : RecordWriter.create(plan, outputStream, splitter);
+            final String[] filterValues = plan.filter == null ? null : new String[plan.filter.columns().length];
+
+            // bind the plan to the header, headerless content is bound on the first record
+            final String[] header = plan.inputHeader(csvParser);
+            ParsePlan.Columns columns = null;
+            String[][] batch = null;
+            int pending = 0;
+            if (header != null) {
+                columns = plan.columnsFor(header);
+                batch = buffer(columns);
+                writer.begin(columns.outputHeader, true);
+                if (filteredWriter != null) {
+                    filteredWriter.begin(columns.inputHeader, true);
+                }
+            }
+
+            // loop through records and print, commons-csv parses the next record in hasNext()
+            final Iterator<CSVRecord> records = csvParser.iterator();
+            while (true) {
+                final boolean sampled = metrics != null && metrics.sampling();
+                final long start = sampled ? System.nanoTime() : 0;
+                // line the record starts on, empty lines skipped before it are not counted
+                final long line = quarantine == null ? 0 : csvParser.getCurrentLineNumber() + 1;
+                if (!hasNext(records, line)) {
+                    break;
+                }
+                final CSVRecord record = records.next();
+                if (sampled) {
+                    metrics.sampled(StageMetrics.PARSE, start);
+                }
+                if (columns == null) {
+                    columns = plan.columnsFor(ParsePlan.positionalHeader(record.size()));
+                    batch = buffer(columns);
+                    writer.begin(columns.outputHeader, false);
+                    if (filteredWriter != null) {
+                        filteredWriter.begin(columns.inputHeader, false);
+                    }
+                }
+                final String[] inputHeader = columns.inputHeader;
+
+                if (quarantine != null && record.size() != inputHeader.length) {
+                    final Object[] raw = new Object[record.size()];
+                    for (int i = 0; i < raw.length; i++) {
+                        raw[i] = record.get(i);
+                    }
+                    quarantine.add(line, "Record has " + record.size() + " fields, the header has "
+                            + inputHeader.length, plan.printFormat.format(raw));
+                    if (metrics != null) {
+                        metrics.recordFiltered(sampled);
+                    }
+                    continue;
+                }
 
-        final String consotant = "bcdfghjklmnpqrstvwxz";
-        final String vowel = "aeiouy";
-        final String digit = "0123456789";
+                // rejected records are not transformed and do not create attributes
+                if (filterValues != null && !plan.accept(columns, record, filterValues)) {
+                    if (filteredWriter != null) {
+                        final String[] raw = new String[inputHeader.length];
+                        for (int i = 0; i < raw.length && i < record.size(); i++) {
+                            raw[i] = record.get(i);
+                        }
+                        filteredWriter.write(raw);
+                    }
+                    if (metrics != null) {
+                        metrics.recordFiltered(sampled);
+                    }
+                    continue;
+                }
+                if (plan.duplicates != null && !plan.firstOccurrence(columns, record)) {
+                    if (metrics != null) {
+                        metrics.recordFiltered(sampled);
+                    }
+                    continue;
+                }
+                if (profiler != null) {
+                    profiler.add(columns, record);
+                }
 
-        DateFormat dateFormat = new SimpleDateFormat("ssSSS");
-        Date date = new Date();
-        Random ran = new Random();
-        Random r = new Random(Integer.parseInt(dateFormat.format(date) + ran.nextInt(1000)));
+                // generate attributes if required per record
+                final int[] attributeColumns = attributes == null ? null : attributes.select(inputHeader);
+                if (attributeColumns != null) {
+                    for (final int i : attributeColumns) {
+                        attributes.put(i, record.getRecordNumber(), ParsePlan.get(record, i));
+                    }
+                }
 
-        char data[] = str.toCharArray();
+                plan.transform(columns, record, record.getRecordNumber(), batch[pending], batch.length > 1,
+                        tokenizedWriter, sampled ? metrics : null);
+                if (metrics != null) {
+                    metrics.recordRead(columns, sampled);
+                }
 
-        for (int n = 0; n < data.length; ++n) {
-            char ln = Character.toLowerCase(data[n]);
-            if (consotant.indexOf(ln) >= 0)
-                data[n] = randomChar(r, consotant, ln != data[n]);
-            else if (vowel.indexOf(ln) >= 0)
-                data[n] = randomChar(r, vowel, ln != data[n]);
-            else if (digit.indexOf(ln) >= 0)
-                data[n] = randomChar(r, digit, ln != data[n]);
+                if (++pending == batch.length) {
+                    writeBatch(plan, columns, batch, pending, writer, metrics, sampled);
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                writeBatch(plan, columns, batch, pending, writer, metrics, false);
+            }
+            writer.finish();
         }
-        return new String(data);
+
+        // commons-csv cannot continue after a malformed record, with a quarantine the FlowFile is rejected
+        private boolean hasNext(final Iterator<CSVRecord> records, final long line) {
+            try {
+                return records.hasNext();
+            } catch (IllegalStateException e) {
+                if (quarantine == null || !(e.getCause() instanceof IOException)) {
+                    throw e;
+                }
+                throw quarantine.reject(line, e.getCause().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Batches are timed as a whole, single records only when they are sampled.
+     */
+    private static void writeBatch(ParsePlan plan, ParsePlan.Columns columns, String[][] batch, int count,
+                                   RecordWriter writer, StageMetrics metrics, boolean sampled) throws IOException {
+        final boolean timed = metrics != null && (sampled || batch.length > 1);
+        long start = timed ? System.nanoTime() : 0;
+        if (batch.length > 1) {
+            for (final int column : columns.encrypted) {
+                plan.cipherEngine.encryptColumn(batch, count, column);
+            }
+            if (timed) {
+                metrics.exact(StageMetrics.ENCRYPT, start);
+                start = System.nanoTime();
+            }
+        }
+        for (int r = 0; r < count; r++) {
+            writer.write(batch[r]);
+        }
+        if (timed) {
+            if (batch.length > 1) {
+                metrics.exact(StageMetrics.SERIALIZE, start);
+            } else {
+                metrics.sampled(StageMetrics.SERIALIZE, start);
+            }
+        }
+        if (metrics != null) {
+            metrics.recordsWritten(count);
+        }
+    }
+
+    public static List<Map<?, ?>> readObjectsFromCsv(InputStream is) throws IOException {
+        CsvSchema bootstrap = CsvSchema.emptySchema().withHeader();
+        CsvMapper csvMapper = new CsvMapper();
+        MappingIterator<Map<?, ?>> mappingIterator = csvMapper.reader(Map.class).with(bootstrap).readValues(is);
+
+        return mappingIterator.readAll();
     }
 
-    private char randomChar(Random r, String cs, boolean uppercase) {
-        char c = cs.charAt(r.nextInt(cs.length()));
-        return uppercase ? Character.toUpperCase(c) : c;
+    public static String writeAsJson(List<Map<?, ?>> data) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        //mapper.writeValue(file, data);
+        return mapper.writer().withDefaultPrettyPrinter().writeValueAsString(data);
     }
 }
@@ -0,0 +1,850 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.xml.XmlFactory;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable, compiled form of the ParseCSV properties.
+ *
+ * The plan is built once in {@code @OnScheduled} so the record loop does not re-read properties,
+ * rebuild the {@link CSVFormat} or re-split the column lists for every FlowFile. Binding the plan
+ * to a header resolves every output column to a source index and an action code, which turns the
+ * per-cell work into a plain indexed dispatch.
+ */
+final class ParsePlan {
+
+    // per column actions
+    static final byte PASS = 0;
+    static final byte MASK = 1;
+    static final byte MASK_TOKENIZE = 2;
+    static final byte ENCRYPT = 3;
+
+    // output formats
+    static final int OUTPUT_CSV = 0;
+    static final int OUTPUT_JSON = 1;
+    static final int OUTPUT_XML = 2;
+
+    // input layouts, everything but CSV is only read by the byte level parser
+    static final int INPUT_CSV = 0;
+    static final int INPUT_DELIMITED = 1;
+    static final int INPUT_FIXED_WIDTH = 2;
+
+    static final String ROW_NUMBER = "RowNumber()";
+
+    // unique identifier resolution when it is not an existing column
+    static final int IDENTIFIER_ROW_NUMBER = -1;
+    static final int IDENTIFIER_LITERAL = -2;
+
+    final CSVFormat parseFormat;
+    final CSVFormat printFormat;
+    final int inputLayout;
+    // delimiter of INPUT_DELIMITED content
+    final byte[] inputDelimiter;
+    // fields of INPUT_FIXED_WIDTH records
+    final FixedWidthLayout fixedWidth;
+    final boolean withHeader;
+    final boolean createAttributes;
+    final String attributeRecords;
+    final int attributeRecordCount;
+    final Set<String> attributeColumns;
+    final long maxAttributeSize;
+    final int outputFormat;
+    final String jsonMode;
+    final JsonFactory jsonFactory;
+    final XmlFactory xmlFactory;
+    final String[] customHeader;
+    final String[] staticSchema;
+    final String tokenizeUniqueIdentifier;
+    final String tokenizedOutput;
+    final String tokenizedTable;
+    final int tokenizedBatchSize;
+    final boolean tokenizes;
+    final CipherEngine cipherEngine;
+    final MaskEngine maskEngine;
+    final TokenVault tokenVault;
+    final int encryptionBatchSize;
+    final int flowFileBatchSize;
+    final long splitRecords;
+    final long splitBytes;
+    final boolean splits;
+    final boolean instrumented;
+    final boolean metricAttributes;
+    final boolean passThrough;
+    final String inputCompression;
+    final String outputCompression;
+    final int compressionLevel;
+    final int compressionThreads;
+    final RecordFilter filter;
+    final boolean routesFiltered;
+    final DuplicateFilter duplicates;
+    final File duplicatesSnapshot;
+    final boolean quarantines;
+    final long badRecordTolerance;
+    final String profileOutput;
+    final boolean profiles;
+    final int profileTopValues;
+    final String partitionColumn;
+    // 0 when the output is not partitioned
+    final int partitions;
+
+    private final Set<String> maskColumns;
+    private final Set<String> encryptColumns;
+    private final Set<String> tokenizeColumns;
+    private final String[] deduplicateColumns;
+    // null when every column is profiled
+    private final String[] profileColumns;
+
+    // last bound header, only rebuilt when the incoming header differs
+    private final AtomicReference<Columns> columns = new AtomicReference<>();
+
+    private ParsePlan(final ProcessContext context) {
+        final String format = context.getProperty(ParseCSV.FORMAT).getValue();
+        final String delimiter = delimiter(context.getProperty(ParseCSV.DELIMITER).getValue());
+        final String fixed_width_layout = context.getProperty(ParseCSV.FIXED_WIDTH_LAYOUT).getValue();
+        final boolean with_header = Boolean.parseBoolean(context.getProperty(ParseCSV.WITH_HEADER).getValue());
+        final String custom_header = context.getProperty(ParseCSV.CUSTOM_HEADER).getValue();
+        final String static_schema = context.getProperty(ParseCSV.STATIC_SCHEMA).getValue();
+        final String output_format = context.getProperty(ParseCSV.OUTPUT_FORMAT).getValue();
+
+        // a delimiter of more than one character is only used to read, the output keeps the one of the format
+        this.fixedWidth = fixed_width_layout == null ? null : FixedWidthLayout.parse(fixed_width_layout);
+        this.inputLayout = fixedWidth != null ? INPUT_FIXED_WIDTH
+                : delimiter != null && delimiter.length() > 1 ? INPUT_DELIMITED : INPUT_CSV;
+        this.inputDelimiter = inputLayout == INPUT_DELIMITED ? delimiter.getBytes(Charset.defaultCharset()) : null;
+        final char csvDelimiter = inputLayout == INPUT_CSV && delimiter != null ? delimiter.charAt(0) : 0;
+
+        this.withHeader = with_header;
+        this.customHeader = fixedWidth != null ? fixedWidth.names
+                : custom_header == null ? null : split(custom_header);
+        this.staticSchema = static_schema == null ? null : split(static_schema);
+        this.parseFormat = buildFormat(format, csvDelimiter, with_header, customHeader);
+        this.printFormat = buildFormat(format, csvDelimiter, false, null);
+        this.createAttributes = Boolean.parseBoolean(context.getProperty(ParseCSV.CREATE_ATTRIBUTES).getValue());
+        this.attributeRecords = context.getProperty(ParseCSV.ATTRIBUTE_RECORDS).getValue();
+        this.attributeRecordCount = context.getProperty(ParseCSV.ATTRIBUTE_RECORD_COUNT).asInteger();
+        final String attribute_columns = context.getProperty(ParseCSV.ATTRIBUTE_COLUMNS).getValue();
+        this.attributeColumns = attribute_columns == null ? null : toSet(attribute_columns);
+        this.maxAttributeSize = context.getProperty(ParseCSV.MAX_ATTRIBUTE_SIZE).asDataSize(DataUnit.B).longValue();
+
+        switch (output_format) {
+            case "JSON":
+                this.outputFormat = OUTPUT_JSON;
+                break;
+            case "XML":
+                this.outputFormat = OUTPUT_XML;
+                break;
+            default:
+                this.outputFormat = OUTPUT_CSV;
+        }
+
+        this.jsonMode = context.getProperty(ParseCSV.JSON_MODE).getValue();
+        this.jsonFactory = RecordWriter.jsonFactory(jsonMode);
+        this.xmlFactory = RecordWriter.xmlFactory();
+
+        this.maskColumns = toSet(context.getProperty(ParseCSV.COLUMN_MASK).getValue());
+        this.encryptColumns = toSet(context.getProperty(ParseCSV.COLUMN_ENCRYPT).getValue());
+        this.tokenizeColumns = toSet(context.getProperty(ParseCSV.COLUMN_TOKENIZE).getValue());
+        this.tokenizeUniqueIdentifier = context.getProperty(ParseCSV.TOKENIZE_UNQIUE_IDENTIFIER).getValue();
+        this.tokenizedOutput = context.getProperty(ParseCSV.TOKENIZED_OUTPUT).getValue();
+        this.tokenizedTable = context.getProperty(ParseCSV.TOKENIZED_TABLE).getValue();
+        this.tokenizedBatchSize = context.getProperty(ParseCSV.TOKENIZED_BATCH_SIZE).asInteger();
+
+        // only masked columns are tokenized
+        final Set<String> tokenized = new HashSet<>(tokenizeColumns);
+        tokenized.retainAll(maskColumns);
+        this.tokenizes = !tokenized.isEmpty();
+
+        final String encryption_key = context.getProperty(ParseCSV.ENCRYPTION_KEY).getValue();
+        this.cipherEngine = encryptColumns.isEmpty() || encryption_key == null ? null : new CipherEngine(encryption_key);
+        this.encryptionBatchSize = context.getProperty(ParseCSV.ENCRYPTION_BATCH_SIZE).asInteger();
+        this.flowFileBatchSize = context.getProperty(ParseCSV.FLOWFILE_BATCH_SIZE).asInteger();
+        this.splitRecords = context.getProperty(ParseCSV.SPLIT_RECORD_COUNT).getValue() == null
+                ? 0 : context.getProperty(ParseCSV.SPLIT_RECORD_COUNT).asInteger();
+        this.splitBytes = context.getProperty(ParseCSV.SPLIT_SIZE).getValue() == null
+                ? 0 : context.getProperty(ParseCSV.SPLIT_SIZE).asDataSize(DataUnit.B).longValue();
+        this.splits = splitRecords > 0 || splitBytes > 0;
+        final String instrumentation = context.getProperty(ParseCSV.INSTRUMENTATION).getValue();
+        this.instrumented = !StageMetrics.OFF.equals(instrumentation);
+        this.metricAttributes = StageMetrics.COUNTERS_AND_ATTRIBUTES.equals(instrumentation);
+        this.maskEngine = MaskEngine.DETERMINISTIC.equals(context.getProperty(ParseCSV.MASK_MODE).getValue())
+                ? MaskEngine.deterministic(context.getProperty(ParseCSV.MASK_KEY).getValue())
+                : MaskEngine.random();
+
+        this.inputCompression = context.getProperty(ParseCSV.INPUT_COMPRESSION).getValue();
+        this.outputCompression = context.getProperty(ParseCSV.OUTPUT_COMPRESSION).getValue();
+        this.compressionLevel = context.getProperty(ParseCSV.COMPRESSION_LEVEL).asInteger();
+        this.compressionThreads = context.getProperty(ParseCSV.COMPRESSION_THREADS).asInteger();
+
+        final String record_filter = context.getProperty(ParseCSV.RECORD_FILTER).getValue();
+        this.filter = record_filter == null ? null : RecordFilter.compile(record_filter);
+        this.routesFiltered = filter != null
+                && RecordFilter.ROUTE.equals(context.getProperty(ParseCSV.FILTERED_RECORDS).getValue());
+
+        final String deduplicate_columns = context.getProperty(ParseCSV.DEDUPLICATE_COLUMNS).getValue();
+        this.deduplicateColumns = deduplicate_columns == null ? new String[0] : split(deduplicate_columns);
+        this.duplicates = deduplicate_columns == null ? null : new DuplicateFilter(deduplicate_columns,
+                context.getProperty(ParseCSV.DEDUPLICATION_CAPACITY).asLong(),
+                Double.parseDouble(context.getProperty(ParseCSV.DEDUPLICATION_FALSE_POSITIVE_RATE).getValue()),
+                context.getProperty(ParseCSV.DEDUPLICATION_MAX_MEMORY).asDataSize(DataUnit.B).longValue());
+        final String duplicates_snapshot = context.getProperty(ParseCSV.DEDUPLICATION_SNAPSHOT).getValue();
+        this.duplicatesSnapshot = duplicates == null || duplicates_snapshot == null
+                ? null : new File(duplicates_snapshot);
+
+        this.quarantines = context.getProperty(ParseCSV.BAD_RECORD_TOLERANCE).getValue() != null;
+        this.badRecordTolerance = quarantines ? context.getProperty(ParseCSV.BAD_RECORD_TOLERANCE).asLong() : 0;
+
+        this.profileOutput = context.getProperty(ParseCSV.COLUMN_PROFILE).getValue();
+        this.profiles = !ColumnProfiler.OFF.equals(profileOutput);
+        final String profile_columns = context.getProperty(ParseCSV.PROFILE_COLUMNS).getValue();
+        this.profileColumns = profile_columns == null ? null : split(profile_columns);
+        this.profileTopValues = context.getProperty(ParseCSV.PROFILE_TOP_VALUES).asInteger();
+
+        this.partitionColumn = context.getProperty(ParseCSV.PARTITION_COLUMN).getValue();
+        this.partitions = partitionColumn == null ? 0 : context.getProperty(ParseCSV.PARTITION_COUNT).asInteger();
+
+        // content can only be passed on as is when printing it again would not change any value
+        this.passThrough = Boolean.parseBoolean(context.getProperty(ParseCSV.PASS_THROUGH).getValue())
+                && maskColumns.isEmpty() && encryptColumns.isEmpty() && tokenizeColumns.isEmpty()
+                && staticSchema == null && customHeader == null && filter == null && duplicates == null
+                && !quarantines && !profiles && !splits && partitions == 0
+                && outputFormat == OUTPUT_CSV && inputLayout == INPUT_CSV
+                && Compression.NONE.equals(inputCompression) && Compression.NONE.equals(outputCompression)
+                && FastCsvParser.supports(this);
+
+        // opened last, its file lock is only taken once nothing else in the plan can fail
+        final String token_vault = context.getProperty(ParseCSV.TOKEN_VAULT_DIRECTORY).getValue();
+        this.tokenVault = token_vault == null || !tokenizes ? null : new TokenVault(new File(token_vault),
+                context.getProperty(ParseCSV.TOKEN_VAULT_CACHE_SIZE).asInteger());
+    }
+
+    static ParsePlan compile(final ProcessContext context) {
+        return new ParsePlan(context);
+    }
+
+    /**
+     * Header names of the incoming content, either the custom header or the one read by the parser.
+     * Returns null when the content has no header, in which case the plan is bound positionally
+     * on the first record.
+     */
+    String[] inputHeader(final CSVParser csvParser) {
+        if (customHeader != null) {
+            return customHeader;
+        }
+        final Map<String, Integer> headerMap = csvParser.getHeaderMap();
+        return headerMap == null ? null : headerMap.keySet().toArray(new String[0]);
+    }
+
+    static String[] positionalHeader(final int width) {
+        final String[] header = new String[width];
+        for (int i = 0; i < width; i++) {
+            header[i] = "column" + (i + 1);
+        }
+        return header;
+    }
+
+    /**
+     * Returns the columns bound to the given header, reusing the previous binding when the header is unchanged.
+     */
+    Columns columnsFor(final String[] header) {
+        final Columns current = columns.get();
+        if (current != null && Arrays.equals(current.inputHeader, header)) {
+            return current;
+        }
+        final Columns bound = bind(header);
+        columns.set(bound);
+        return bound;
+    }
+
+    /**
+     * Number of records buffered before their encrypted columns are encrypted as one chunk.
+     */
+    int batchSize(final Columns columns) {
+        return columns.encrypted.length == 0 ? 1 : encryptionBatchSize;
+    }
+
+    /**
+     * Evaluates the record filter on the raw values of one record, before any column action.
+     *
+     * @param values scratch array with room for every filter column
+     */
+    boolean accept(final Columns columns, final CSVRecord record, final String[] values) {
+        final int[] fields = columns.filter;
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = fields[i] < record.size() ? record.get(fields[i]) : null;
+        }
+        return filter.accept(values);
+    }
+
+    /**
+     * Evaluates the record filter on the raw values of one record of the byte level parser, only the
+     * fields the filter reads are decoded.
+     *
+     * @param values scratch array with room for every filter column
+     */
+    boolean accept(final Columns columns, final FastCsvParser record, final String[] values) {
+        final int[] fields = columns.filter;
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = fields[i] < record.size() ? record.get(fields[i]) : null;
+        }
+        return filter.accept(values);
+    }
+
+    /**
+     * Evaluates the record filter on the raw values of one record read ahead by the pipelined parser.
+     *
+     * @param values scratch array with room for every filter column
+     */
+    boolean accept(final Columns columns, final String[] record, final String[] values) {
+        final int[] fields = columns.filter;
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = fields[i] < record.length ? record[fields[i]] : null;
+        }
+        return filter.accept(values);
+    }
+
+    /**
+     * Adds the key of one record to the duplicate filter.
+     *
+     * @return whether the key was not seen before in this or an earlier FlowFile
+     */
+    boolean firstOccurrence(final Columns columns, final CSVRecord record) {
+        long hash = DuplicateFilter.hash();
+        for (final int field : columns.deduplicate) {
+            hash = DuplicateFilter.hash(hash, field < record.size() ? record.get(field) : "");
+        }
+        return duplicates.add(hash);
+    }
+
+    /**
+     * Adds the key of one record of the byte level parser to the duplicate filter.
+     *
+     * @return whether the key was not seen before in this or an earlier FlowFile
+     */
+    boolean firstOccurrence(final Columns columns, final FastCsvParser record) {
+        long hash = DuplicateFilter.hash();
+        for (final int field : columns.deduplicate) {
+            hash = DuplicateFilter.hash(hash, field < record.size() ? record.get(field) : "");
+        }
+        return duplicates.add(hash);
+    }
+
+    /**
+     * Adds the key of one record read ahead by the pipelined parser to the duplicate filter.
+     *
+     * @return whether the key was not seen before in this or an earlier FlowFile
+     */
+    boolean firstOccurrence(final Columns columns, final String[] record) {
+        long hash = DuplicateFilter.hash();
+        for (final int field : columns.deduplicate) {
+            hash = DuplicateFilter.hash(hash, field < record.length ? record[field] : "");
+        }
+        return duplicates.add(hash);
+    }
+
+    /**
+     * Applies the bound column actions to one record.
+     *
+     * @param recordNumber number of the record within the FlowFile, used for RowNumber() tokenization
+     * @param values receives the output values
+     * @param deferEncrypt leave encrypted columns in clear text so they can be encrypted as a chunk
+     * @param tokens receives the tokenization rows of masked and tokenized columns
+     * @param metrics times the column actions of a sampled record, null otherwise
+     */
+    void transform(final Columns columns, final CSVRecord record, final long recordNumber, final String[] values,
+                   final boolean deferEncrypt, final TokenSink tokens, final StageMetrics metrics)
+            throws IOException {
+        final int[] source = columns.source;
+        final byte[] actions = columns.actions;
+
+        for (int i = 0; i < source.length; i++) {
+            if (source[i] >= record.size()) {
+                throw new ProcessException("Record " + recordNumber + " has " + record.size()
+                        + " fields, column " + columns.outputHeader[i] + " is field " + (source[i] + 1));
+            }
+            final long start = metrics == null ? 0 : System.nanoTime();
+            final String value = record.get(source[i]);
+            switch (actions[i]) {
+                case MASK:
+                    values[i] = maskEngine.mask(value);
+                    break;
+                case MASK_TOKENIZE:
+                    // tokenization row for external DB store, only for new tokens when there is a vault
+                    if (tokenize(columns, i, value, values)) {
+                        tokens.write(columns.outputHeader[i], uniqueIdentifier(columns, record, recordNumber),
+                                values[i], value);
+                    }
+                    break;
+                case ENCRYPT:
+                    values[i] = deferEncrypt ? value : cipherEngine.encrypt(value);
+                    break;
+                default:
+                    values[i] = value;
+            }
+            if (metrics != null && actions[i] != PASS) {
+                metrics.sampled(actions[i], start);
+            }
+        }
+    }
+
+    /**
+     * Applies the bound column actions to one record of the byte level parser. Columns passed through
+     * are left null so they can be copied from the input bytes, unless the record is buffered.
+     *
+     * @param buffered the record is buffered for chunked encryption, which leaves encrypted columns in
+     *                 clear text and decodes passed through columns
+     * @param metrics times the column actions of a sampled record, null otherwise
+     */
+    void transform(final Columns columns, final FastCsvParser record, final long recordNumber, final String[] values,
+                   final boolean buffered, final TokenSink tokens, final StageMetrics metrics) throws IOException {
+        final int[] source = columns.source;
+        final byte[] actions = columns.actions;
+
+        for (int i = 0; i < source.length; i++) {
+            final long start = metrics == null ? 0 : System.nanoTime();
+            switch (actions[i]) {
+                case MASK:
+                    values[i] = maskEngine.mask(record.get(source[i]));
+                    break;
+                case MASK_TOKENIZE:
+                    final String value = record.get(source[i]);
+                    if (tokenize(columns, i, value, values)) {
+                        tokens.write(columns.outputHeader[i], uniqueIdentifier(columns, record, recordNumber),
+                                values[i], value);
+                    }
+                    break;
+                case ENCRYPT:
+                    values[i] = buffered ? record.get(source[i]) : cipherEngine.encrypt(record.get(source[i]));
+                    break;
+                default:
+                    if (source[i] >= record.size()) {
+                        throw new ProcessException("Record " + recordNumber + " has " + record.size()
+                                + " fields, column " + columns.outputHeader[i] + " is field " + (source[i] + 1));
+                    }
+                    values[i] = buffered ? record.get(source[i]) : null;
+            }
+            if (metrics != null && actions[i] != PASS) {
+                metrics.sampled(actions[i], start);
+            }
+        }
+    }
+
+    /**
+     * Applies the bound column actions to the raw values of one record read ahead by the pipelined parser.
+     *
+     * @param metrics times the column actions of a sampled record, null otherwise
+     */
+    void transform(final Columns columns, final String[] record, final long recordNumber, final String[] values,
+                   final boolean deferEncrypt, final TokenSink tokens, final StageMetrics metrics) throws IOException {
+        final int[] source = columns.source;
+        final byte[] actions = columns.actions;
+
+        for (int i = 0; i < source.length; i++) {
+            if (source[i] >= record.length) {
+                throw new ProcessException("Record " + recordNumber + " has " + record.length
+                        + " fields, column " + columns.outputHeader[i] + " is field " + (source[i] + 1));
+            }
+            final long start = metrics == null ? 0 : System.nanoTime();
+            final String value = record[source[i]];
+            switch (actions[i]) {
+                case MASK:
+                    values[i] = maskEngine.mask(value);
+                    break;
+                case MASK_TOKENIZE:
+                    if (tokenize(columns, i, value, values)) {
+                        tokens.write(columns.outputHeader[i], uniqueIdentifier(columns, record, recordNumber),
+                                values[i], value);
+                    }
+                    break;
+                case ENCRYPT:
+                    values[i] = deferEncrypt ? value : cipherEngine.encrypt(value);
+                    break;
+                default:
+                    values[i] = value;
+            }
+            if (metrics != null && actions[i] != PASS) {
+                metrics.sampled(actions[i], start);
+            }
+        }
+    }
+
+    /**
+     * Masks the value of a tokenized column, reusing the token of the vault when the value has one.
+     *
+     * @return whether the token is new and has to be written to the tokenized relationship
+     */
+    private boolean tokenize(final Columns columns, final int column, final String value, final String[] values)
+            throws IOException {
+        if (tokenVault == null) {
+            values[column] = maskEngine.mask(value);
+            return true;
+        }
+        final String name = columns.outputHeader[column];
+        final String token = tokenVault.get(name, value);
+        if (token != null) {
+            values[column] = token;
+            return false;
+        }
+        final String masked = maskEngine.mask(value);
+        final String existing = tokenVault.putIfAbsent(name, value, masked);
+        values[column] = existing == null ? masked : existing;
+        return existing == null;
+    }
+
+    private String uniqueIdentifier(final Columns columns, final CSVRecord record, final long recordNumber) {
+        switch (columns.uniqueIdentifier) {
+            case IDENTIFIER_ROW_NUMBER:
+                return Long.toString(recordNumber);
+            case IDENTIFIER_LITERAL:
+                return tokenizeUniqueIdentifier;
+            default:
+                return get(record, columns.uniqueIdentifier);
+        }
+    }
+
+    private String uniqueIdentifier(final Columns columns, final FastCsvParser record, final long recordNumber) {
+        switch (columns.uniqueIdentifier) {
+            case IDENTIFIER_ROW_NUMBER:
+                return Long.toString(recordNumber);
+            case IDENTIFIER_LITERAL:
+                return tokenizeUniqueIdentifier;
+            default:
+                return record.get(columns.uniqueIdentifier);
+        }
+    }
+
+    private String uniqueIdentifier(final Columns columns, final String[] record, final long recordNumber) {
+        switch (columns.uniqueIdentifier) {
+            case IDENTIFIER_ROW_NUMBER:
+                return Long.toString(recordNumber);
+            case IDENTIFIER_LITERAL:
+                return tokenizeUniqueIdentifier;
+            default:
+                if (columns.uniqueIdentifier >= record.length) {
+                    throw new ProcessException("Record " + recordNumber + " has " + record.length
+                            + " fields, field " + (columns.uniqueIdentifier + 1) + " requested");
+                }
+                return record[columns.uniqueIdentifier];
+        }
+    }
+
+    /**
+     * Field of a commons-csv record, a record shorter than the header fails its FlowFile like on the byte
+     * level parser instead of rolling back the whole batch.
+     */
+    static String get(final CSVRecord record, final int field) {
+        if (field >= record.size()) {
+            throw new ProcessException("Record " + record.getRecordNumber() + " has " + record.size()
+                    + " fields, field " + (field + 1) + " requested");
+        }
+        return record.get(field);
+    }
+
+    private Columns bind(final String[] header) {
+        final Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < header.length; i++) {
+            index.put(header[i], i);
+        }
+
+        final String[] outputHeader = staticSchema != null ? staticSchema : header;
+        final int[] source = new int[outputHeader.length];
+        final byte[] actions = new byte[outputHeader.length];
+        int encrypted = 0;
+
+        for (int i = 0; i < outputHeader.length; i++) {
+            final Integer position = index.get(outputHeader[i]);
+            if (position == null) {
+                throw new ProcessException("Column " + outputHeader[i] + " does not exist in header "
+                        + Arrays.toString(header));
+            }
+            source[i] = position;
+
+            if (maskColumns.contains(outputHeader[i])) {
+                actions[i] = tokenizeColumns.contains(outputHeader[i]) ? MASK_TOKENIZE : MASK;
+            } else if (encryptColumns.contains(outputHeader[i])) {
+                actions[i] = ENCRYPT;
+                encrypted++;
+            } else {
+                actions[i] = PASS;
+            }
+        }
+
+        final int identifier;
+        if (tokenizeUniqueIdentifier == null || tokenizeUniqueIdentifier.equals(ROW_NUMBER)) {
+            identifier = IDENTIFIER_ROW_NUMBER;
+        } else if (index.containsKey(tokenizeUniqueIdentifier)) {
+            identifier = index.get(tokenizeUniqueIdentifier);
+        } else {
+            identifier = IDENTIFIER_LITERAL;
+        }
+
+        final String[] filterColumns = filter == null ? new String[0] : filter.columns();
+        final int[] filterFields = new int[filterColumns.length];
+        for (int i = 0; i < filterColumns.length; i++) {
+            final Integer position = index.get(filterColumns[i]);
+            if (position == null) {
+                throw new ProcessException("Filter column " + filterColumns[i] + " does not exist in header "
+                        + Arrays.toString(header));
+            }
+            filterFields[i] = position;
+        }
+
+        final int[] deduplicateFields = new int[deduplicateColumns.length];
+        for (int i = 0; i < deduplicateColumns.length; i++) {
+            final Integer position = index.get(deduplicateColumns[i]);
+            if (position == null) {
+                throw new ProcessException("Deduplicate column " + deduplicateColumns[i]
+                        + " does not exist in header " + Arrays.toString(header));
+            }
+            deduplicateFields[i] = position;
+        }
+
+        final String[] profiled = !profiles ? new String[0] : profileColumns == null ? header : profileColumns;
+        final int[] profileFields = new int[profiled.length];
+        for (int i = 0; i < profiled.length; i++) {
+            final Integer position = index.get(profiled[i]);
+            if (position == null) {
+                throw new ProcessException("Profile column " + profiled[i] + " does not exist in header "
+                        + Arrays.toString(header));
+            }
+            profileFields[i] = position;
+        }
+
+        final int[] encryptedColumns = new int[encrypted];
+        for (int i = 0, e = 0; i < actions.length; i++) {
+            if (actions[i] == ENCRYPT) {
+                encryptedColumns[e++] = i;
+            }
+        }
+
+        return new Columns(header, outputHeader, source, actions, encryptedColumns, identifier, filterFields,
+                deduplicateFields, profileFields);
+    }
+
+    /**
+     * Receives the tokenization rows produced by {@link #transform}.
+     */
+    interface TokenSink {
+        void write(String columnName, String uniqueIdentifier, String maskedValue, String sourceValue)
+                throws IOException;
+    }
+
+    /**
+     * Holds tokenization rows produced on another thread until the records they belong to are written
+     * in order.
+     */
+    static final class TokenBuffer implements TokenSink {
+        private final List<String> rows = new ArrayList<>();
+
+        @Override
+        public void write(String columnName, String uniqueIdentifier, String maskedValue, String sourceValue) {
+            rows.add(columnName);
+            rows.add(uniqueIdentifier);
+            rows.add(maskedValue);
+            rows.add(sourceValue);
+        }
+
+        void replay(final TokenSink sink) throws IOException {
+            for (int i = 0; i < rows.size(); i += 4) {
+                sink.write(rows.get(i), rows.get(i + 1), rows.get(i + 2), rows.get(i + 3));
+            }
+        }
+
+        void clear() {
+            rows.clear();
+        }
+    }
+
+    /**
+     * Columns of fixed width records, as byte offsets and lengths within a line.
+     */
+    static final class FixedWidthLayout {
+        final String[] names;
+        final int[] offsets;
+        final int[] lengths;
+
+        private FixedWidthLayout(final String[] names, final int[] offsets, final int[] lengths) {
+            this.names = names;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        /**
+         * Parses comma separated {@code name:length} or {@code name:offset:length} columns, offsets counted
+         * from 0. A column without an offset starts where the previous one ends.
+         *
+         * @throws IllegalArgumentException when the layout is not valid
+         */
+        static FixedWidthLayout parse(final String layout) {
+            final String[] columns = layout.split(",");
+            final String[] names = new String[columns.length];
+            final int[] offsets = new int[columns.length];
+            final int[] lengths = new int[columns.length];
+            int next = 0;
+            for (int i = 0; i < columns.length; i++) {
+                final String[] parts = columns[i].trim().split(":");
+                if (parts.length < 2 || parts.length > 3 || parts[0].isEmpty()) {
+                    throw new IllegalArgumentException("Column " + columns[i].trim()
+                            + " is not name:length or name:offset:length");
+                }
+                try {
+                    offsets[i] = parts.length == 3 ? Integer.parseInt(parts[1].trim()) : next;
+                    lengths[i] = Integer.parseInt(parts[parts.length - 1].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Column " + columns[i].trim() + " has an invalid number");
+                }
+                if (offsets[i] < 0 || lengths[i] <= 0) {
+                    throw new IllegalArgumentException("Column " + columns[i].trim()
+                            + " needs an offset of at least 0 and a length of at least 1");
+                }
+                for (int j = 0; j < i; j++) {
+                    if (names[j].equals(parts[0])) {
+                        throw new IllegalArgumentException("Column " + parts[0] + " is named twice");
+                    }
+                }
+                names[i] = parts[0];
+                next = offsets[i] + lengths[i];
+            }
+            return new FixedWidthLayout(names, offsets, lengths);
+        }
+    }
+
+    /**
+     * A plan bound to one concrete header.
+     */
+    static final class Columns {
+        final String[] inputHeader;
+        final String[] outputHeader;
+        final int[] source;
+        final byte[] actions;
+        final int[] encrypted;
+        final int uniqueIdentifier;
+        // input field of every column of the record filter
+        final int[] filter;
+        // input field of every key column of the duplicate filter
+        final int[] deduplicate;
+        // input field of every profiled column
+        final int[] profile;
+        // number of columns that are not passed through
+        final int transformed;
+        // number of leading input fields the columns use, the parser can skip the others
+        final int fields;
+
+        private Columns(String[] inputHeader, String[] outputHeader, int[] source, byte[] actions, int[] encrypted,
+                        int uniqueIdentifier, int[] filter, int[] deduplicate, int[] profile) {
+            this.inputHeader = inputHeader;
+            this.outputHeader = outputHeader;
+            this.source = source;
+            this.actions = actions;
+            this.encrypted = encrypted;
+            this.uniqueIdentifier = uniqueIdentifier;
+            this.filter = filter;
+            this.deduplicate = deduplicate;
+            this.profile = profile;
+            int transformed = 0;
+            for (final byte action : actions) {
+                if (action != PASS) {
+                    transformed++;
+                }
+            }
+            this.transformed = transformed;
+            int fields = uniqueIdentifier + 1;
+            for (final int field : source) {
+                fields = Math.max(fields, field + 1);
+            }
+            for (final int field : filter) {
+                fields = Math.max(fields, field + 1);
+            }
+            for (final int field : deduplicate) {
+                fields = Math.max(fields, field + 1);
+            }
+            for (final int field : profile) {
+                fields = Math.max(fields, field + 1);
+            }
+            this.fields = fields;
+        }
+
+        int width() {
+            return source.length;
+        }
+    }
+
+    private static String[] split(final String columns) {
+        return columns.replace("\"", "").split(",");
+    }
+
+    static Set<String> toSet(final String columns) {
+        if (columns == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<>(Arrays.asList(split(columns)));
+    }
+
+    /**
+     * Delimiter property with {@code \t} standing for a tab, null when the format's delimiter is used.
+     */
+    static String delimiter(final String delimiter) {
+        return delimiter == null ? null : delimiter.replace("\\t", "\t");
+    }
+
+    static CSVFormat buildFormat(String format, char delimiter, boolean with_header, String[] custom_header) {
+        CSVFormat csvFormat;
+
+        // set pre built format
+        switch (format) {
+            case "EXCEL":
+                csvFormat = CSVFormat.EXCEL;
+                break;
+            case "RFC4180":
+                csvFormat = CSVFormat.RFC4180;
+                break;
+            case "TDF":
+                csvFormat = CSVFormat.TDF;
+                break;
+            case "MYSQL":
+                csvFormat = CSVFormat.MYSQL;
+                break;
+            default:
+                csvFormat = CSVFormat.DEFAULT;
+        }
+
+        if (with_header & custom_header != null) {
+            csvFormat = csvFormat.withSkipHeaderRecord(true);
+            csvFormat = csvFormat.withHeader(custom_header);
+        } else if (with_header & custom_header == null) {
+            csvFormat = csvFormat.withHeader();
+        }
+
+        if (delimiter > 0) {
+            csvFormat = csvFormat.withDelimiter(delimiter);
+        }
+        return csvFormat;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes every record to one of a fixed number of partitions chosen by a hash of its partition column.
+ *
+ * Every partition is a complete document with its own header, written straight to the content of its
+ * own FlowFile while the records are parsed, so nothing is buffered beyond the writers themselves. The
+ * column is hashed as it is written, records with the same output value end up in the same partition
+ * whichever FlowFile they come from.
+ */
+final class PartitionWriter extends RecordWriter {
+
+    // every partition is written by a FlowFile write nested in the one of the previous partition, so the
+    // call depth and the number of open content streams grow with the partitions
+    static final int MAX_PARTITIONS = 64;
+
+    private final ParsePlan plan;
+    private final RecordWriter[] writers;
+    private final long[] records;
+    private int field;
+
+    PartitionWriter(final ParsePlan plan) {
+        this.plan = plan;
+        this.writers = new RecordWriter[plan.partitions];
+        this.records = new long[plan.partitions];
+    }
+
+    /**
+     * Opens a partition of the next FlowFile.
+     */
+    void open(final int partition, final OutputStream out) throws IOException {
+        writers[partition] = RecordWriter.create(plan, out);
+        records[partition] = 0;
+    }
+
+    long records(final int partition) {
+        return records[partition];
+    }
+
+    @Override
+    void begin(String[] header, boolean printHeader) throws IOException {
+        field = Arrays.asList(header).indexOf(plan.partitionColumn);
+        if (field < 0) {
+            throw new ProcessException("Partition column " + plan.partitionColumn + " does not exist in output "
+                    + Arrays.toString(header));
+        }
+        for (final RecordWriter writer : writers) {
+            writer.begin(header, printHeader);
+        }
+    }
+
+    @Override
+    void write(String[] values) throws IOException {
+        final int partition = partition(values[field]);
+        writers[partition].write(values);
+        records[partition]++;
+    }
+
+    @Override
+    void finish() throws IOException {
+        for (final RecordWriter writer : writers) {
+            writer.finish();
+        }
+    }
+
+    private int partition(final String value) {
+        final long hash = DuplicateFilter.mix(DuplicateFilter.hash(DuplicateFilter.hash(), value));
+        return (int) ((hash & Long.MAX_VALUE) % writers.length);
+    }
+}
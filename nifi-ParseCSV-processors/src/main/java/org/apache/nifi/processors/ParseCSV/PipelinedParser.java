@@ -0,0 +1,449 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a FlowFile in three stages that run at the same time: a reader thread tokenizes the records,
+ * a pool of workers masks, tokenizes and encrypts them and the calling thread writes them.
+ *
+ * Records travel in batches through a ring of slots that are allocated once per task and reused for
+ * every FlowFile, so no more than a ring of batches is held however large the FlowFile is. The reader
+ * fills the slots in order and hands every full one to a worker, the writer takes them in the same
+ * order once they are transformed. Several batches are transformed at once while the output keeps the
+ * order of the input, and reading and writing go on while a batch is encrypted. Unlike the parallel
+ * parser no record boundaries have to be found up front, so every format and output is supported.
+ */
+final class PipelinedParser {
+
+    // a slot goes from free to parsed to transformed and back to free once it is written
+    private static final int FREE = 0;
+    private static final int PARSED = 1;
+    private static final int TRANSFORMED = 2;
+    private static final int FAILED = 3;
+    private static final int END = 4;
+
+    private final ParsePlan plan;
+    private final ExecutorService readers;
+    private final ExecutorService workers;
+    private final int slots;
+    private final int batchRecords;
+
+    /**
+     * @param threads number of transform workers shared by all concurrent tasks
+     * @param slots number of batches in the ring of every task
+     * @param batchRecords number of records per batch
+     */
+    PipelinedParser(final ParsePlan plan, final int threads, final int slots, final int batchRecords) {
+        this.plan = plan;
+        // readers block on the ring, they get a thread each so they never wait for one another
+        this.readers = Executors.newCachedThreadPool();
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.slots = slots;
+        this.batchRecords = batchRecords;
+    }
+
+    /**
+     * Record attributes, routed filtered records and bad records are collected in record order while
+     * reading, which the pipeline leaves to the serial parsers.
+     */
+    static boolean supports(final ParsePlan plan) {
+        return !plan.createAttributes
+                && !plan.routesFiltered
+                && !plan.quarantines;
+    }
+
+    void shutdown() {
+        readers.shutdown();
+        workers.shutdown();
+        try {
+            readers.awaitTermination(30, TimeUnit.SECONDS);
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Allocates the ring of one task, reused for all FlowFiles it parses.
+     */
+    Ring ring() {
+        return new Ring();
+    }
+
+    /**
+     * @param partitions writes the records to the partitions instead of out, null when not partitioned
+     * @param fastParser reads the records when the plan allows it, null to read them with commons-csv
+     * @param profiler profiles the records on the reader thread, null when the plan does not profile
+     * @param splitter cuts the output into segments, null when the output is not split
+     * @param metrics receives the stage timings and counters of all stages, null when not instrumented
+     */
+    void process(final InputStream in, final OutputStream out, final PartitionWriter partitions,
+                 final FastCsvParser fastParser, final Ring ring, final ParsePlan.TokenSink tokens,
+                 final ColumnProfiler profiler, final OutputSplitter splitter, final StageMetrics metrics)
+            throws IOException {
+        // the header is read up front, it is printed even when no record follows
+        final CSVParser csvParser = fastParser != null ? null
+                : new CSVParser(new InputStreamReader(in, Charset.defaultCharset()), plan.parseFormat);
+        final String[] header = fastParser != null ? fastParser.open(in) : plan.inputHeader(csvParser);
+        final RecordWriter writer = partitions != null ? partitions : RecordWriter.create(plan, out, splitter);
+        ParsePlan.Columns columns = header == null ? null : plan.columnsFor(header);
+        if (columns != null) {
+            writer.begin(columns.outputHeader, true);
+        }
+
+        ring.reset();
+        final Reader reader = new Reader(ring, fastParser, csvParser, columns, profiler, metrics != null);
+        final Future<?> reading = readers.submit(reader);
+        try {
+            for (long sequence = 0; ; sequence++) {
+                final Batch batch = ring.slot(sequence);
+                final int state = batch.awaitTransformed();
+                if (state == END) {
+                    break;
+                }
+                if (state == FAILED) {
+                    rethrow(batch.failure);
+                }
+                if (columns == null) {
+                    columns = batch.columns;
+                    writer.begin(columns.outputHeader, false);
+                }
+                final long start = metrics == null ? 0 : System.nanoTime();
+                for (int r = 0; r < batch.count; r++) {
+                    writer.write(batch.values[r]);
+                }
+                if (metrics != null) {
+                    metrics.exact(StageMetrics.SERIALIZE, start);
+                    metrics.recordsWritten(batch.count);
+                    metrics.merge(batch.metrics);
+                }
+                if (batch.tokens != null) {
+                    batch.tokens.replay(tokens);
+                }
+                batch.publish(FREE, null);
+            }
+            writer.finish();
+            if (metrics != null) {
+                metrics.merge(reader.metrics);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException(e);
+        } finally {
+            // the reader and the workers must be done with the content and the ring before it is reused
+            reading.cancel(true);
+            ring.drain(reader);
+        }
+    }
+
+    private static void rethrow(final Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new ProcessException(failure);
+    }
+
+    /**
+     * The slots of one task, slot {@code n % size} holds batch {@code n} of a FlowFile.
+     */
+    final class Ring {
+        private final Batch[] batches = new Batch[slots];
+
+        private Ring() {
+            for (int i = 0; i < batches.length; i++) {
+                batches[i] = new Batch();
+            }
+        }
+
+        private Batch slot(final long sequence) {
+            return batches[(int) (sequence % batches.length)];
+        }
+
+        private void reset() {
+            for (final Batch batch : batches) {
+                batch.state = FREE;
+                batch.failure = null;
+            }
+        }
+
+        private void drain(final Reader reader) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    reader.done.await();
+                    for (final Batch batch : batches) {
+                        batch.awaitIdle();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Records of one slot, read into {@link #rows} and transformed into {@link #values} by a worker.
+     */
+    private final class Batch implements Runnable {
+        private final String[][] rows = new String[batchRecords][];
+        private final long[] numbers = new long[batchRecords];
+        private final boolean[] sampled = new boolean[batchRecords];
+        private final ParsePlan.TokenBuffer tokens = plan.tokenizes ? new ParsePlan.TokenBuffer() : null;
+        private final StageMetrics metrics = new StageMetrics();
+        private ParsePlan.Columns columns;
+        private ParsePlan.Columns valueColumns;
+        private String[][] values;
+        private int count;
+        private int state;
+        private Throwable failure;
+
+        private void begin(final ParsePlan.Columns columns) {
+            this.columns = columns;
+            this.count = 0;
+            if (tokens != null) {
+                tokens.clear();
+            }
+            metrics.reset();
+        }
+
+        /**
+         * Returns the array the next record is read into, reused when it has the same number of fields.
+         */
+        private String[] row(final int size) {
+            String[] row = rows[count];
+            if (row == null || row.length != size) {
+                row = new String[size];
+                rows[count] = row;
+            }
+            return row;
+        }
+
+        @Override
+        public void run() {
+            try {
+                transform();
+                publish(TRANSFORMED, null);
+            } catch (Throwable t) {
+                publish(FAILED, t);
+            }
+        }
+
+        private void transform() throws IOException {
+            if (valueColumns != columns) {
+                values = new String[batchRecords][columns.width()];
+                valueColumns = columns;
+            }
+            // the encrypted columns of a batch are encrypted as one chunk
+            final boolean deferEncrypt = columns.encrypted.length > 0;
+            for (int r = 0; r < count; r++) {
+                plan.transform(columns, rows[r], numbers[r], values[r], deferEncrypt, tokens,
+                        sampled[r] ? metrics : null);
+            }
+            if (deferEncrypt) {
+                final long start = System.nanoTime();
+                for (final int column : columns.encrypted) {
+                    plan.cipherEngine.encryptColumn(values, count, column);
+                }
+                metrics.exact(StageMetrics.ENCRYPT, start);
+            }
+        }
+
+        private synchronized void publish(final int state, final Throwable failure) {
+            this.state = state;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        private synchronized void awaitFree() throws InterruptedException {
+            while (state != FREE) {
+                wait();
+            }
+        }
+
+        private synchronized int awaitTransformed() throws InterruptedException {
+            while (state < TRANSFORMED) {
+                wait();
+            }
+            return state;
+        }
+
+        // a slot handed to a worker is only left once the worker is done with it
+        private synchronized void awaitIdle() throws InterruptedException {
+            while (state == PARSED) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Reads the records of one FlowFile into the ring, dropping the ones rejected by the record filter
+     * and duplicates and profiling the others, as all of that goes in record order.
+     */
+    private final class Reader implements Runnable {
+        private final Ring ring;
+        private final FastCsvParser fastParser;
+        private final CSVParser csvParser;
+        private final ColumnProfiler profiler;
+        private final StageMetrics metrics;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private ParsePlan.Columns columns;
+        private long sequence;
+        private Batch batch;
+
+        private Reader(Ring ring, FastCsvParser fastParser, CSVParser csvParser, ParsePlan.Columns columns,
+                       ColumnProfiler profiler, boolean instrumented) {
+            this.ring = ring;
+            this.fastParser = fastParser;
+            this.csvParser = csvParser;
+            this.columns = columns;
+            this.profiler = profiler;
+            this.metrics = instrumented ? new StageMetrics() : null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                read();
+                current().publish(END, null);
+            } catch (InterruptedException e) {
+                // the writer gave up and no longer takes batches
+            } catch (Throwable t) {
+                try {
+                    current().publish(FAILED, t);
+                } catch (InterruptedException e) {
+                    // the writer gave up and no longer takes batches
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void read() throws IOException, InterruptedException {
+            final Iterator<CSVRecord> records = csvParser == null ? null : csvParser.iterator();
+            final String[] filterValues = plan.filter == null ? null : new String[plan.filter.columns().length];
+            // commons-csv counts the header as a record, the byte level parser follows it
+            long recordNumber = plan.withHeader ? 1 : 0;
+
+            while (true) {
+                if (batch == null) {
+                    current().begin(columns);
+                }
+                final boolean sampled = metrics != null && metrics.sampling();
+                final long start = sampled ? System.nanoTime() : 0;
+                final String[] row;
+                if (fastParser != null) {
+                    if (!fastParser.next()) {
+                        break;
+                    }
+                    // fields after the last one the plan uses are not decoded
+                    final int size = columns == null ? fastParser.size()
+                            : Math.min(fastParser.size(), columns.fields);
+                    row = batch.row(size);
+                    for (int i = 0; i < size; i++) {
+                        row[i] = fastParser.get(i);
+                    }
+                    recordNumber++;
+                } else {
+                    if (!records.hasNext()) {
+                        break;
+                    }
+                    final CSVRecord record = records.next();
+                    row = batch.row(record.size());
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = record.get(i);
+                    }
+                    recordNumber = record.getRecordNumber();
+                }
+                if (sampled) {
+                    metrics.sampled(StageMetrics.PARSE, start);
+                }
+                if (columns == null) {
+                    columns = plan.columnsFor(ParsePlan.positionalHeader(row.length));
+                    batch.columns = columns;
+                }
+
+                if ((filterValues != null && !plan.accept(columns, row, filterValues))
+                        || (plan.duplicates != null && !plan.firstOccurrence(columns, row))) {
+                    if (metrics != null) {
+                        metrics.recordFiltered(sampled);
+                    }
+                    continue;
+                }
+                if (profiler != null) {
+                    profiler.add(columns, row);
+                }
+                if (metrics != null) {
+                    metrics.recordRead(columns, sampled);
+                }
+                batch.numbers[batch.count] = recordNumber;
+                batch.sampled[batch.count] = sampled;
+                if (++batch.count == batchRecords) {
+                    submit();
+                }
+            }
+            if (batch.count > 0) {
+                submit();
+            }
+        }
+
+        private Batch next() throws InterruptedException {
+            final Batch next = ring.slot(sequence++);
+            next.awaitFree();
+            return next;
+        }
+
+        // the slot being filled, or the next one once it was handed to a worker
+        private Batch current() throws InterruptedException {
+            if (batch == null) {
+                batch = next();
+            }
+            return batch;
+        }
+
+        private void submit() {
+            batch.publish(PARSED, null);
+            workers.execute(batch);
+            batch = null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the bad records of one FlowFile so the good ones can still be written.
+ *
+ * Bad records are streamed as CSV rows of line number, reason and record text to the failure side
+ * output while the FlowFile is parsed. Once there are more of them than tolerated the parse is aborted
+ * with {@link Rejected}, and the FlowFile is routed to failure as a whole.
+ */
+final class Quarantine {
+
+    static final String BAD_RECORDS = "parsecsv.bad.records";
+    static final String BAD_LINE = "parsecsv.bad.line";
+    static final String BAD_REASON = "parsecsv.bad.reason";
+
+    private static final String[] HEADER = {"line", "reason", "record"};
+
+    private final long tolerance;
+    private CSVPrinter printer;
+    private long records;
+    private long firstLine;
+    private String firstReason;
+
+    Quarantine(final long tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    void reset() {
+        printer = null;
+        records = 0;
+        firstLine = 0;
+        firstReason = null;
+    }
+
+    /**
+     * Starts the failure output, the stream is left open.
+     */
+    void open(final OutputStream out) throws IOException {
+        printer = new CSVPrinter(new OutputStreamWriter(out, Charset.defaultCharset()), CSVFormat.DEFAULT);
+        printer.printRecord((Object[]) HEADER);
+    }
+
+    /**
+     * Writes one bad record to the failure output.
+     *
+     * @param line line of the content the record starts on, counting from 1
+     * @throws Rejected when there are more bad records than tolerated
+     */
+    void add(final long line, final String reason, final String record) throws IOException {
+        if (++records == 1) {
+            firstLine = line;
+            firstReason = reason;
+        }
+        if (records > tolerance) {
+            throw new Rejected("More than " + tolerance + " bad records, the last one on line " + line + ": "
+                    + reason);
+        }
+        printer.printRecord(line, reason, record);
+    }
+
+    /**
+     * Aborts the parse because of an error the parser cannot continue after.
+     */
+    Rejected reject(final long line, final String reason) {
+        if (++records == 1) {
+            firstLine = line;
+            firstReason = reason;
+        }
+        return new Rejected("Unable to continue after line " + line + ": " + reason);
+    }
+
+    /**
+     * Flushes the failure output.
+     *
+     * @return number of bad records written
+     */
+    long finish() throws IOException {
+        printer.flush();
+        return records;
+    }
+
+    long records() {
+        return records;
+    }
+
+    /**
+     * Number of bad records and the line and reason of the first one.
+     */
+    Map<String, String> attributes() {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(BAD_RECORDS, String.valueOf(records));
+        if (records > 0) {
+            attributes.put(BAD_LINE, String.valueOf(firstLine));
+            attributes.put(BAD_REASON, firstReason);
+        }
+        return attributes;
+    }
+
+    /**
+     * Thrown out of the FlowFile write to route the whole FlowFile to failure.
+     */
+    static final class Rejected extends ProcessException {
+        private Rejected(final String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiled record filter, evaluated on the raw values of a record before any column is transformed.
+ *
+ * A filter is a boolean expression of predicates on columns, combined with {@code and}, {@code or},
+ * {@code not} and parentheses:
+ * <pre>
+ *   country = 'DE' and (age between 18 and 65 or status in ('gold', 'silver'))
+ *   email matches '.*@example\.com' and phone is not null
+ * </pre>
+ * Columns are header names, quoted with double quotes when they are not plain words. Values are
+ * quoted with single quotes, a quote inside a value is doubled. {@code =} and {@code !=} compare text,
+ * {@code <}, {@code <=}, {@code >}, {@code >=} and {@code between} compare numbers when the bound is
+ * a number and text otherwise, and {@code matches} has to match the whole value. A value is null when
+ * it is empty or missing from the record. Keywords are case insensitive.
+ *
+ * The expression is compiled once to a tree of predicates that read their column from a slot of a
+ * value array, the plan resolves the slots to fields of every header it is bound to.
+ */
+final class RecordFilter {
+
+    // what happens to the records the filter rejects
+    static final String DROP = "Drop";
+    static final String ROUTE = "Route to filtered";
+
+    static final Validator VALIDATOR = new Validator() {
+        @Override
+        public ValidationResult validate(final String subject, final String input, final ValidationContext context) {
+            String explanation = null;
+            try {
+                compile(input);
+            } catch (IllegalArgumentException e) {
+                explanation = e.getMessage();
+            }
+            return new ValidationResult.Builder().subject(subject).input(input).valid(explanation == null)
+                    .explanation(explanation).build();
+        }
+    };
+
+    private final Predicate root;
+    private final String[] columns;
+
+    private RecordFilter(final Predicate root, final String[] columns) {
+        this.root = root;
+        this.columns = columns;
+    }
+
+    /**
+     * @throws IllegalArgumentException when the expression is not valid
+     */
+    static RecordFilter compile(final String expression) {
+        final Compiler compiler = new Compiler(expression);
+        final Predicate root = compiler.compile();
+        return new RecordFilter(root, compiler.columns.toArray(new String[0]));
+    }
+
+    /**
+     * Names of the columns the filter reads, the value of column {@code i} is expected in slot {@code i}.
+     */
+    String[] columns() {
+        return columns;
+    }
+
+    /**
+     * @param values raw value of every column of {@link #columns()}, null when the record does not have it
+     */
+    boolean accept(final String[] values) {
+        return root.test(values);
+    }
+
+    private static boolean isNull(final String value) {
+        return value == null || value.isEmpty();
+    }
+
+    private abstract static class Predicate {
+        abstract boolean test(String[] values);
+    }
+
+    private static final class And extends Predicate {
+        private final Predicate[] operands;
+
+        private And(final List<Predicate> operands) {
+            this.operands = operands.toArray(new Predicate[0]);
+        }
+
+        @Override
+        boolean test(final String[] values) {
+            for (final Predicate operand : operands) {
+                if (!operand.test(values)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Or extends Predicate {
+        private final Predicate[] operands;
+
+        private Or(final List<Predicate> operands) {
+            this.operands = operands.toArray(new Predicate[0]);
+        }
+
+        @Override
+        boolean test(final String[] values) {
+            for (final Predicate operand : operands) {
+                if (operand.test(values)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Not extends Predicate {
+        private final Predicate operand;
+
+        private Not(final Predicate operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean test(final String[] values) {
+            return !operand.test(values);
+        }
+    }
+
+    private static final class Equals extends Predicate {
+        private final int slot;
+        private final String value;
+
+        private Equals(final int slot, final String value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        boolean test(final String[] values) {
+            return value.equals(values[slot]);
+        }
+    }
+
+    private static final class In extends Predicate {
+        private final int slot;
+        private final Set<String> set;
+
+        private In(final int slot, final Set<String> set) {
+            this.slot = slot;
+            this.set = set;
+        }
+
+        @Override
+        boolean test(final String[] values) {
+            return values[slot] != null && set.contains(values[slot]);
+        }
+    }
+
+    private static final class IsNull extends Predicate {
+        private final int slot;
+
+        private IsNull(final int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        boolean test(final String[] values) {
+            return isNull(values[slot]);
+        }
+    }
+
+    private static final class Matches extends Predicate {
+        private final int slot;
+        private final Pattern pattern;
+
+        private Matches(final int slot, final Pattern pattern) {
+            this.slot = slot;
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean test(final String[] values) {
+            return values[slot] != null && pattern.matcher(values[slot]).matches();
+        }
+    }
+
+    /**
+     * Compares against a bound, numerically when the bound is a number. Values that are not numbers
+     * never satisfy a numeric comparison.
+     */
+    private static final class Compare extends Predicate {
+        private final int slot;
+        private final String operator;
+        private final String text;
+        private final boolean numeric;
+        private final double number;
+
+        private Compare(final int slot, final String operator, final String bound, final boolean numeric) {
+            this.slot = slot;
+            this.operator = operator;
+            this.text = bound;
+            this.numeric = numeric;
+            this.number = numeric ? Double.parseDouble(bound) : 0;
+        }
+
+        @Override
+        boolean test(final String[] values) {
+            final String value = values[slot];
+            if (isNull(value)) {
+                return false;
+            }
+            final int comparison;
+            if (numeric) {
+                final double parsed;
+                try {
+                    parsed = Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                if (Double.isNaN(parsed)) {
+                    return false;
+                }
+                comparison = Double.compare(parsed, number);
+            } else {
+                comparison = value.compareTo(text);
+            }
+            switch (operator) {
+                case "<":
+                    return comparison < 0;
+                case "<=":
+                    return comparison <= 0;
+                case ">":
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+    }
+
+    /**
+     * Recursive descent compiler over a hand written tokenizer.
+     * <pre>
+     *   or         := and ('or' and)*
+     *   and        := unary ('and' unary)*
+     *   unary      := 'not' unary | '(' or ')' | predicate
+     *   predicate  := column ( ('=' | '!=') value | ('<' | '<=' | '>' | '>=') value
+     *                        | 'not'? 'in' '(' value (',' value)* ')' | 'between' value 'and' value
+     *                        | 'not'? 'matches' value | 'is' 'not'? 'null' )
+     * </pre>
+     */
+    private static final class Compiler {
+        private static final int END = 0;
+        private static final int WORD = 1;
+        private static final int NAME = 2;
+        private static final int STRING = 3;
+        private static final int NUMBER = 4;
+        private static final int SYMBOL = 5;
+
+        private final String expression;
+        private final List<String> columns = new ArrayList<>();
+        private int position;
+        private int type;
+        private String token;
+        private int tokenStart;
+
+        private Compiler(final String expression) {
+            if (expression == null || expression.trim().isEmpty()) {
+                throw new IllegalArgumentException("filter expression is empty");
+            }
+            this.expression = expression;
+            advance();
+        }
+
+        private Predicate compile() {
+            final Predicate predicate = or();
+            if (type != END) {
+                throw error("unexpected " + token);
+            }
+            return predicate;
+        }
+
+        private Predicate or() {
+            final List<Predicate> operands = new ArrayList<>();
+            operands.add(and());
+            while (keyword("or")) {
+                advance();
+                operands.add(and());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Or(operands);
+        }
+
+        private Predicate and() {
+            final List<Predicate> operands = new ArrayList<>();
+            operands.add(unary());
+            while (keyword("and")) {
+                advance();
+                operands.add(unary());
+            }
+            return operands.size() == 1 ? operands.get(0) : new And(operands);
+        }
+
+        private Predicate unary() {
+            if (keyword("not")) {
+                advance();
+                return new Not(unary());
+            }
+            if (symbol("(")) {
+                advance();
+                final Predicate predicate = or();
+                expect(")");
+                return predicate;
+            }
+            return predicate();
+        }
+
+        private Predicate predicate() {
+            if (type != WORD && type != NAME) {
+                throw error("expected a column but found " + describe());
+            }
+            final int slot = slot(token);
+            advance();
+
+            if (symbol("=") || symbol("==")) {
+                advance();
+                return new Equals(slot, value());
+            }
+            if (symbol("!=") || symbol("<>")) {
+                advance();
+                return new Not(new Equals(slot, value()));
+            }
+            if (symbol("<") || symbol("<=") || symbol(">") || symbol(">=")) {
+                final String operator = token;
+                advance();
+                return compare(slot, operator);
+            }
+            if (keyword("between")) {
+                advance();
+                final Predicate lower = compare(slot, ">=");
+                if (!keyword("and")) {
+                    throw error("expected and but found " + describe());
+                }
+                advance();
+                final Predicate upper = compare(slot, "<=");
+                return new And(Arrays.asList(lower, upper));
+            }
+            if (keyword("is")) {
+                advance();
+                final boolean negated = keyword("not");
+                if (negated) {
+                    advance();
+                }
+                if (!keyword("null")) {
+                    throw error("expected null but found " + describe());
+                }
+                advance();
+                return negated ? new Not(new IsNull(slot)) : new IsNull(slot);
+            }
+            final boolean negated = keyword("not");
+            if (negated) {
+                advance();
+            }
+            final Predicate predicate;
+            if (keyword("in")) {
+                advance();
+                expect("(");
+                final Set<String> set = new HashSet<>();
+                set.add(value());
+                while (symbol(",")) {
+                    advance();
+                    set.add(value());
+                }
+                expect(")");
+                predicate = new In(slot, set);
+            } else if (keyword("matches")) {
+                advance();
+                final String regex = value();
+                try {
+                    predicate = new Matches(slot, Pattern.compile(regex));
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("invalid regular expression " + regex + ": "
+                            + e.getDescription());
+                }
+            } else {
+                throw error("expected an operator but found " + describe());
+            }
+            return negated ? new Not(predicate) : predicate;
+        }
+
+        private Predicate compare(final int slot, final String operator) {
+            final boolean numeric = type == NUMBER;
+            return new Compare(slot, operator, value(), numeric);
+        }
+
+        private String value() {
+            if (type != STRING && type != NUMBER) {
+                throw error("expected a value but found " + describe());
+            }
+            final String value = token;
+            advance();
+            return value;
+        }
+
+        private void expect(final String symbol) {
+            if (!symbol(symbol)) {
+                throw error("expected " + symbol + " but found " + describe());
+            }
+            advance();
+        }
+
+        private int slot(final String column) {
+            int slot = columns.indexOf(column);
+            if (slot < 0) {
+                slot = columns.size();
+                columns.add(column);
+            }
+            return slot;
+        }
+
+        private boolean keyword(final String keyword) {
+            return type == WORD && token.toLowerCase(Locale.ROOT).equals(keyword);
+        }
+
+        private boolean symbol(final String symbol) {
+            return type == SYMBOL && token.equals(symbol);
+        }
+
+        private String describe() {
+            return type == END ? "the end of the filter" : token;
+        }
+
+        private IllegalArgumentException error(final String message) {
+            return new IllegalArgumentException(message + " at position " + (tokenStart + 1));
+        }
+
+        private void advance() {
+            final String s = expression;
+            while (position < s.length() && Character.isWhitespace(s.charAt(position))) {
+                position++;
+            }
+            tokenStart = position;
+            if (position == s.length()) {
+                type = END;
+                token = null;
+                return;
+            }
+
+            final char c = s.charAt(position);
+            if (c == '\'' || c == '"') {
+                type = c == '\'' ? STRING : NAME;
+                token = quoted(c);
+            } else if (Character.isDigit(c) || (c == '-' || c == '+' || c == '.') && position + 1 < s.length()
+                    && (Character.isDigit(s.charAt(position + 1)) || s.charAt(position + 1) == '.')) {
+                position++;
+                while (position < s.length() && (Character.isLetterOrDigit(s.charAt(position))
+                        || s.charAt(position) == '.' || isExponentSign(s, position))) {
+                    position++;
+                }
+                type = NUMBER;
+                token = s.substring(tokenStart, position);
+                try {
+                    Double.parseDouble(token);
+                } catch (NumberFormatException e) {
+                    throw error("invalid number " + token);
+                }
+            } else if (Character.isLetter(c) || c == '_') {
+                while (position < s.length() && (Character.isLetterOrDigit(s.charAt(position))
+                        || s.charAt(position) == '_' || s.charAt(position) == '.')) {
+                    position++;
+                }
+                type = WORD;
+                token = s.substring(tokenStart, position);
+            } else {
+                type = SYMBOL;
+                final String two = position + 1 < s.length() ? s.substring(position, position + 2) : "";
+                if (two.equals("<=") || two.equals(">=") || two.equals("!=") || two.equals("<>")
+                        || two.equals("==")) {
+                    token = two;
+                    position += 2;
+                } else if ("=<>(),".indexOf(c) >= 0) {
+                    token = String.valueOf(c);
+                    position++;
+                } else {
+                    throw error("unexpected character " + c);
+                }
+            }
+        }
+
+        private static boolean isExponentSign(final String s, final int position) {
+            final char c = s.charAt(position);
+            return (c == '-' || c == '+') && (s.charAt(position - 1) == 'e' || s.charAt(position - 1) == 'E');
+        }
+
+        private String quoted(final char quote) {
+            final StringBuilder value = new StringBuilder();
+            position++;
+            while (position < expression.length()) {
+                final char c = expression.charAt(position++);
+                if (c != quote) {
+                    value.append(c);
+                } else if (position < expression.length() && expression.charAt(position) == quote) {
+                    value.append(quote);
+                    position++;
+                } else {
+                    return value.toString();
+                }
+            }
+            throw error("unterminated " + (quote == '\'' ? "value" : "column name"));
+        }
+    }
+}
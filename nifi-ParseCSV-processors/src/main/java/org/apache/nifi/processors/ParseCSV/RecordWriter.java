@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.xml.XmlFactory;
+import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
+import org.apache.commons.csv.CSVPrinter;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Output stage of ParseCSV. One writer is opened over the output stream per FlowFile and records are
+ * written straight from the transformed field arrays.
+ */
+abstract class RecordWriter {
+
+    static final String JSON_ARRAY = "Array";
+    static final String JSON_COMPACT = "Compact";
+    static final String JSON_LINES = "NDJSON";
+
+    static final String XML_ROOT = "records";
+    static final String XML_RECORD = "record";
+
+    /**
+     * Starts the output once the output column names are known.
+     *
+     * @param header output column names
+     * @param printHeader whether the header came from the content and should be repeated in CSV output
+     */
+    abstract void begin(String[] header, boolean printHeader) throws IOException;
+
+    abstract void write(String[] values) throws IOException;
+
+    /**
+     * Ends the document and flushes, the underlying stream is left open.
+     */
+    abstract void finish() throws IOException;
+
+    static RecordWriter create(final ParsePlan plan, final OutputStream out) throws IOException {
+        switch (plan.outputFormat) {
+            case ParsePlan.OUTPUT_JSON:
+                return new JsonRecordWriter(plan.jsonFactory.createGenerator(out, JsonEncoding.UTF8), plan.jsonMode);
+            case ParsePlan.OUTPUT_XML:
+                return new XmlRecordWriter(plan.xmlFactory.createGenerator(out, JsonEncoding.UTF8));
+            default:
+                return new CsvRecordWriter(new CSVPrinter(new OutputStreamWriter(out, Charset.defaultCharset()),
+                        plan.printFormat));
+        }
+    }
+
+    /**
+     * Creates the writer for one FlowFile, starting a new document for every segment when the output is split.
+     */
+    static RecordWriter create(final ParsePlan plan, final OutputStream out, final OutputSplitter splitter)
+            throws IOException {
+        if (splitter == null) {
+            return create(plan, out);
+        }
+        final OutputStream counted = splitter.wrap(out);
+        return new SplittingRecordWriter(plan, counted, splitter, create(plan, counted));
+    }
+
+    static JsonFactory jsonFactory(final String mode) {
+        final JsonFactory factory = new JsonFactory();
+        factory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (JSON_LINES.equals(mode)) {
+            factory.setRootValueSeparator("\n");
+        }
+        return factory;
+    }
+
+    static XmlFactory xmlFactory() {
+        final XmlFactory factory = new XmlFactory();
+        factory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        // element names carry no namespace, repairing makes the JDK writer declare xmlns="" on the root
+        factory.getXMLOutputFactory().setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, false);
+        return factory;
+    }
+
+    private static final class SplittingRecordWriter extends RecordWriter {
+        private final ParsePlan plan;
+        private final OutputStream out;
+        private final OutputSplitter splitter;
+        private RecordWriter writer;
+        private String[] header;
+        private boolean printHeader;
+
+        private SplittingRecordWriter(final ParsePlan plan, final OutputStream out, final OutputSplitter splitter,
+                                      final RecordWriter writer) {
+            this.plan = plan;
+            this.out = out;
+            this.splitter = splitter;
+            this.writer = writer;
+        }
+
+        @Override
+        void begin(String[] header, boolean printHeader) throws IOException {
+            this.header = header;
+            this.printHeader = printHeader;
+            writer.begin(header, printHeader);
+        }
+
+        @Override
+        void write(String[] values) throws IOException {
+            if (splitter.isFull(splitter.position())) {
+                writer.finish();
+                splitter.split(splitter.position());
+                writer = create(plan, out);
+                writer.begin(header, printHeader);
+            }
+            writer.write(values);
+            splitter.recordWritten();
+        }
+
+        @Override
+        void finish() throws IOException {
+            writer.finish();
+            splitter.finish(splitter.position());
+        }
+    }
+
+    private static final class CsvRecordWriter extends RecordWriter {
+        private final CSVPrinter csvPrinter;
+
+        private CsvRecordWriter(final CSVPrinter csvPrinter) {
+            this.csvPrinter = csvPrinter;
+        }
+
+        @Override
+        void begin(String[] header, boolean printHeader) throws IOException {
+            if (printHeader) {
+                csvPrinter.printRecord((Object[]) header);
+            }
+        }
+
+        @Override
+        void write(String[] values) throws IOException {
+            csvPrinter.printRecord((Object[]) values);
+        }
+
+        @Override
+        void finish() throws IOException {
+            csvPrinter.flush();
+        }
+    }
+
+    private static final class JsonRecordWriter extends RecordWriter {
+        private final JsonGenerator generator;
+        private final String mode;
+        private String[] header;
+        private boolean empty = true;
+
+        private JsonRecordWriter(final JsonGenerator generator, final String mode) {
+            this.generator = generator;
+            this.mode = mode;
+            if (JSON_ARRAY.equals(mode)) {
+                generator.useDefaultPrettyPrinter();
+            }
+        }
+
+        @Override
+        void begin(String[] header, boolean printHeader) throws IOException {
+            this.header = header;
+            if (!JSON_LINES.equals(mode)) {
+                generator.writeStartArray();
+            }
+        }
+
+        @Override
+        void write(String[] values) throws IOException {
+            generator.writeStartObject();
+            for (int i = 0; i < values.length; i++) {
+                generator.writeStringField(header[i], values[i]);
+            }
+            generator.writeEndObject();
+            empty = false;
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (!JSON_LINES.equals(mode)) {
+                if (header == null) {
+                    generator.writeStartArray();
+                }
+                generator.writeEndArray();
+            }
+            if (JSON_LINES.equals(mode) && !empty) {
+                generator.writeRaw('\n');
+            }
+            generator.close();
+        }
+    }
+
+    private static final class XmlRecordWriter extends RecordWriter {
+        private final ToXmlGenerator generator;
+        private String[] names;
+
+        private XmlRecordWriter(final ToXmlGenerator generator) {
+            this.generator = generator;
+        }
+
+        @Override
+        void begin(String[] header, boolean printHeader) throws IOException {
+            names = new String[header.length];
+            for (int i = 0; i < header.length; i++) {
+                names[i] = elementName(header[i]);
+            }
+            generator.setNextName(new QName(XML_ROOT));
+            generator.writeStartObject();
+        }
+
+        @Override
+        void write(String[] values) throws IOException {
+            generator.writeFieldName(XML_RECORD);
+            generator.writeStartObject();
+            for (int i = 0; i < values.length; i++) {
+                generator.writeStringField(names[i], values[i]);
+            }
+            generator.writeEndObject();
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (names == null) {
+                generator.setNextName(new QName(XML_ROOT));
+                generator.writeStartObject();
+            }
+            generator.writeEndObject();
+            generator.close();
+        }
+
+        // column names are not necessarily valid XML element names
+        private static String elementName(final String column) {
+            final StringBuilder name = new StringBuilder(column.length() + 1);
+            for (int i = 0; i < column.length(); i++) {
+                final char c = column.charAt(i);
+                final boolean valid = Character.isLetter(c) || c == '_'
+                        || (i > 0 && (Character.isDigit(c) || c == '-' || c == '.'));
+                name.append(valid ? c : '_');
+            }
+            if (name.length() == 0 || !Character.isLetter(name.charAt(0)) && name.charAt(0) != '_') {
+                name.insert(0, '_');
+            }
+            return name.toString();
+        }
+    }
+}
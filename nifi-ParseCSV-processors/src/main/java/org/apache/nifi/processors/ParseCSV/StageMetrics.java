@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.processor.ProcessSession;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per FlowFile timings and counters of the parse, mask, encrypt, tokenize and serialize stages.
+ *
+ * Timing every cell would cost more than masking it, so only one record in {@link #SAMPLE_INTERVAL}
+ * is timed and the stage times are extrapolated to all records. Work done once per batch, such as
+ * chunked encryption, is timed exactly. Times of the parallel and pipelined parsers are summed over
+ * their threads.
+ * When instrumentation is disabled no instance exists and the hot path only checks for null.
+ */
+final class StageMetrics {
+
+    // transform stages share the numbers of the column actions they time
+    static final int PARSE = ParsePlan.PASS;
+    static final int MASK = ParsePlan.MASK;
+    static final int TOKENIZE = ParsePlan.MASK_TOKENIZE;
+    static final int ENCRYPT = ParsePlan.ENCRYPT;
+    static final int SERIALIZE = 4;
+
+    static final int SAMPLE_INTERVAL = 64;
+
+    static final String OFF = "Off";
+    static final String COUNTERS = "Counters";
+    static final String COUNTERS_AND_ATTRIBUTES = "Counters and Attributes";
+
+    static final String RECORDS = "parsecsv.records";
+    static final String RECORDS_OUT = "parsecsv.records.out";
+    static final String BYTES_IN = "parsecsv.bytes.in";
+    static final String BYTES_OUT = "parsecsv.bytes.out";
+    static final String CELLS_TRANSFORMED = "parsecsv.cells.transformed";
+
+    private static final String[] STAGES = {"parse", "mask", "tokenize", "encrypt", "serialize"};
+    private static final String[] COUNTER_STAGES = {"Parse", "Mask", "Tokenize", "Encrypt", "Serialize"};
+
+    private final long[] sampledNanos = new long[STAGES.length];
+    private final long[] exactNanos = new long[STAGES.length];
+    private long recordsIn;
+    private long sampledRecords;
+    private long recordsOut;
+    private long cellsTransformed;
+    private long bytesIn;
+    private long bytesOut;
+
+    static String attribute(final int stage) {
+        return "parsecsv." + STAGES[stage] + ".nanos";
+    }
+
+    void reset() {
+        for (int i = 0; i < STAGES.length; i++) {
+            sampledNanos[i] = 0;
+            exactNanos[i] = 0;
+        }
+        recordsIn = sampledRecords = recordsOut = cellsTransformed = bytesIn = bytesOut = 0;
+    }
+
+    /**
+     * Whether the next record read is timed.
+     */
+    boolean sampling() {
+        return recordsIn % SAMPLE_INTERVAL == 0;
+    }
+
+    /**
+     * Counts a record that was read and transformed.
+     */
+    void recordRead(final ParsePlan.Columns columns, final boolean sampled) {
+        recordsIn++;
+        cellsTransformed += columns.transformed;
+        if (sampled) {
+            sampledRecords++;
+        }
+    }
+
+    /**
+     * Counts a record rejected by the record filter, dropped as a duplicate or quarantined as a bad
+     * record, which is read but never transformed.
+     */
+    void recordFiltered(final boolean sampled) {
+        recordsIn++;
+        if (sampled) {
+            sampledRecords++;
+        }
+    }
+
+    void recordsWritten(final int count) {
+        recordsOut += count;
+    }
+
+    /**
+     * Adds the time since {@code start} to a stage of a sampled record.
+     */
+    void sampled(final int stage, final long start) {
+        sampledNanos[stage] += System.nanoTime() - start;
+    }
+
+    /**
+     * Adds the time since {@code start} to a stage, for work that is timed for every record.
+     */
+    void exact(final int stage, final long start) {
+        exactNanos[stage] += System.nanoTime() - start;
+    }
+
+    void bytes(final long in, final long out) {
+        bytesIn = in;
+        bytesOut = out;
+    }
+
+    /**
+     * Adds the metrics of a part of the same FlowFile, the sampled times are scaled to that part first.
+     */
+    void add(final StageMetrics part) {
+        for (int i = 0; i < STAGES.length; i++) {
+            exactNanos[i] += part.nanos(i);
+        }
+        recordsIn += part.recordsIn;
+        recordsOut += part.recordsOut;
+        cellsTransformed += part.cellsTransformed;
+    }
+
+    /**
+     * Adds the metrics of a stage of the same FlowFile that ran on another thread. The sampled times are
+     * added as they are, the stage that read the records decided which ones are sampled and counts them.
+     */
+    void merge(final StageMetrics stage) {
+        for (int i = 0; i < STAGES.length; i++) {
+            sampledNanos[i] += stage.sampledNanos[i];
+            exactNanos[i] += stage.exactNanos[i];
+        }
+        recordsIn += stage.recordsIn;
+        sampledRecords += stage.sampledRecords;
+        recordsOut += stage.recordsOut;
+        cellsTransformed += stage.cellsTransformed;
+    }
+
+    /**
+     * Estimated time of a stage over all records of the FlowFile.
+     */
+    long nanos(final int stage) {
+        final long sampled = sampledRecords == 0 ? 0 : sampledNanos[stage] * recordsIn / sampledRecords;
+        return exactNanos[stage] + sampled;
+    }
+
+    void report(final ProcessSession session) {
+        session.adjustCounter("Records In", recordsIn, false);
+        session.adjustCounter("Records Out", recordsOut, false);
+        session.adjustCounter("Bytes In", bytesIn, false);
+        session.adjustCounter("Bytes Out", bytesOut, false);
+        session.adjustCounter("Cells Transformed", cellsTransformed, false);
+        for (int i = 0; i < STAGES.length; i++) {
+            session.adjustCounter(COUNTER_STAGES[i] + " Nanos", nanos(i), false);
+        }
+    }
+
+    Map<String, String> attributes() {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(RECORDS, String.valueOf(recordsIn));
+        attributes.put(RECORDS_OUT, String.valueOf(recordsOut));
+        attributes.put(BYTES_IN, String.valueOf(bytesIn));
+        attributes.put(BYTES_OUT, String.valueOf(bytesOut));
+        attributes.put(CELLS_TRANSFORMED, String.valueOf(cellsTransformed));
+        for (int i = 0; i < STAGES.length; i++) {
+            attributes.put(attribute(i), String.valueOf(nanos(i)));
+        }
+        return attributes;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Read only index from masked value back to source value per tokenized column, built from the
+ * tokenized mappings ParseCSV writes as CSV and shared by all tasks of DetokenizeCSV.
+ *
+ * The mappings are copied once into a local data file, then an open addressing table of 16 byte slots
+ * holding a 64-bit hash of column and masked value and the offset of the mapping is built over it.
+ * Both files are memory mapped read only, a lookup touches the slots it probes and the mapping it
+ * finds and takes no lock. A masked value that maps back to more than one source value keeps the
+ * first one.
+ */
+final class TokenIndex implements Closeable {
+
+    static final String COLUMN_NAME = "ColumnName";
+    static final String MASKED_VALUE = "MaskedValue";
+    static final String SOURCE_VALUE = "SourceValue";
+
+    // 16 byte slots: hash, data offset
+    private static final int SLOT_SHIFT = 4;
+    private static final int REGION_SLOTS_SHIFT = 26;
+    private static final long REGION_SLOTS = 1L << REGION_SLOTS_SHIFT;
+    private static final double MAX_LOAD = 0.5;
+
+    // mappings never cross a data region, the rest of a region is left as zeros
+    private static final int DATA_REGION_SHIFT = 30;
+    private static final long DATA_REGION = 1L << DATA_REGION_SHIFT;
+    // mapping header: length of the mapping, column length, masked value length
+    private static final int MAPPING_HEADER = 12;
+
+    private final File indexFile;
+    private final File dataFile;
+    private final MappedByteBuffer[] slots;
+    private final MappedByteBuffer[] data;
+    private final long capacity;
+    private final long size;
+    private final long conflicts;
+
+    private TokenIndex(final File indexFile, final File dataFile, final MappedByteBuffer[] slots,
+                       final MappedByteBuffer[] data, final long capacity, final long size, final long conflicts) {
+        this.indexFile = indexFile;
+        this.dataFile = dataFile;
+        this.slots = slots;
+        this.data = data;
+        this.capacity = capacity;
+        this.size = size;
+        this.conflicts = conflicts;
+    }
+
+    /**
+     * Builds the index of the mapping files in {@code directory}, replacing an index of the same name.
+     *
+     * @param mappings CSV files with ColumnName, MaskedValue and SourceValue columns
+     */
+    static TokenIndex build(final List<File> mappings, final File directory, final String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        final File dataFile = new File(directory, name + ".dat");
+        final File indexFile = new File(directory, name + ".idx");
+
+        // copy the mappings, the table is sized once their number is known
+        long count = 0;
+        long length = 0;
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(dataFile), 64 * 1024))) {
+            for (final File mapping : mappings) {
+                try (final CSVParser parser = new CSVParser(new InputStreamReader(new FileInputStream(mapping),
+                        StandardCharsets.UTF_8), CSVFormat.DEFAULT.withHeader())) {
+                    for (final String column : new String[]{COLUMN_NAME, MASKED_VALUE, SOURCE_VALUE}) {
+                        if (!parser.getHeaderMap().containsKey(column)) {
+                            throw new IOException(mapping + " is not a tokenized mapping file, it has no "
+                                    + column + " column");
+                        }
+                    }
+                    for (final CSVRecord record : parser) {
+                        final byte[] column = record.get(COLUMN_NAME).getBytes(StandardCharsets.UTF_8);
+                        final byte[] masked = record.get(MASKED_VALUE).getBytes(StandardCharsets.UTF_8);
+                        final byte[] source = record.get(SOURCE_VALUE).getBytes(StandardCharsets.UTF_8);
+                        final int mappingLength = MAPPING_HEADER + column.length + masked.length + source.length;
+                        final long left = DATA_REGION - (length & (DATA_REGION - 1));
+                        if (mappingLength > left) {
+                            for (long i = 0; i < left; i++) {
+                                out.write(0);
+                            }
+                            length += left;
+                        }
+                        out.writeInt(mappingLength);
+                        out.writeInt(column.length);
+                        out.writeInt(masked.length);
+                        out.write(column);
+                        out.write(masked);
+                        out.write(source);
+                        length += mappingLength;
+                        count++;
+                    }
+                }
+            }
+        }
+
+        long capacity = 16;
+        while (capacity * MAX_LOAD < count) {
+            capacity <<= 1;
+        }
+        final MappedByteBuffer[] data;
+        try (final RandomAccessFile file = new RandomAccessFile(dataFile, "r")) {
+            data = map(file.getChannel(), FileChannel.MapMode.READ_ONLY, length, DATA_REGION_SHIFT);
+        }
+        try (final RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            file.setLength(0);
+            file.setLength(capacity << SLOT_SHIFT);
+            final MappedByteBuffer[] slots = map(file.getChannel(), FileChannel.MapMode.READ_WRITE,
+                    capacity << SLOT_SHIFT, REGION_SLOTS_SHIFT + SLOT_SHIFT);
+            final TokenIndex building = new TokenIndex(indexFile, dataFile, slots, data, capacity, 0, 0);
+            final long conflicts = building.place(length);
+            final MappedByteBuffer[] readOnly = map(file.getChannel(), FileChannel.MapMode.READ_ONLY,
+                    capacity << SLOT_SHIFT, REGION_SLOTS_SHIFT + SLOT_SHIFT);
+            return new TokenIndex(indexFile, dataFile, readOnly, data, capacity, count, conflicts);
+        }
+    }
+
+    /**
+     * @return the source value of the masked value, or null when the column has no such token
+     */
+    String get(final String column, final String masked) {
+        final byte[] columnBytes = column.getBytes(StandardCharsets.UTF_8);
+        final byte[] maskedBytes = masked.getBytes(StandardCharsets.UTF_8);
+        final long hash = hash(ByteBuffer.wrap(columnBytes), 0, columnBytes.length,
+                ByteBuffer.wrap(maskedBytes), 0, maskedBytes.length);
+        final long mask = capacity - 1;
+        for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final long stored = slotHash(slot);
+            if (stored == 0) {
+                return null;
+            }
+            if (stored == hash) {
+                final long offset = slotOffset(slot);
+                final ByteBuffer region = data[(int) (offset >>> DATA_REGION_SHIFT)];
+                final int at = (int) (offset & (DATA_REGION - 1));
+                if (matches(region, at, columnBytes, maskedBytes)) {
+                    final int sourceAt = at + MAPPING_HEADER + columnBytes.length + maskedBytes.length;
+                    final byte[] source = new byte[region.getInt(at) - (sourceAt - at)];
+                    for (int i = 0; i < source.length; i++) {
+                        source[i] = region.get(sourceAt + i);
+                    }
+                    return new String(source, StandardCharsets.UTF_8);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of mappings the index was built from, duplicates included
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return number of masked values that were mapped to more than one source value
+     */
+    long conflicts() {
+        return conflicts;
+    }
+
+    /**
+     * Deletes the files, the mapped buffers stay readable until they are collected.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!indexFile.delete() || !dataFile.delete()) {
+            indexFile.deleteOnExit();
+            dataFile.deleteOnExit();
+        }
+    }
+
+    // places every mapping of the data file, returns the number of conflicting duplicates
+    private long place(final long length) {
+        final long mask = capacity - 1;
+        long conflicts = 0;
+        long offset = 0;
+        while (offset < length) {
+            final ByteBuffer region = data[(int) (offset >>> DATA_REGION_SHIFT)];
+            final int at = (int) (offset & (DATA_REGION - 1));
+            final long left = DATA_REGION - at;
+            if (left < MAPPING_HEADER || region.getInt(at) == 0) {
+                offset += left;
+                continue;
+            }
+            final int mappingLength = region.getInt(at);
+            final int columnLength = region.getInt(at + 4);
+            final int maskedLength = region.getInt(at + 8);
+            final int columnAt = at + MAPPING_HEADER;
+            final long hash = hash(region, columnAt, columnLength, region, columnAt + columnLength, maskedLength);
+
+            long slot = hash & mask;
+            while (true) {
+                final long stored = slotHash(slot);
+                if (stored == 0) {
+                    final MappedByteBuffer slotRegion = slots[(int) (slot >>> REGION_SLOTS_SHIFT)];
+                    slotRegion.putLong(position(slot) + 8, offset);
+                    slotRegion.putLong(position(slot), hash);
+                    break;
+                }
+                if (stored == hash && sameKey(slotOffset(slot), region, at)) {
+                    if (!sameSource(slotOffset(slot), region, at)) {
+                        conflicts++;
+                    }
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            offset += mappingLength;
+        }
+        return conflicts;
+    }
+
+    private boolean matches(final ByteBuffer region, final int at, final byte[] column, final byte[] masked) {
+        if (region.getInt(at + 4) != column.length || region.getInt(at + 8) != masked.length) {
+            return false;
+        }
+        final int columnAt = at + MAPPING_HEADER;
+        for (int i = 0; i < column.length; i++) {
+            if (region.get(columnAt + i) != column[i]) {
+                return false;
+            }
+        }
+        final int maskedAt = columnAt + column.length;
+        for (int i = 0; i < masked.length; i++) {
+            if (region.get(maskedAt + i) != masked[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // whether the mapping at offset has the column and masked value of the one at at in region
+    private boolean sameKey(final long offset, final ByteBuffer region, final int at) {
+        final ByteBuffer stored = data[(int) (offset >>> DATA_REGION_SHIFT)];
+        final int storedAt = (int) (offset & (DATA_REGION - 1));
+        final int keyLength = region.getInt(at + 4) + region.getInt(at + 8);
+        return stored.getInt(storedAt + 4) == region.getInt(at + 4)
+                && stored.getInt(storedAt + 8) == region.getInt(at + 8)
+                && equal(stored, storedAt + MAPPING_HEADER, region, at + MAPPING_HEADER, keyLength);
+    }
+
+    // whether the mapping at offset, with the same key, has the same source value as the one at at in region
+    private boolean sameSource(final long offset, final ByteBuffer region, final int at) {
+        final ByteBuffer stored = data[(int) (offset >>> DATA_REGION_SHIFT)];
+        final int storedAt = (int) (offset & (DATA_REGION - 1));
+        final int length = region.getInt(at);
+        return stored.getInt(storedAt) == length && equal(stored, storedAt, region, at, length);
+    }
+
+    private static boolean equal(final ByteBuffer a, final int aAt, final ByteBuffer b, final int bAt,
+                                 final int length) {
+        for (int i = 0; i < length; i++) {
+            if (a.get(aAt + i) != b.get(bAt + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long slotHash(final long slot) {
+        return slots[(int) (slot >>> REGION_SLOTS_SHIFT)].getLong(position(slot));
+    }
+
+    private long slotOffset(final long slot) {
+        return slots[(int) (slot >>> REGION_SLOTS_SHIFT)].getLong(position(slot) + 8);
+    }
+
+    private static int position(final long slot) {
+        return (int) (slot & (REGION_SLOTS - 1)) << SLOT_SHIFT;
+    }
+
+    private static MappedByteBuffer[] map(final FileChannel channel, final FileChannel.MapMode mode,
+                                          final long length, final int regionShift) throws IOException {
+        final long regionLength = 1L << regionShift;
+        final int count = (int) ((length + regionLength - 1) >>> regionShift);
+        final MappedByteBuffer[] regions = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long start = (long) i << regionShift;
+            regions[i] = channel.map(mode, start, Math.min(regionLength, length - start));
+        }
+        return regions;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 column, a separator and the masked value, never 0 which marks empty slots
+    private static long hash(final ByteBuffer column, final int columnAt, final int columnLength,
+                             final ByteBuffer masked, final int maskedAt, final int maskedLength) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < columnLength; i++) {
+            hash = (hash ^ (column.get(columnAt + i) & 0xff)) * 0x100000001b3L;
+        }
+        hash *= 0x100000001b3L;
+        for (int i = 0; i < maskedLength; i++) {
+            hash = (hash ^ (masked.get(maskedAt + i) & 0xff)) * 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stable source value to token mapping per tokenized column, shared by all tasks of the processor
+ * and kept on local disk across restarts.
+ *
+ * Lookups go through a bounded LRU cache, split in stripes to keep lock contention low, in front of
+ * an open addressing hash index in a memory mapped file. Index slots hold a 64-bit hash of column and
+ * source value and the offset of the mapping in an append-only data file, so collisions are resolved
+ * against the data file and growing the index never reads it. The committed data length is kept in
+ * the index header, a mapping that was only partly written when the process died is cut off when the
+ * vault is opened again.
+ */
+final class TokenVault implements Closeable {
+
+    private static final String INDEX_FILE = "tokens.idx";
+    private static final String DATA_FILE = "tokens.dat";
+
+    private static final long MAGIC = 0x50435356544F4B31L;
+    private static final int VERSION = 1;
+
+    // index header
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int COUNT_OFFSET = 24;
+    private static final int DATA_LENGTH_OFFSET = 32;
+
+    // 16 byte slots: hash, data offset
+    private static final int SLOT_SHIFT = 4;
+    private static final int REGION_SLOTS_SHIFT = 26;
+    private static final long REGION_SLOTS = 1L << REGION_SLOTS_SHIFT;
+    private static final long INITIAL_CAPACITY = 1 << 16;
+    private static final double MAX_LOAD = 0.7;
+
+    private static final int STRIPES = 16;
+    private static final char SEPARATOR = '\u0000';
+
+    private final File directory;
+    private final Map<String, String>[] cache;
+
+    // disk state, guarded by this
+    private final RandomAccessFile dataFile;
+    private final FileChannel data;
+    private final FileLock lock;
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] regions;
+    private long capacity;
+    private long count;
+    private long dataLength;
+    private ByteBuffer record = ByteBuffer.allocate(1024);
+
+    @SuppressWarnings("unchecked")
+    TokenVault(final File directory, final int cacheSize) {
+        this.directory = directory;
+        this.cache = new Map[STRIPES];
+        final int stripeSize = Math.max(1, cacheSize / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            cache[i] = new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > stripeSize;
+                }
+            };
+        }
+
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            dataFile = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+            data = dataFile.getChannel();
+            FileLock acquired;
+            try {
+                acquired = data.tryLock();
+            } catch (OverlappingFileLockException e) {
+                acquired = null;
+            }
+            lock = acquired;
+            if (lock == null) {
+                dataFile.close();
+                throw new IOException(directory + " is in use by another token vault");
+            }
+            try {
+                openIndex();
+            } catch (IOException e) {
+                // closing the data file releases the lock
+                if (indexFile != null) {
+                    indexFile.close();
+                }
+                dataFile.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new ProcessException("Unable to open token vault in " + directory, e);
+        }
+    }
+
+    /**
+     * @return the token of the source value, or null when it has none yet
+     */
+    String get(final String column, final String source) throws IOException {
+        final String key = column + SEPARATOR + source;
+        final Map<String, String> stripe = stripe(key);
+        synchronized (stripe) {
+            final String token = stripe.get(key);
+            if (token != null) {
+                return token;
+            }
+        }
+        final String token;
+        synchronized (this) {
+            token = find(column, source, hash(column, source));
+        }
+        if (token != null) {
+            synchronized (stripe) {
+                stripe.put(key, token);
+            }
+        }
+        return token;
+    }
+
+    /**
+     * Stores the token unless the source value got one in the meantime.
+     *
+     * @return the existing token, or null when the given token was stored
+     */
+    String putIfAbsent(final String column, final String source, final String token) throws IOException {
+        final String key = column + SEPARATOR + source;
+        final long hash = hash(column, source);
+        String existing;
+        synchronized (this) {
+            existing = find(column, source, hash);
+            if (existing == null) {
+                insert(column, source, token, hash);
+            }
+        }
+        final Map<String, String> stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, existing == null ? token : existing);
+        }
+        return existing;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        header.force();
+        for (final MappedByteBuffer region : regions) {
+            region.force();
+        }
+        data.force(false);
+        lock.release();
+        indexFile.close();
+        dataFile.close();
+    }
+
+    private Map<String, String> stripe(final String key) {
+        return cache[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private void openIndex() throws IOException {
+        final File file = new File(directory, INDEX_FILE);
+        final boolean exists = file.length() >= HEADER_SIZE;
+        indexFile = new RandomAccessFile(file, "rw");
+        header = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+        if (exists) {
+            if (header.getLong(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+                throw new IOException(file + " is not a token vault index");
+            }
+            capacity = header.getLong(CAPACITY_OFFSET);
+            count = header.getLong(COUNT_OFFSET);
+            dataLength = header.getLong(DATA_LENGTH_OFFSET);
+            // drop a mapping that was appended but never committed
+            if (data.size() > dataLength) {
+                data.truncate(dataLength);
+            }
+        } else {
+            capacity = INITIAL_CAPACITY;
+            count = 0;
+            dataLength = 0;
+            data.truncate(0);
+            header.putLong(MAGIC_OFFSET, MAGIC);
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putLong(CAPACITY_OFFSET, capacity);
+            header.putLong(COUNT_OFFSET, count);
+            header.putLong(DATA_LENGTH_OFFSET, dataLength);
+        }
+        regions = map(indexFile.getChannel(), capacity);
+    }
+
+    private static MappedByteBuffer[] map(final FileChannel channel, final long capacity) throws IOException {
+        final int count = (int) ((capacity + REGION_SLOTS - 1) >>> REGION_SLOTS_SHIFT);
+        final MappedByteBuffer[] regions = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long slots = Math.min(REGION_SLOTS, capacity - ((long) i << REGION_SLOTS_SHIFT));
+            regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + ((long) i << (REGION_SLOTS_SHIFT + SLOT_SHIFT)), slots << SLOT_SHIFT);
+        }
+        return regions;
+    }
+
+    private String find(final String column, final String source, final long hash) throws IOException {
+        final byte[] columnBytes = column.getBytes(StandardCharsets.UTF_8);
+        final byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+        final long mask = capacity - 1;
+        for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final long stored = slotHash(slot);
+            if (stored == 0) {
+                return null;
+            }
+            if (stored == hash) {
+                final String token = read(slotOffset(slot), columnBytes, sourceBytes);
+                if (token != null) {
+                    return token;
+                }
+            }
+        }
+    }
+
+    private void insert(final String column, final String source, final String token, final long hash)
+            throws IOException {
+        final byte[] columnBytes = column.getBytes(StandardCharsets.UTF_8);
+        final byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+        final byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+
+        final int length = 12 + columnBytes.length + sourceBytes.length + tokenBytes.length;
+        final ByteBuffer buffer = recordBuffer(length);
+        buffer.putInt(columnBytes.length).putInt(sourceBytes.length).putInt(tokenBytes.length)
+                .put(columnBytes).put(sourceBytes).put(tokenBytes).flip();
+        final long offset = dataLength;
+        while (buffer.hasRemaining()) {
+            data.write(buffer, offset + buffer.position());
+        }
+        dataLength += length;
+        header.putLong(DATA_LENGTH_OFFSET, dataLength);
+
+        if (count + 1 > capacity * MAX_LOAD) {
+            grow();
+        }
+        place(regions, capacity, hash, offset);
+        header.putLong(COUNT_OFFSET, ++count);
+    }
+
+    // returns the token when the mapping at offset is the one of column and source
+    private String read(final long offset, final byte[] column, final byte[] source) throws IOException {
+        ByteBuffer buffer = recordBuffer(12);
+        readFully(buffer, offset);
+        final int columnLength = buffer.getInt(0);
+        final int sourceLength = buffer.getInt(4);
+        final int tokenLength = buffer.getInt(8);
+        if (columnLength != column.length || sourceLength != source.length) {
+            return null;
+        }
+        buffer = recordBuffer(columnLength + sourceLength + tokenLength);
+        readFully(buffer, offset + 12);
+        final byte[] bytes = buffer.array();
+        if (!equals(bytes, 0, column) || !equals(bytes, columnLength, source)) {
+            return null;
+        }
+        return new String(bytes, columnLength + sourceLength, tokenLength, StandardCharsets.UTF_8);
+    }
+
+    private void readFully(final ByteBuffer buffer, final long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Token vault data in " + directory + " ends before offset " + offset);
+            }
+        }
+    }
+
+    private ByteBuffer recordBuffer(final int length) {
+        if (record.capacity() < length) {
+            record = ByteBuffer.allocate(Math.max(length, record.capacity() * 2));
+        }
+        record.clear();
+        record.limit(length);
+        return record;
+    }
+
+    private static boolean equals(final byte[] bytes, final int offset, final byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Doubles the index into a new file and swaps it in, slots are re-placed from their stored hashes.
+     */
+    private void grow() throws IOException {
+        final long grown = capacity * 2;
+        final File file = new File(directory, INDEX_FILE);
+        final File next = new File(directory, INDEX_FILE + ".tmp");
+
+        final RandomAccessFile nextFile = new RandomAccessFile(next, "rw");
+        nextFile.setLength(0);
+        final MappedByteBuffer nextHeader = nextFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        final MappedByteBuffer[] nextRegions = map(nextFile.getChannel(), grown);
+        for (long slot = 0; slot < capacity; slot++) {
+            final long hash = slotHash(slot);
+            if (hash != 0) {
+                place(nextRegions, grown, hash, slotOffset(slot));
+            }
+        }
+        nextHeader.putLong(MAGIC_OFFSET, MAGIC);
+        nextHeader.putInt(VERSION_OFFSET, VERSION);
+        nextHeader.putLong(CAPACITY_OFFSET, grown);
+        nextHeader.putLong(COUNT_OFFSET, count);
+        nextHeader.putLong(DATA_LENGTH_OFFSET, dataLength);
+        nextHeader.force();
+        for (final MappedByteBuffer region : nextRegions) {
+            region.force();
+        }
+
+        indexFile.close();
+        Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        indexFile = nextFile;
+        header = nextHeader;
+        regions = nextRegions;
+        capacity = grown;
+    }
+
+    private static void place(final MappedByteBuffer[] regions, final long capacity, final long hash,
+                              final long offset) {
+        final long mask = capacity - 1;
+        long slot = hash & mask;
+        while (regions[(int) (slot >>> REGION_SLOTS_SHIFT)].getLong(position(slot)) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        final MappedByteBuffer region = regions[(int) (slot >>> REGION_SLOTS_SHIFT)];
+        region.putLong(position(slot) + 8, offset);
+        region.putLong(position(slot), hash);
+    }
+
+    private long slotHash(final long slot) {
+        return regions[(int) (slot >>> REGION_SLOTS_SHIFT)].getLong(position(slot));
+    }
+
+    private long slotOffset(final long slot) {
+        return regions[(int) (slot >>> REGION_SLOTS_SHIFT)].getLong(position(slot) + 8);
+    }
+
+    private static int position(final long slot) {
+        return (int) (slot & (REGION_SLOTS - 1)) << SLOT_SHIFT;
+    }
+
+    // 64-bit FNV-1a over the column, a separator and the source value, never 0 which marks empty slots
+    private static long hash(final String column, final String source) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < column.length(); i++) {
+            hash = (hash ^ column.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ SEPARATOR) * 0x100000001b3L;
+        for (int i = 0; i < source.length(); i++) {
+            hash = (hash ^ source.charAt(i)) * 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams tokenization rows (column name, unique identifier, masked value, source value) for the
+ * tokenized relationship through a single buffered writer per FlowFile.
+ *
+ * Rows are grouped into batches: multi-row INSERT statements for MySQL and MS SQL Server, INSERT ALL
+ * for Oracle and JSON arrays for JSON. Apache Phoenix does not accept multi-row UPSERT VALUES, so it
+ * gets one UPSERT per row. XML and CSV are written as one document for the whole FlowFile.
+ */
+final class TokenizedWriter implements ParsePlan.TokenSink {
+
+    static final String PHOENIX = "APACHE PHOENIX";
+    static final String MYSQL = "MYSQL";
+    static final String ORACLE = "ORACLE";
+    static final String MSSQL = "MS SQL SERVER";
+    static final String JSON = "JSON";
+    static final String XML = "XML";
+    static final String CSV = "CSV";
+
+    // SQL Server rejects more than 1000 rows in one VALUES clause
+    private static final int MSSQL_MAX_ROWS = 1000;
+
+    private static final String[] COLUMNS = {"ColumnName", "UniqueIdentifier", "MaskedValue", "SourceValue"};
+
+    private final Writer writer;
+    private final String store;
+    private final String table;
+    private final int batchSize;
+    private final String[] row = new String[COLUMNS.length];
+
+    private int pending;
+    private long rows;
+
+    TokenizedWriter(final OutputStream out, final String store, final String table, final int batchSize) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        this.store = store;
+        this.table = table;
+        switch (store) {
+            case PHOENIX:
+            case XML:
+            case CSV:
+                this.batchSize = 1;
+                break;
+            case MSSQL:
+                this.batchSize = Math.min(batchSize, MSSQL_MAX_ROWS);
+                break;
+            default:
+                this.batchSize = batchSize;
+        }
+    }
+
+    @Override
+    public void write(String columnName, String uniqueIdentifier, String maskedValue, String sourceValue)
+            throws IOException {
+        row[0] = columnName;
+        row[1] = uniqueIdentifier;
+        row[2] = maskedValue;
+        row[3] = sourceValue;
+
+        if (rows++ == 0) {
+            begin();
+        }
+        if (pending == 0) {
+            startBatch();
+        } else {
+            separator();
+        }
+        writeRow();
+        if (++pending == batchSize) {
+            endBatch();
+            pending = 0;
+        }
+    }
+
+    /**
+     * Closes any open batch and document and flushes, the underlying stream is left open.
+     *
+     * @return number of rows written
+     */
+    long finish() throws IOException {
+        if (pending > 0) {
+            endBatch();
+            pending = 0;
+        }
+        if (rows > 0) {
+            end();
+        }
+        writer.flush();
+        return rows;
+    }
+
+    private void begin() throws IOException {
+        switch (store) {
+            case XML:
+                writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tokens>\n");
+                break;
+            case CSV:
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    writer.write(i == 0 ? COLUMNS[i] : "," + COLUMNS[i]);
+                }
+                writer.write("\r\n");
+                break;
+        }
+    }
+
+    private void end() throws IOException {
+        if (store.equals(XML)) {
+            writer.write("</tokens>\n");
+        }
+    }
+
+    private void startBatch() throws IOException {
+        switch (store) {
+            case PHOENIX:
+                writer.write("UPSERT INTO ");
+                writer.write(table);
+                columnList();
+                writer.write(" VALUES ");
+                break;
+            case MYSQL:
+            case MSSQL:
+                writer.write("INSERT INTO ");
+                writer.write(table);
+                columnList();
+                writer.write(" VALUES\n");
+                break;
+            case ORACLE:
+                writer.write("INSERT ALL\n");
+                break;
+            case JSON:
+                if (batchSize > 1) {
+                    writer.write('[');
+                }
+                break;
+        }
+    }
+
+    private void separator() throws IOException {
+        switch (store) {
+            case MYSQL:
+            case MSSQL:
+                writer.write(",\n");
+                break;
+            case ORACLE:
+                writer.write('\n');
+                break;
+            case JSON:
+                writer.write(',');
+                break;
+        }
+    }
+
+    private void endBatch() throws IOException {
+        switch (store) {
+            case PHOENIX:
+            case MYSQL:
+            case MSSQL:
+                writer.write(";\n");
+                break;
+            case ORACLE:
+                writer.write("\nSELECT * FROM DUAL;\n");
+                break;
+            case JSON:
+                writer.write(batchSize > 1 ? "]\n" : "\n");
+                break;
+        }
+    }
+
+    private void writeRow() throws IOException {
+        switch (store) {
+            case ORACLE:
+                writer.write("  INTO ");
+                writer.write(table);
+                columnList();
+                writer.write(" VALUES ");
+                sqlValues();
+                break;
+            case JSON:
+                writer.write('{');
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    writer.write('"');
+                    writer.write(COLUMNS[i]);
+                    writer.write("\":");
+                    jsonString(row[i]);
+                }
+                writer.write('}');
+                break;
+            case XML:
+                writer.write("  <token>");
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    writer.write('<');
+                    writer.write(COLUMNS[i]);
+                    writer.write('>');
+                    xmlText(row[i]);
+                    writer.write("</");
+                    writer.write(COLUMNS[i]);
+                    writer.write('>');
+                }
+                writer.write("</token>\n");
+                break;
+            case CSV:
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    csvField(row[i]);
+                }
+                writer.write("\r\n");
+                break;
+            default:
+                sqlValues();
+        }
+    }
+
+    private void columnList() throws IOException {
+        writer.write(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            writer.write(i == 0 ? COLUMNS[i] : ", " + COLUMNS[i]);
+        }
+        writer.write(')');
+    }
+
+    private void sqlValues() throws IOException {
+        writer.write('(');
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            if (row[i] == null) {
+                writer.write("NULL");
+                continue;
+            }
+            writer.write('\'');
+            final String value = row[i];
+            for (int c = 0; c < value.length(); c++) {
+                final char ch = value.charAt(c);
+                if (ch == '\'') {
+                    writer.write('\'');
+                }
+                writer.write(ch);
+            }
+            writer.write('\'');
+        }
+        writer.write(')');
+    }
+
+    private void jsonString(final String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int c = 0; c < value.length(); c++) {
+            final char ch = value.charAt(c);
+            switch (ch) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) ch));
+                    } else {
+                        writer.write(ch);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    private void xmlText(final String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        for (int c = 0; c < value.length(); c++) {
+            final char ch = value.charAt(c);
+            switch (ch) {
+                case '<':
+                    writer.write("&lt;");
+                    break;
+                case '>':
+                    writer.write("&gt;");
+                    break;
+                case '&':
+                    writer.write("&amp;");
+                    break;
+                default:
+                    writer.write(ch);
+            }
+        }
+    }
+
+    private void csvField(final String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int c = 0; c < value.length() && !quote; c++) {
+            final char ch = value.charAt(c);
+            quote = ch == ',' || ch == '"' || ch == '\r' || ch == '\n';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class CompressionTest {
+
+    private static final String CONTENT = "id,name\r\n1,Alice\r\n2,Bob\r\n";
+
+    @Test
+    public void testClosingLeavesTheStreamsOpen() throws IOException {
+        final ClosingOutputStream compressed = new ClosingOutputStream();
+        final OutputStream gzip = Compression.gzip(compressed, 6);
+        gzip.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+        gzip.close();
+        gzip.close();
+        assertFalse(compressed.closed);
+
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(deflated)) {
+            deflate.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(CONTENT, read(Compression.GZIP, compressed.toByteArray()));
+        assertEquals(CONTENT, read(Compression.AUTO_DETECT, compressed.toByteArray()));
+        assertEquals(CONTENT, read(Compression.AUTO_DETECT, CONTENT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(CONTENT, read(Compression.DEFLATE, deflated.toByteArray()));
+    }
+
+    private static String read(final String format, final byte[] content) throws IOException {
+        final ClosingInputStream source = new ClosingInputStream(content);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Compression.decompress(format, source)) {
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        assertFalse(source.closed);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static final class ClosingOutputStream extends ByteArrayOutputStream {
+        private boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static final class ClosingInputStream extends ByteArrayInputStream {
+        private boolean closed;
+
+        private ClosingInputStream(final byte[] content) {
+            super(content);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertNotEquals;
+
+public class DetokenizeCSVTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRestoresParsedColumns() throws IOException {
+        final String key = "0123456789abcdef";
+        final String csv = "id,name,note\r\n1,Anna,first\r\n2,Bob,\"a, b\"\r\n3,Anna,\r\n";
+
+        final TestRunner parse = TestRunners.newTestRunner(ParseCSV.class);
+        parse.setProperty(ParseCSV.COLUMN_MASK, "name");
+        parse.setProperty(ParseCSV.COLUMN_TOKENIZE, "name");
+        parse.setProperty(ParseCSV.TOKENIZED_OUTPUT, "CSV");
+        parse.setProperty(ParseCSV.MASK_MODE, MaskEngine.DETERMINISTIC);
+        parse.setProperty(ParseCSV.MASK_KEY, "mask key");
+        parse.setProperty(ParseCSV.COLUMN_ENCRYPT, "note");
+        parse.setProperty(ParseCSV.ENCRYPTION_KEY, key);
+        parse.enqueue(csv.getBytes());
+        parse.run();
+        final MockFlowFile parsed = parse.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0);
+        assertNotEquals(csv, new String(parsed.toByteArray()));
+        final File mappings = folder.newFile("mappings.csv");
+        Files.write(mappings.toPath(),
+                parse.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_TOKENIZED).get(0).toByteArray());
+
+        final TestRunner detokenize = TestRunners.newTestRunner(DetokenizeCSV.class);
+        detokenize.setProperty(DetokenizeCSV.COLUMN_DETOKENIZE, "name");
+        detokenize.setProperty(DetokenizeCSV.TOKEN_MAPPINGS, mappings.getPath());
+        detokenize.setProperty(DetokenizeCSV.TOKEN_INDEX_DIRECTORY, folder.newFolder().getPath());
+        detokenize.setProperty(DetokenizeCSV.COLUMN_DECRYPT, "note");
+        detokenize.setProperty(ParseCSV.ENCRYPTION_KEY, key);
+        detokenize.enqueue(parsed.toByteArray());
+        detokenize.enqueue("id,name,note\r\n4,Xyzw,not encrypted\r\n".getBytes());
+        detokenize.run(2);
+
+        detokenize.assertTransferCount(DetokenizeCSV.RELATIONSHIP_SUCCESS, 1);
+        detokenize.assertTransferCount(DetokenizeCSV.RELATIONSHIP_FAILURE, 1);
+        final MockFlowFile restored = detokenize.getFlowFilesForRelationship(DetokenizeCSV.RELATIONSHIP_SUCCESS).get(0);
+        restored.assertContentEquals(csv);
+        restored.assertAttributeEquals(DetokenizeCSV.UNRESOLVED, "0");
+    }
+}
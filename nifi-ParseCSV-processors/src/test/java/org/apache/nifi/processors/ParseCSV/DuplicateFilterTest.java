@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ParseCSV;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+
+    @Test
+    public void testMemoryStaysWithinLimit() {
+        final long maxBytes = 64 * 1024;
+        final DuplicateFilter filter = new DuplicateFilter("id", 1000, 0.001, maxBytes);
+        for (int i = 0; i < 2000000; i++) {
+            filter.add(DuplicateFilter.hash(DuplicateFilter.hash(), "key" + i));
+            if (i % 1000 == 0) {
+                assertTrue(filter.bytes() <= maxBytes);
+            }
+        }
+        assertTrue(filter.bytes() <= maxBytes);
+        // the newest keys are still remembered
+        assertFalse(filter.add(DuplicateFilter.hash(DuplicateFilter.hash(), "key1999999")));
+    }
+}
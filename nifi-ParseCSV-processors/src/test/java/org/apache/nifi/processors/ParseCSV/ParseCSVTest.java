@@ -16,19 +16,43 @@
  */
 package org.apache.nifi.processors.ParseCSV;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 public class ParseCSVTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private TestRunner testRunner;
 
     @Before
@@ -71,4 +95,647 @@ public class ParseCSVTest {
             System.out.println(ex);
         }
     }
+
+    @Test
+    public void testStaticSchemaProjection() {
+        testRunner.setProperty(ParseCSV.STATIC_SCHEMA, "column3,column1");
+        testRunner.enqueue("column1,column2,column3\r\na,b,c\r\nd,e,f\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0);
+        out.assertContentEquals("column3,column1\r\nc,a\r\nf,d\r\n");
+    }
+
+    @Test
+    public void testMaskPreservesFormat() {
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "column2");
+        testRunner.enqueue("column1,column2\r\nkeep,Ab-12\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        final String[] lines = new String(testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS)
+                .get(0).toByteArray()).split("\r\n");
+        assertEquals("column1,column2", lines[0]);
+        assertTrue(lines[1].matches("keep,[A-Z][a-z]-[0-9]{2}"));
+    }
+
+    @Test
+    public void testEncryptBatchRoundTrip() throws Exception {
+        final String key = "0123456789abcdef";
+        final String[] expected = {"alpha", "beta", "alpha", "delta", "gamma"};
+        for (final boolean pipelined : new boolean[] {false, true}) {
+            final TestRunner runner = TestRunners.newTestRunner(ParseCSV.class);
+            runner.setProperty(ParseCSV.COLUMN_ENCRYPT, "secret");
+            runner.setProperty(ParseCSV.ENCRYPTION_KEY, key);
+            if (pipelined) {
+                runner.setProperty(ParseCSV.PIPELINE_WORKERS, "2");
+                runner.setProperty(ParseCSV.PIPELINE_BATCH_SIZE, "3");
+            } else {
+                runner.setProperty(ParseCSV.ENCRYPTION_BATCH_SIZE, "3");
+            }
+            runner.enqueue("id,secret\r\n1,alpha\r\n2,beta\r\n3,alpha\r\n4,delta\r\n5,gamma\r\n".getBytes());
+            runner.run();
+
+            runner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+            final String[] lines = new String(runner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS)
+                    .get(0).toByteArray()).split("\r\n");
+            assertEquals(expected.length + 1, lines.length);
+
+            for (int i = 0; i < expected.length; i++) {
+                final String[] fields = lines[i + 1].split(",");
+                assertEquals(Integer.toString(i + 1), fields[0]);
+                assertEquals(expected[i], decrypt(fields[1], key));
+            }
+            // every value of a chunk gets its own IV
+            assertFalse(lines[1].split(",")[1].equals(lines[3].split(",")[1]));
+        }
+    }
+
+    @Test
+    public void testDeterministicMask() {
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "customer");
+        testRunner.setProperty(ParseCSV.MASK_MODE, "Deterministic");
+        testRunner.setProperty(ParseCSV.MASK_KEY, "secret");
+        testRunner.enqueue("id,customer\r\n1,John Smith\r\n2,Jane Doe\r\n3,John Smith\r\n".getBytes());
+        testRunner.run();
+
+        final String[] lines = new String(testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS)
+                .get(0).toByteArray()).split("\r\n");
+        final String first = lines[1].split(",")[1];
+        assertEquals(first, lines[3].split(",")[1]);
+        assertEquals("John Smith".length(), first.length());
+        assertTrue(first.matches("[A-Z][a-z]{3} [A-Z][a-z]{4}"));
+    }
+
+    @Test
+    public void testTokenizedMultiRowInsert() {
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        testRunner.setProperty(ParseCSV.COLUMN_TOKENIZE, "name");
+        testRunner.setProperty(ParseCSV.TOKENIZE_UNQIUE_IDENTIFIER, "id");
+        testRunner.setProperty(ParseCSV.TOKENIZED_OUTPUT, "MYSQL");
+        testRunner.setProperty(ParseCSV.TOKENIZED_BATCH_SIZE, "2");
+        testRunner.enqueue("id,name\r\n7,O'Neil\r\n8,Bob\r\n9,Eve\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_TOKENIZED, 1);
+        final String[] lines = new String(testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_TOKENIZED)
+                .get(0).toByteArray()).split("\n");
+        final String insert = "INSERT INTO TOKENIZED (ColumnName, UniqueIdentifier, MaskedValue, SourceValue) VALUES";
+        assertEquals(5, lines.length);
+        assertEquals(insert, lines[0]);
+        assertTrue(lines[1].matches("\\('name','7','[A-Z]''[A-Z][a-z]{3}','O''Neil'\\),"));
+        assertTrue(lines[2].matches("\\('name','8','[A-Z][a-z]{2}','Bob'\\);"));
+        assertEquals(insert, lines[3]);
+        assertTrue(lines[4].matches("\\('name','9','[A-Z][a-z]{2}','Eve'\\);"));
+    }
+
+    @Test
+    public void testNoTokenizedOutputWithoutTokenizeColumns() {
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        testRunner.enqueue("id,name\r\n7,Bob\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_TOKENIZED, 0);
+    }
+
+    @Test
+    public void testJsonOutputModes() {
+        testRunner.setProperty(ParseCSV.OUTPUT_FORMAT, "JSON");
+        testRunner.setProperty(ParseCSV.JSON_MODE, "NDJSON");
+        testRunner.enqueue("id,name\r\n1,a\r\n2,\"b \"\"c\"\"\"\r\n".getBytes());
+        testRunner.run();
+        testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0)
+                .assertContentEquals("{\"id\":\"1\",\"name\":\"a\"}\n{\"id\":\"2\",\"name\":\"b \\\"c\\\"\"}\n");
+
+        testRunner.clearTransferState();
+        testRunner.setProperty(ParseCSV.JSON_MODE, "Compact");
+        testRunner.enqueue("id,name\r\n1,a\r\n2,b\r\n".getBytes());
+        testRunner.run();
+        testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0)
+                .assertContentEquals("[{\"id\":\"1\",\"name\":\"a\"},{\"id\":\"2\",\"name\":\"b\"}]");
+    }
+
+    @Test
+    public void testXmlOutputHasRootElement() throws Exception {
+        testRunner.setProperty(ParseCSV.OUTPUT_FORMAT, "XML");
+        testRunner.enqueue("id,first name\r\n1,a\r\n2,b\r\n".getBytes());
+        testRunner.run();
+
+        final Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS)
+                        .get(0).toByteArray())).getDocumentElement();
+        assertEquals("records", root.getTagName());
+        assertFalse(root.hasAttributes());
+
+        final NodeList records = root.getChildNodes();
+        assertEquals(2, records.getLength());
+        final String[][] expected = {{"1", "a"}, {"2", "b"}};
+        for (int i = 0; i < expected.length; i++) {
+            final Element record = (Element) records.item(i);
+            assertEquals("record", record.getTagName());
+            assertEquals(2, record.getChildNodes().getLength());
+            assertEquals(expected[i][0], record.getElementsByTagName("id").item(0).getTextContent());
+            assertEquals(expected[i][1], record.getElementsByTagName("first_name").item(0).getTextContent());
+        }
+    }
+
+    @Test
+    public void testManyFlowFilesPerTrigger() {
+        testRunner.setProperty(ParseCSV.FLOWFILE_BATCH_SIZE, "20");
+        testRunner.setProperty(ParseCSV.STATIC_SCHEMA, "b,a");
+        for (int i = 0; i < 50; i++) {
+            testRunner.enqueue(("a,b\r\n" + i + ",x" + i + "\r\n").getBytes());
+        }
+
+        testRunner.run(1);
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 20);
+
+        testRunner.run(2);
+        testRunner.assertAllFlowFilesTransferred(ParseCSV.RELATIONSHIP_SUCCESS, 50);
+        testRunner.assertQueueEmpty();
+
+        final List<MockFlowFile> out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS);
+        for (int i = 0; i < 50; i++) {
+            out.get(i).assertContentEquals("b,a\r\nx" + i + "," + i + "\r\n");
+        }
+    }
+
+    @Test
+    public void testBadFlowFileDoesNotFailBatch() {
+        testRunner.setProperty(ParseCSV.FLOWFILE_BATCH_SIZE, "3");
+        testRunner.setProperty(ParseCSV.STATIC_SCHEMA, "b,a");
+        testRunner.enqueue("a,b\r\n1,x\r\n".getBytes());
+        testRunner.enqueue("a,c\r\n2,y\r\n".getBytes());
+        testRunner.enqueue("a,b\r\n3,z\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 2);
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_FAILURE, 1);
+        testRunner.assertQueueEmpty();
+        final List<MockFlowFile> out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS);
+        out.get(0).assertContentEquals("b,a\r\nx,1\r\n");
+        out.get(1).assertContentEquals("b,a\r\nz,3\r\n");
+        testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_FAILURE).get(0)
+                .assertContentEquals("a,c\r\n2,y\r\n");
+    }
+
+    @Test
+    public void testShortRecordFailsOnlyItsFlowFile() {
+        // surrounding spaces are trimmed by commons-csv only
+        testRunner.setProperty(ParseCSV.FORMAT, "TDF");
+        testRunner.setProperty(ParseCSV.FLOWFILE_BATCH_SIZE, "2");
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        testRunner.setProperty(ParseCSV.COLUMN_TOKENIZE, "name");
+        testRunner.setProperty(ParseCSV.TOKENIZE_UNQIUE_IDENTIFIER, "id");
+        testRunner.setProperty(ParseCSV.STATIC_SCHEMA, "name");
+        testRunner.enqueue("id\tname\r\n1\tAlice\r\n".getBytes());
+        testRunner.enqueue("name\tid\r\nBob\t2\r\nEve\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_TOKENIZED, 1);
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_FAILURE, 1);
+        testRunner.assertQueueEmpty();
+        testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_FAILURE).get(0)
+                .assertContentEquals("name\tid\r\nBob\t2\r\nEve\r\n");
+    }
+
+    @Test
+    public void testQuotedFieldsPassThrough() {
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        testRunner.setProperty(ParseCSV.MASK_MODE, "Deterministic");
+        testRunner.setProperty(ParseCSV.MASK_KEY, "secret");
+        testRunner.enqueue(("id,name,note\n\n1,Anna,\"a, b\"\r\n2,\"Bob\",\"say \"\"hi\"\"\"\n-3,Carl,\"x\r\ny\"").getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        final String[] lines = new String(testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS)
+                .get(0).toByteArray()).split("\r\n");
+        assertEquals(5, lines.length);
+        assertEquals("id,name,note", lines[0]);
+        assertTrue(lines[1].matches("1,[A-Z][a-z]{3},\"a, b\""));
+        assertTrue(lines[2].matches("2,[A-Z][a-z]{2},\"say \"\"hi\"\"\""));
+        assertTrue(lines[3].matches("\"-3\",[A-Z][a-z]{3},\"x"));
+        assertEquals("y\"", lines[4]);
+    }
+
+    @Test
+    public void testSplitByRecordCount() {
+        testRunner.setProperty(ParseCSV.SPLIT_RECORD_COUNT, "2");
+        testRunner.enqueue("a,b\r\n1,2\r\n3,4\r\n5,6\r\n7,8\r\n9,10\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 3);
+        final List<MockFlowFile> splits = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS);
+        splits.get(0).assertContentEquals("a,b\r\n1,2\r\n3,4\r\n");
+        splits.get(1).assertContentEquals("a,b\r\n5,6\r\n7,8\r\n");
+        splits.get(2).assertContentEquals("a,b\r\n9,10\r\n");
+        for (int i = 0; i < splits.size(); i++) {
+            splits.get(i).assertAttributeEquals(ParseCSV.FRAGMENT_INDEX, String.valueOf(i + 1));
+            splits.get(i).assertAttributeEquals(ParseCSV.FRAGMENT_COUNT, "3");
+            splits.get(i).assertAttributeEquals(ParseCSV.FRAGMENT_ID,
+                    splits.get(0).getAttribute(ParseCSV.FRAGMENT_ID));
+        }
+    }
+
+    @Test
+    public void testBoundedAttributes() {
+        testRunner.setProperty(ParseCSV.CREATE_ATTRIBUTES, "True");
+        testRunner.setProperty(ParseCSV.ATTRIBUTE_RECORDS, "First Records");
+        testRunner.setProperty(ParseCSV.ATTRIBUTE_RECORD_COUNT, "2");
+        testRunner.setProperty(ParseCSV.ATTRIBUTE_COLUMNS, "b");
+        testRunner.setProperty(ParseCSV.MAX_ATTRIBUTE_SIZE, "9 B");
+        testRunner.setProperty(ParseCSV.FLOWFILE_BATCH_SIZE, "2");
+        testRunner.enqueue("a,b\r\n1,2\r\n3,4\r\n5,6\r\n".getBytes());
+        testRunner.enqueue("a,b\r\n1,22\r\n3,44\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 2);
+        final List<MockFlowFile> out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS);
+        out.get(0).assertAttributeEquals("b.2", "2");
+        out.get(0).assertAttributeEquals("b.3", "4");
+        out.get(0).assertAttributeNotExists("b.4");
+        out.get(0).assertAttributeNotExists("a.2");
+        out.get(1).assertAttributeEquals("b.2", "22");
+        out.get(1).assertAttributeNotExists("b.3");
+        out.get(1).assertAttributeEquals("csv.attributes.truncated", "true");
+    }
+
+    @Test
+    public void testTokenVaultOnlyEmitsNewTokens() throws IOException {
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        testRunner.setProperty(ParseCSV.COLUMN_TOKENIZE, "name");
+        testRunner.setProperty(ParseCSV.TOKENIZED_OUTPUT, "CSV");
+        testRunner.setProperty(ParseCSV.TOKEN_VAULT_DIRECTORY, folder.newFolder().getPath());
+        testRunner.setProperty(ParseCSV.FLOWFILE_BATCH_SIZE, "2");
+        testRunner.enqueue("id,name\r\n1,Anna\r\n2,Bob\r\n3,Anna\r\n".getBytes());
+        testRunner.enqueue("id,name\r\n4,Bob\r\n5,Carl\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 2);
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_TOKENIZED, 2);
+        final List<MockFlowFile> out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS);
+        final String[] first = new String(out.get(0).toByteArray()).split("\r\n");
+        final String[] second = new String(out.get(1).toByteArray()).split("\r\n");
+        assertEquals(first[1].split(",")[1], first[3].split(",")[1]);
+        assertEquals(first[2].split(",")[1], second[1].split(",")[1]);
+
+        final List<MockFlowFile> tokenized = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_TOKENIZED);
+        assertEquals(3, new String(tokenized.get(0).toByteArray()).split("\r\n").length);
+        final String[] added = new String(tokenized.get(1).toByteArray()).split("\r\n");
+        assertEquals(2, added.length);
+        assertTrue(added[1].endsWith("," + second[2].split(",")[1] + ",Carl"));
+    }
+
+    @Test
+    public void testInstrumentationAttributes() {
+        testRunner.setProperty(ParseCSV.INSTRUMENTATION, "Counters and Attributes");
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        final byte[] content = "id,name\r\n1,Anna\r\n2,Bob\r\n3,Carl\r\n".getBytes();
+        testRunner.enqueue(content);
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0);
+        out.assertAttributeEquals("parsecsv.records", "3");
+        out.assertAttributeEquals("parsecsv.records.out", "3");
+        out.assertAttributeEquals("parsecsv.cells.transformed", "3");
+        out.assertAttributeEquals("parsecsv.bytes.in", String.valueOf(content.length));
+        out.assertAttributeEquals("parsecsv.bytes.out", String.valueOf(out.getSize()));
+        assertTrue(Long.parseLong(out.getAttribute("parsecsv.parse.nanos")) > 0);
+        assertTrue(Long.parseLong(out.getAttribute("parsecsv.mask.nanos")) > 0);
+        out.assertAttributeEquals("parsecsv.encrypt.nanos", "0");
+    }
+
+    @Test
+    public void testPassThroughKeepsContent() {
+        testRunner.setProperty(ParseCSV.PASS_THROUGH, "True");
+        final String content = "id,name\n1,\"Anna\"\n\n2,\"B, b\"\n3,Carl";
+        testRunner.enqueue(content.getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0);
+        out.assertContentEquals(content);
+        out.assertAttributeEquals(ParseCSV.RECORD_COUNT, "3");
+    }
+
+    @Test
+    public void testCompressedInputAndOutput() throws IOException {
+        testRunner.setProperty(ParseCSV.INPUT_COMPRESSION, "Auto Detect");
+        testRunner.setProperty(ParseCSV.OUTPUT_COMPRESSION, "gzip");
+        testRunner.setProperty(ParseCSV.COMPRESSION_THREADS, "2");
+        final StringBuilder csv = new StringBuilder("a,b\r\n");
+        for (int i = 0; i < 200000; i++) {
+            csv.append(i).append(",x").append(i % 7).append("\r\n");
+        }
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(csv.toString().getBytes());
+        }
+        testRunner.enqueue(compressed.toByteArray());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0);
+        out.assertAttributeEquals("mime.type", "application/gzip");
+        assertEquals(csv.toString(), gunzip(out.toByteArray()));
+    }
+
+    @Test
+    public void testProjectionSkipsTrailingFields() {
+        testRunner.setProperty(ParseCSV.STATIC_SCHEMA, "c,a");
+        testRunner.setProperty(ParseCSV.OUTPUT_FORMAT, "JSON");
+        testRunner.setProperty(ParseCSV.JSON_MODE, "NDJSON");
+        testRunner.enqueue("a,b,c,d,e\r\n1,2,3,\"x,\r\ny\",z\"q\r\n4,5,6,7,\"\"\"\"\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0);
+        out.assertContentEquals("{\"c\":\"3\",\"a\":\"1\"}\n{\"c\":\"6\",\"a\":\"4\"}\n");
+    }
+
+    @Test
+    public void testRecordFilterRoutesRejectedRecords() {
+        testRunner.setProperty(ParseCSV.RECORD_FILTER, "country in ('DE', 'FR') and age >= 18 or vip is not null");
+        testRunner.setProperty(ParseCSV.FILTERED_RECORDS, "Route to filtered");
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        testRunner.enqueue("name,country,age,vip\r\nann,DE,30,\r\nbob,DE,9,\r\ncid,US,40,\r\ndan,US,7,y\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_FILTERED, 1);
+        final String success = new String(testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS)
+                .get(0).toByteArray());
+        final String[] lines = success.split("\r\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[1].endsWith(",DE,30,"));
+        assertTrue(lines[2].endsWith(",US,7,y"));
+        testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_FILTERED).get(0)
+                .assertContentEquals("name,country,age,vip\r\nbob,DE,9,\r\ncid,US,40,\r\n");
+    }
+
+    @Test
+    public void testDuplicatesDroppedAcrossFlowFilesAndRestarts() throws IOException {
+        testRunner.setProperty(ParseCSV.DEDUPLICATE_COLUMNS, "id,source");
+        testRunner.setProperty(ParseCSV.DEDUPLICATION_SNAPSHOT,
+                Paths.get(folder.getRoot().getPath(), "duplicates.bin").toString());
+        testRunner.enqueue("id,source,value\r\n1,a,x\r\n1,b,y\r\n1,a,z\r\n".getBytes());
+        testRunner.enqueue("id,source,value\r\n2,a,x\r\n1,b,q\r\n".getBytes());
+        testRunner.run(2);
+
+        // the snapshot saved when stopped is restored when scheduled again
+        testRunner.enqueue("id,source,value\r\n2,a,w\r\n3,a,v\r\n".getBytes());
+        testRunner.run();
+
+        final List<MockFlowFile> out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS);
+        assertEquals(3, out.size());
+        out.get(0).assertContentEquals("id,source,value\r\n1,a,x\r\n1,b,y\r\n");
+        out.get(1).assertContentEquals("id,source,value\r\n2,a,x\r\n");
+        out.get(2).assertContentEquals("id,source,value\r\n3,a,v\r\n");
+    }
+
+    @Test
+    public void testBadRecordsQuarantined() {
+        testRunner.setProperty(ParseCSV.BAD_RECORD_TOLERANCE, "1");
+        testRunner.enqueue("id,value\r\n1,a\r\n2\r\n3,c\r\n".getBytes());
+        final String rejected = "id,value\r\n\"x\"y,a\r\n2\r\n3,c\r\n";
+        testRunner.enqueue(rejected.getBytes());
+        testRunner.run(2);
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_FAILURE, 2);
+        final MockFlowFile success = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0);
+        success.assertContentEquals("id,value\r\n1,a\r\n3,c\r\n");
+        success.assertAttributeEquals(Quarantine.BAD_RECORDS, "1");
+
+        final List<MockFlowFile> failure = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_FAILURE);
+        failure.get(0).assertContentEquals("line,reason,record\r\n3,\"Record has 1 fields, the header has 2\",2\r\n");
+        failure.get(0).assertAttributeEquals(Quarantine.BAD_LINE, "3");
+
+        // more bad records than tolerated, the FlowFile goes to failure as it is
+        failure.get(1).assertContentEquals(rejected);
+        failure.get(1).assertAttributeEquals(Quarantine.BAD_LINE, "2");
+        failure.get(1).assertAttributeEquals(Quarantine.BAD_REASON,
+                "invalid char between encapsulated token and delimiter");
+    }
+
+    @Test
+    public void testColumnProfileAttributes() {
+        testRunner.setProperty(ParseCSV.COLUMN_PROFILE, "Attributes");
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        testRunner.enqueue("id,name,score\r\n1,Ann,10\r\n2,Bob,\r\n3,Ann,x\r\n4,Cid,2.5\r\n5,Ann,10\r\n".getBytes());
+        testRunner.run();
+
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0);
+        out.assertAttributeEquals(ColumnProfiler.RECORDS, "5");
+        out.assertAttributeEquals("parsecsv.profile.id.mean", "3.0");
+        out.assertAttributeEquals("parsecsv.profile.score.empty", "1");
+        out.assertAttributeEquals("parsecsv.profile.score.numbers", "3");
+        out.assertAttributeEquals("parsecsv.profile.score.min", "2.5");
+        out.assertAttributeEquals("parsecsv.profile.score.max", "10");
+        out.assertAttributeEquals("parsecsv.profile.score.top",
+                "[{\"value\":\"10\",\"count\":2},{\"value\":\"2.5\",\"count\":1},{\"value\":\"x\",\"count\":1}]");
+        // masked values are counted but never reported
+        out.assertAttributeEquals("parsecsv.profile.name.distinct", "3");
+        out.assertAttributeEquals("parsecsv.profile.name.length.max", "3");
+        out.assertAttributeNotExists("parsecsv.profile.name.top");
+        out.assertAttributeNotExists("parsecsv.profile.name.min");
+    }
+
+    @Test
+    public void testOutputPartitionedByColumn() {
+        testRunner.setProperty(ParseCSV.PARTITION_COLUMN, "name");
+        testRunner.setProperty(ParseCSV.PARTITION_COUNT, "3");
+        final StringBuilder csv = new StringBuilder("id,name\r\n");
+        for (int i = 0; i < 300; i++) {
+            csv.append(i).append(",Name").append(i % 20).append("\r\n");
+        }
+        testRunner.enqueue(csv.toString().getBytes());
+        testRunner.run();
+
+        final List<MockFlowFile> partitions = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS);
+        assertEquals(3, partitions.size());
+        int records = 0;
+        for (int i = 0; i < partitions.size(); i++) {
+            final MockFlowFile partition = partitions.get(i);
+            partition.assertAttributeEquals(ParseCSV.PARTITION, String.valueOf(i));
+            partition.assertAttributeEquals(ParseCSV.PARTITION_TOTAL, "3");
+            final String[] lines = new String(partition.toByteArray()).split("\r\n");
+            assertEquals("id,name", lines[0]);
+            for (int l = 1; l < lines.length; l++) {
+                // every name is written to one partition only
+                final String name = lines[l].substring(lines[l].indexOf(',') + 1);
+                for (final MockFlowFile other : partitions) {
+                    assertTrue(other == partition || !new String(other.toByteArray()).contains("," + name + "\r\n"));
+                }
+            }
+            records += lines.length - 1;
+        }
+        assertEquals(300, records);
+    }
+
+    @Test
+    public void testOutputPartitionedAtTheLimit() throws IOException {
+        testRunner.setProperty(ParseCSV.PARTITION_COLUMN, "id");
+        testRunner.setProperty(ParseCSV.PARTITION_COUNT, String.valueOf(PartitionWriter.MAX_PARTITIONS));
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        testRunner.setProperty(ParseCSV.COLUMN_TOKENIZE, "name");
+        testRunner.setProperty(ParseCSV.TOKENIZE_UNQIUE_IDENTIFIER, "id");
+        testRunner.setProperty(ParseCSV.OUTPUT_COMPRESSION, "gzip");
+        final StringBuilder csv = new StringBuilder("id,name\r\n");
+        for (int i = 0; i < 2000; i++) {
+            csv.append(i).append(",Name").append(i).append("\r\n");
+        }
+        testRunner.enqueue(csv.toString().getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ParseCSV.RELATIONSHIP_TOKENIZED, 1);
+        final List<MockFlowFile> partitions = testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS);
+        assertEquals(PartitionWriter.MAX_PARTITIONS, partitions.size());
+        int records = 0;
+        for (final MockFlowFile partition : partitions) {
+            final String[] lines = gunzip(partition.toByteArray()).split("\r\n");
+            assertEquals("id,name", lines[0]);
+            records += lines.length - 1;
+        }
+        assertEquals(2000, records);
+    }
+
+    @Test
+    public void testPartitionColumnMustKeepItsValues() {
+        testRunner.setProperty(ParseCSV.PARTITION_COLUMN, "name");
+        testRunner.setProperty(ParseCSV.PARTITION_COUNT, String.valueOf(PartitionWriter.MAX_PARTITIONS + 1));
+        testRunner.assertNotValid();
+        testRunner.setProperty(ParseCSV.PARTITION_COUNT, String.valueOf(PartitionWriter.MAX_PARTITIONS));
+        testRunner.assertValid();
+
+        testRunner.setProperty(ParseCSV.STATIC_SCHEMA, "id");
+        testRunner.assertNotValid();
+        testRunner.setProperty(ParseCSV.STATIC_SCHEMA, "id,name");
+        testRunner.assertValid();
+
+        testRunner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        testRunner.assertNotValid();
+        testRunner.setProperty(ParseCSV.MASK_MODE, "Deterministic");
+        testRunner.setProperty(ParseCSV.MASK_KEY, "secret");
+        testRunner.assertValid();
+
+        testRunner.setProperty(ParseCSV.COLUMN_ENCRYPT, "name");
+        testRunner.setProperty(ParseCSV.ENCRYPTION_KEY, "0123456789abcdef");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testFixedWidthAndMultiCharacterDelimitedInput() {
+        testRunner.setProperty(ParseCSV.WITH_HEADER, "False");
+        testRunner.setProperty(ParseCSV.FIXED_WIDTH_LAYOUT, "id:4,name:6,amount:11:5");
+        testRunner.enqueue("0001 Alice 0012\r\n0002Bob     3.5\n03\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0)
+                .assertContentEquals("id,name,amount\r\n0001,Alice,0012\r\n0002,Bob,3.5\r\n03,,\r\n");
+
+        final TestRunner delimited = TestRunners.newTestRunner(ParseCSV.class);
+        delimited.setProperty(ParseCSV.DELIMITER, "||");
+        delimited.enqueue("id||name||note\r\n1||Alice||a|b\r\n2||\"Bob\"||x,y\r\n".getBytes());
+        delimited.run();
+
+        delimited.assertAllFlowFilesTransferred(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        delimited.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0)
+                .assertContentEquals("id,name,note\r\n1,Alice,a|b\r\n2,\"\"\"Bob\"\"\",\"x,y\"\r\n");
+    }
+
+    @Test
+    public void testFormatDelimiterUsedWithoutFileDelimiter() {
+        testRunner.setProperty(ParseCSV.FORMAT, "TDF");
+        testRunner.enqueue("id\tname\r\n1\tAlice\r\n2\tBob\r\n".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0)
+                .assertContentEquals("id\tname\r\n1\tAlice\r\n2\tBob\r\n");
+    }
+
+    @Test
+    public void testParallelChunksMatchSerialOutput() {
+        final StringBuilder csv = new StringBuilder("id,name,note\r\n");
+        for (int i = 0; i < 500; i++) {
+            csv.append(i).append(",Name").append(i).append(",\"multi\r\nline, \"\"quoted\"\"\"\r\n");
+        }
+        final byte[] content = csv.toString().getBytes();
+
+        final String[] serial = parseTokenized(content, false, false);
+        final String[] parallel = parseTokenized(content, true, false);
+        assertEquals(serial[0], parallel[0]);
+        assertEquals(serial[1], parallel[1]);
+    }
+
+    @Test
+    public void testPipelinedStagesMatchSerialOutput() {
+        final StringBuilder csv = new StringBuilder("id,name,note\r\n");
+        for (int i = 0; i < 500; i++) {
+            csv.append(i).append(",Name").append(i % 50).append(",\"multi\r\nline, \"\"quoted\"\"\"\r\n");
+        }
+        final byte[] content = csv.toString().getBytes();
+
+        final String[] serial = parseTokenized(content, false, false);
+        final String[] pipelined = parseTokenized(content, false, true);
+        assertEquals(serial[0], pipelined[0]);
+        assertEquals(serial[1], pipelined[1]);
+    }
+
+    private String[] parseTokenized(byte[] content, boolean parallel, boolean pipelined) {
+        final TestRunner runner = TestRunners.newTestRunner(ParseCSV.class);
+        runner.setProperty(ParseCSV.COLUMN_MASK, "name");
+        runner.setProperty(ParseCSV.COLUMN_TOKENIZE, "name");
+        runner.setProperty(ParseCSV.TOKENIZE_UNQIUE_IDENTIFIER, "RowNumber()");
+        runner.setProperty(ParseCSV.TOKENIZED_OUTPUT, "CSV");
+        runner.setProperty(ParseCSV.MASK_MODE, "Deterministic");
+        runner.setProperty(ParseCSV.MASK_KEY, "secret");
+        if (parallel) {
+            runner.setProperty(ParseCSV.PARALLEL_THRESHOLD, "1 B");
+            runner.setProperty(ParseCSV.PARALLEL_THREADS, "3");
+            runner.setProperty(ParseCSV.PARALLEL_CHUNK_SIZE, "200 B");
+        }
+        if (pipelined) {
+            runner.setProperty(ParseCSV.PIPELINE_WORKERS, "3");
+            runner.setProperty(ParseCSV.PIPELINE_BATCH_SIZE, "7");
+            runner.setProperty(ParseCSV.PIPELINE_RING_SIZE, "2");
+        }
+        runner.enqueue(content);
+        runner.run();
+
+        runner.assertTransferCount(ParseCSV.RELATIONSHIP_SUCCESS, 1);
+        runner.assertTransferCount(ParseCSV.RELATIONSHIP_TOKENIZED, 1);
+        return new String[] {
+                new String(runner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_SUCCESS).get(0).toByteArray()),
+                new String(runner.getFlowFilesForRelationship(ParseCSV.RELATIONSHIP_TOKENIZED).get(0).toByteArray())
+        };
+    }
+
+    private static String gunzip(byte[] content) throws IOException {
+        final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(content))) {
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                decompressed.write(buffer, 0, n);
+            }
+        }
+        return decompressed.toString();
+    }
+
+    private static String decrypt(String value, String key) throws Exception {
+        final byte[] sealed = Base64.decodeBase64(value);
+        final Cipher cipher = Cipher.getInstance(CipherEngine.TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "AES"),
+                new IvParameterSpec(sealed, 0, CipherEngine.IV_LENGTH));
+        return new String(cipher.doFinal(sealed, CipherEngine.IV_LENGTH, sealed.length - CipherEngine.IV_LENGTH),
+                StandardCharsets.UTF_8);
+    }
 }